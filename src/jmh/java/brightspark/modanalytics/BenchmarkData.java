@@ -0,0 +1,63 @@
+package brightspark.modanalytics;
+
+import brightspark.modanalytics.loadtest.CsvGenerator;
+import com.beust.jcommander.JCommander;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Generates data in the layout of the Curse analytics export for the benchmarks, using the {@link CsvGenerator}
+ * Every other project uses dd-MM-yyyy dates, as both formats turn up in exports
+ */
+public class BenchmarkData
+{
+	/**
+	 * Creates a generator with enough days of history for the number of rows to be spread evenly across the projects
+	 */
+	private static CsvGenerator createGenerator(int numRows, int numProjects, long seed)
+	{
+		int numDays = (numRows + numProjects - 1) / numProjects;
+		CsvGenerator generator = new CsvGenerator();
+		JCommander.newBuilder().addObject(generator).build().parse(
+			"-projects", String.valueOf(numProjects),
+			"-days", String.valueOf(numDays),
+			"-seed", String.valueOf(seed),
+			"-mixedDateFormats");
+		return generator;
+	}
+
+	/**
+	 * Creates the values of each row, spreading them evenly across the number of projects
+	 */
+	public static String[][] createRows(int numRows, int numProjects, long seed)
+	{
+		return Arrays.copyOf(createGenerator(numRows, numProjects, seed).generateRows(), numRows);
+	}
+
+	/**
+	 * Writes a CSV file for each project into the directory, with the rows spread evenly across them
+	 * Each project gets the same number of rows, so there can be a few more than asked for in total
+	 * @return The files written
+	 */
+	public static File[] writeCsvs(File dir, int numRows, int numProjects, long seed) throws IOException
+	{
+		return createGenerator(numRows, numProjects, seed).generate(dir).stream()
+			.map(generated -> generated.file)
+			.toArray(File[]::new);
+	}
+
+	/**
+	 * Deletes the directory and everything in it
+	 */
+	public static void delete(File dir)
+	{
+		File[] files = dir.listFiles();
+		if(files != null)
+			for(File file : files)
+				delete(file);
+		//noinspection ResultOfMethodCallIgnored
+		dir.delete();
+	}
+}
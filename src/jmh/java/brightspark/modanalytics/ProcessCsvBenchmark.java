@@ -0,0 +1,72 @@
+package brightspark.modanalytics;
+
+import brightspark.modanalytics.db.DbConnection;
+import com.beust.jcommander.JCommander;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end throughput of {@link Main#processCSV} against an on-disk DB, with a CSV file per project
+ * Each operation processes all of the files, replacing the rows written by the previous operation
+ * The ingest ledger is cleared before each operation, otherwise every file would be skipped as a duplicate
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessCsvBenchmark
+{
+	@Param({"1000", "100000"})
+	public int rows;
+
+	@Param({"1", "10"})
+	public int projects;
+
+	@Param({"false", "true"})
+	public boolean fastParser;
+
+	private File dir;
+	private File[] files;
+	private Main main;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		Configurator.setRootLevel(org.apache.logging.log4j.Level.WARN);
+		dir = Files.createTempDirectory("benchmark").toFile();
+		files = BenchmarkData.writeCsvs(dir, rows, projects, 0);
+		Main.db = new DbConnection(new File(dir, "db"));
+		main = new Main();
+		if(fastParser)
+			JCommander.newBuilder().addObject(main).build().parse("-fastParser");
+	}
+
+	@Setup(Level.Invocation)
+	public void clearLedger()
+	{
+		Main.db.execute("delete from " + DbConnection.TABLE_LEDGER);
+		Main.db.execute("delete from " + DbConnection.TABLE_CHECKPOINTS);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		Main.db.close();
+		BenchmarkData.delete(dir);
+	}
+
+	@Benchmark
+	public void processCSV(Blackhole blackhole)
+	{
+		for(File file : files)
+			blackhole.consume(main.processCSV(file));
+	}
+}
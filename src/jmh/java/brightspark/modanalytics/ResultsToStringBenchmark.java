@@ -0,0 +1,56 @@
+package brightspark.modanalytics;
+
+import brightspark.modanalytics.dao.Analytics;
+import brightspark.modanalytics.db.DbConnection;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link Main#resultsToString} for a query over all of the analytics rows
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResultsToStringBenchmark
+{
+	@Param({"100", "10000", "100000"})
+	public int rows;
+
+	@Param({"1", "10"})
+	public int projects;
+
+	private DbConnection db;
+	private Main main;
+
+	@Setup
+	public void setup()
+	{
+		Configurator.setRootLevel(Level.WARN);
+		db = new DbConnection(null);
+		List<Analytics> analytics = new ArrayList<>(rows);
+		for(String[] row : BenchmarkData.createRows(rows, projects, 0))
+			analytics.add(new Analytics(row));
+		db.insertAll(analytics);
+		main = new Main();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		db.close();
+	}
+
+	@Benchmark
+	public String resultsToString()
+	{
+		return db.executeSingleResult("select * from " + DbConnection.TABLE_ANALYTICS, main::resultsToString);
+	}
+}
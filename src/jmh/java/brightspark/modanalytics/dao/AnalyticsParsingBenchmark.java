@@ -0,0 +1,54 @@
+package brightspark.modanalytics.dao;
+
+import brightspark.modanalytics.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of parsing a single CSV row, and of parsing a single date
+ * The rows are cycled through, so the row count controls how much data is touched between repeats
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AnalyticsParsingBenchmark
+{
+	@Param({"1000", "100000"})
+	public int rows;
+
+	@Param({"1", "50"})
+	public int projects;
+
+	private String[][] csvRows;
+	private int index = 0;
+
+	@Setup
+	public void setup()
+	{
+		csvRows = BenchmarkData.createRows(rows, projects, 0);
+	}
+
+	private String[] nextRow()
+	{
+		String[] row = csvRows[index];
+		if(++index >= csvRows.length)
+			index = 0;
+		return row;
+	}
+
+	@Benchmark
+	public Analytics constructAnalytics()
+	{
+		return new Analytics(nextRow());
+	}
+
+	@Benchmark
+	public AnalyticDate parseDate()
+	{
+		return new AnalyticDate(nextRow()[0]);
+	}
+}
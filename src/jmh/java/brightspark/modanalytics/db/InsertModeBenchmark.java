@@ -0,0 +1,69 @@
+package brightspark.modanalytics.db;
+
+import brightspark.modanalytics.BenchmarkData;
+import brightspark.modanalytics.dao.Analytics;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares writing rows to an on-disk DB one at a time with {@link DbConnection#insert} against writing them all in
+ * one transaction with {@link DbConnection#insertAll}
+ * Each operation writes all of the rows, replacing the ones written by the previous operation
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InsertModeBenchmark
+{
+	@Param({"1000", "10000"})
+	public int rows;
+
+	@Param({"1", "10"})
+	public int projects;
+
+	private File dir;
+	private DbConnection db;
+	private List<Analytics> analytics;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		Configurator.setRootLevel(Level.WARN);
+		dir = Files.createTempDirectory("benchmark").toFile();
+		db = new DbConnection(new File(dir, "db"));
+		analytics = new ArrayList<>(rows);
+		for(String[] row : BenchmarkData.createRows(rows, projects, 0))
+			analytics.add(new Analytics(row));
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		db.close();
+		BenchmarkData.delete(dir);
+	}
+
+	@Benchmark
+	public void insertSingle()
+	{
+		for(Analytics a : analytics)
+			db.insert(a);
+	}
+
+	@Benchmark
+	public boolean insertBatched()
+	{
+		return db.insertAll(analytics);
+	}
+}
@@ -0,0 +1,88 @@
+package brightspark.modanalytics.db;
+
+import brightspark.modanalytics.BenchmarkData;
+import brightspark.modanalytics.dao.Analytics;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares inserting rows by preparing a new statement for each row against reusing one prepared statement, like the
+ * {@link DbConnection}'s statement cache does
+ * Run with the gc profiler (the default jmh.args) to compare the bytes allocated per operation
+ * Both use their own connection to the DB rather than the {@link DbConnection}'s, and write all of the rows in one
+ * transaction per operation, so that only the cost of preparing the statements differs
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatementCacheBenchmark
+{
+	@Param({"1000", "10000"})
+	public int rows;
+
+	private File dir;
+	private Connection connection;
+	private List<Analytics> analytics;
+
+	@Setup
+	public void setup() throws IOException, SQLException
+	{
+		Configurator.setRootLevel(Level.WARN);
+		dir = Files.createTempDirectory("benchmark").toFile();
+		//Creates the tables
+		File dbFile = new File(dir, "db");
+		new DbConnection(dbFile).close();
+		connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+		connection.setAutoCommit(false);
+		analytics = new ArrayList<>(rows);
+		for(String[] row : BenchmarkData.createRows(rows, 1, 0))
+			analytics.add(new Analytics(row));
+	}
+
+	@TearDown
+	public void tearDown() throws SQLException
+	{
+		connection.close();
+		BenchmarkData.delete(dir);
+	}
+
+	@Benchmark
+	public void preparePerRow() throws SQLException
+	{
+		for(Analytics a : analytics)
+			try(PreparedStatement statement = a.createStatement(connection))
+			{
+				statement.executeUpdate();
+			}
+		connection.commit();
+	}
+
+	@Benchmark
+	public void reuseStatement() throws SQLException
+	{
+		try(PreparedStatement statement = connection.prepareStatement(analytics.get(0).getInsertQuery()))
+		{
+			for(Analytics a : analytics)
+			{
+				a.setStatementValues(statement);
+				statement.executeUpdate();
+			}
+		}
+		connection.commit();
+	}
+}
@@ -0,0 +1,62 @@
+package brightspark.modanalytics.ingest;
+
+import brightspark.modanalytics.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the speed of the {@link AnalyticsCsvReader} and the {@link FastAnalyticsCsvReader} reading a whole file
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CsvReaderBenchmark
+{
+	@Param({"100000", "1000000"})
+	public int rows;
+
+	private File dir;
+	private File file;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		dir = Files.createTempDirectory("benchmark").toFile();
+		file = BenchmarkData.writeCsvs(dir, rows, 1, 0)[0];
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		BenchmarkData.delete(dir);
+	}
+
+	@Benchmark
+	public int readOpenCsv() throws IOException
+	{
+		return read(new AnalyticsCsvReader(file));
+	}
+
+	@Benchmark
+	public int readFast() throws IOException
+	{
+		return read(new FastAnalyticsCsvReader(file));
+	}
+
+	private static int read(AnalyticsReader reader) throws IOException
+	{
+		try(AnalyticsReader r = reader)
+		{
+			//noinspection StatementWithEmptyBody
+			while(r.nextChunk() != null);
+			return r.getNumRows();
+		}
+	}
+}
@@ -1,24 +1,42 @@
 package brightspark.modanalytics;
 
-import brightspark.modanalytics.dao.Analytics;
-import brightspark.modanalytics.dao.Project;
+import brightspark.modanalytics.archive.ArchiveReplay;
+import brightspark.modanalytics.archive.ProcessedArchive;
+import brightspark.modanalytics.dao.LedgerEntry;
+import brightspark.modanalytics.db.CachedResult;
 import brightspark.modanalytics.db.DbConnection;
+import brightspark.modanalytics.db.QueryCache;
+import brightspark.modanalytics.db.ResultCursor;
+import brightspark.modanalytics.db.RollupTables;
+import brightspark.modanalytics.ingest.AnalyticsChunk;
+import brightspark.modanalytics.ingest.AnalyticsReader;
+import brightspark.modanalytics.ingest.AnalyticsWriter;
+import brightspark.modanalytics.ingest.ChunkSource;
+import brightspark.modanalytics.ingest.DirectoryWatcher;
+import brightspark.modanalytics.ingest.GroupCommitPolicy;
+import brightspark.modanalytics.ingest.IngestLedger;
+import brightspark.modanalytics.ingest.IngestPipeline;
+import brightspark.modanalytics.ingest.IngestQueue;
+import brightspark.modanalytics.ingest.ProjectRegistry;
+import brightspark.modanalytics.ingest.RejectPolicy;
+import brightspark.modanalytics.ingest.RowRejects;
+import brightspark.modanalytics.ingest.WriteResult;
+import brightspark.modanalytics.metrics.Metrics;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
-import com.opencsv.CSVParser;
-import com.opencsv.CSVReader;
-import com.opencsv.CSVReaderBuilder;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
-import java.nio.file.*;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -29,14 +47,28 @@ public class Main
 	private File csvInputDir = new File(DEFAULT_CSV_DIR, "input");
 	private File csvProcessedDir = new File(DEFAULT_CSV_DIR, "processed");
 	private File csvFailedDir = new File(DEFAULT_CSV_DIR, "failed");
-
-	private static final CSVParser CSV_PARSER = new CSVParser();
-	private static final Object lock = new Object();
+	private File csvRestoredDir = new File(DEFAULT_CSV_DIR, "restored");
+
+	private static final String COMMAND_STOP = "stop";
+	private static final String COMMAND_REBUILD_ROLLUPS = "rebuild rollups";
+	private static final String COMMAND_CACHE_STATS = "cache stats";
+	private static final String COMMAND_CACHE_CLEAR = "cache clear";
+	private static final String COMMAND_METRICS = "metrics";
+	private static final String COMMAND_LEDGER = "ledger";
+	private static final String COMMAND_COMPACT = "compact";
+	private static final String COMMAND_RESTORE = "restore ";
+	private static final String QUERY_LEDGER = "select file_name, datetime(ingested_at / 1000, 'unixepoch', 'localtime') as ingested, duration_ms, rows, rows_written, file_size, hash " +
+		"from " + DbConnection.TABLE_LEDGER + " order by ingested_at desc";
 	private static Logger log = LogManager.getLogger(Main.class);
 	static DbConnection db;
-	private static ScheduledExecutorService scheduledExecutor = null;
-	private static Thread watcherThread = null;
-	private boolean shuttingDown = false;
+	private ProjectRegistry projectRegistry = null;
+	private static ScheduledExecutorService metricsExecutor = null;
+	private static ScheduledExecutorService compactExecutor = null;
+	private static ProcessedArchive archive = null;
+	private static DirectoryWatcher watcher = null;
+	private static IngestPipeline pipeline = null;
+	//Lines read from the console by the console reader thread
+	private final BlockingQueue<String> consoleLines = new LinkedBlockingQueue<>();
 
 	@Parameter(names = "-help", description = "Display this help", help = true)
 	private boolean help;
@@ -47,9 +79,63 @@ public class Main
 	@Parameter(names = "-dir", description = "Directory path. Can't be used with -file", validateWith = DirParamValidator.class)
 	private String dirPath;
 
+	@Parameter(names = "-threads", description = "Number of threads to parse CSVs with")
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	@Parameter(names = "-fastParser", description = "Use the faster CSV parser specialised for the Curse analytics export")
+	private boolean fastParser = false;
+
+	@Parameter(names = "-skipUnchanged", description = "Skip writing analytics which already exist in the DB with the same values")
+	private boolean skipUnchanged = false;
+
+	@Parameter(names = "-checkpointRows", description = "Rows of a CSV to commit at a time, so that large CSVs can resume after a restart. 0 commits each CSV in one transaction")
+	private int checkpointRows = 100_000;
+
+	@Parameter(names = "-settleMillis", description = "Milliseconds a new CSV's size and modified time must stay the same before it's processed")
+	private long settleMillis = DirectoryWatcher.DEFAULT_SETTLE_MILLIS;
+
+	@Parameter(names = "-compactAfterDays", description = "Days after which processed CSVs are compacted into archive segments, checked hourly. 0 disables compaction")
+	private int compactAfterDays = 7;
+
+	@Parameter(names = "-maxErrorRate", description = "Max fraction of a CSV's rows which can be invalid before the whole file fails. Invalid rows are written next to the file in the failed directory")
+	private double maxErrorRate = RejectPolicy.DEFAULT_MAX_ERROR_RATE;
+
+	@Parameter(names = "-queueSize", description = "Max number of CSVs waiting to be parsed before the input directory stops being scanned")
+	private int queueSize = IngestQueue.DEFAULT_CAPACITY;
+
+	@Parameter(names = "-schedule", description = "Order to parse waiting CSVs in - FIFO, SMALLEST_FIRST or ROUND_ROBIN (between projects)")
+	private IngestQueue.Scheduling scheduling = IngestQueue.Scheduling.ROUND_ROBIN;
+
+	@Parameter(names = "-groupCommitRows", description = "Number of rows from small CSVs to write together in one transaction, or 0 to write each CSV on its own")
+	private int groupCommitRows = GroupCommitPolicy.DEFAULT_MAX_ROWS;
+
+	@Parameter(names = "-groupCommitMillis", description = "Max time in milliseconds a small CSV waits for others to be written with")
+	private long groupCommitMillis = GroupCommitPolicy.DEFAULT_MAX_DELAY_MILLIS;
+
+	@Parameter(names = "-readers", description = "Max number of read only DB connections for console queries")
+	private int numReaders = DbConnection.DEFAULT_NUM_READERS;
+
+	@Parameter(names = "-pageSize", description = "Number of console query result rows to show before asking to show more")
+	private int pageSize = 50;
+
+	@Parameter(names = "-maxRows", description = "Max number of console query result rows to show")
+	private int maxRows = 10_000;
+
+	@Parameter(names = "-promptTimeout", description = "Seconds to wait for an answer when asked to show more console query results. The query holds a read transaction open until then, which stops the DB's WAL from being checkpointed")
+	private int promptTimeout = 60;
+
+	@Parameter(names = "-queryCacheSize", description = "Max MiB of console query results to cache. 0 disables the cache")
+	private int queryCacheSize = 16;
+
+	@Parameter(names = "-metricsInterval", description = "Seconds between logging ingest and DB metrics. 0 disables the log line")
+	private int metricsInterval = 0;
+
 	@Parameter(names = "-db", description = "Database file location", validateWith = FileParamValidator.class)
 	private String dbPath;
 
+	@Parameter(names = "-rebuild", description = "Location of a new database file to rebuild from all of the processed and archived CSVs, then quit. Can't be used with -file")
+	private String rebuildPath;
+
 	public static void main(String... args)
 	{
 		Main main = new Main();
@@ -67,6 +153,16 @@ public class Main
 			log.warn("Can't use both '-file' and '-dir'!");
 			showUsage = true;
 		}
+		if(main.rebuildPath != null && main.filePath != null)
+		{
+			log.warn("Can't use both '-rebuild' and '-file'!");
+			showUsage = true;
+		}
+		if(main.rebuildPath != null && new File(main.rebuildPath).exists())
+		{
+			log.warn("Rebuild DB '{}' already exists - it must be a new file", main.rebuildPath);
+			showUsage = true;
+		}
 		if(showUsage)
 		{
 			jCommander.usage();
@@ -80,34 +176,75 @@ public class Main
 	{
 		init();
 
-		if(filePath != null)
+		if(rebuildPath != null)
+			rebuildDB();
+		else if(filePath != null)
 		{
 			//Just process the single file then quit
-			handleCSV(new File(filePath));
+			File file = new File(filePath);
+			boolean result = false;
+			try
+			{
+				result = processCSV(file);
+			}
+			catch(Exception e)
+			{
+				log.error(String.format("Failed to process CSV %s", file.getName()), e);
+			}
+			moveCSV(file, result);
 		}
 		else
 		{
 			//Quit when we get "stop" from the console
-			log.info("Enter 'stop' to shutdown\n");
+			log.info("Enter 'stop' to shutdown, '{}' to rebuild the rollup tables, '{}' or '{}' for the query cache, '{}' to show metrics, '{}' to show ingested files, " +
+				"'{}' or '{}<file>' for archived files, or an SQL query to run\n",
+				COMMAND_REBUILD_ROLLUPS, COMMAND_CACHE_STATS, COMMAND_CACHE_CLEAR, COMMAND_METRICS, COMMAND_LEDGER, COMMAND_COMPACT, COMMAND_RESTORE);
+			startConsoleReader();
+			String line;
+			while(!COMMAND_STOP.equalsIgnoreCase(line = takeConsoleLine()))
+				handleConsoleInput(line);
+		}
+		shutdown();
+	}
+
+	/**
+	 * Reads lines from the console on a separate thread, so that prompts can stop waiting for an answer
+	 * The stop command is added once the input ends
+	 */
+	private void startConsoleReader()
+	{
+		Thread thread = new Thread(() ->
+		{
 			Console console = System.console();
-			if(console != null)
+			//Fallback for dev environment
+			Scanner scanner = console == null ? new Scanner(System.in) : null;
+			try
 			{
 				String line;
-				while(!"stop".equalsIgnoreCase(line = console.readLine()))
-					tryExecuteQuery(line);
+				while((line = console != null ? console.readLine() : scanner.nextLine()) != null)
+					consoleLines.add(line);
 			}
-			else
+			catch(NoSuchElementException e)
 			{
-				//Fallback for dev environment
-				try(Scanner scanner = new Scanner(System.in))
-				{
-					String line;
-					while(!"stop".equalsIgnoreCase(line = scanner.nextLine()))
-						tryExecuteQuery(line);
-				}
+				log.debug("Reached the end of the console input");
 			}
+			consoleLines.add(COMMAND_STOP);
+		}, "Console Reader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private String takeConsoleLine()
+	{
+		try
+		{
+			return consoleLines.take();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return COMMAND_STOP;
 		}
-		shutdown();
 	}
 
 	@SuppressWarnings("ResultOfMethodCallIgnored")
@@ -122,12 +259,16 @@ public class Main
 		{
 			log.error("Couldn't initialise JDBC", e);
 		}
-		db = new DbConnection(dbPath == null ? DEFAULT_DB_FILE : new File(dbPath));
+		File dbFile = rebuildPath != null ? new File(rebuildPath) : dbPath == null ? DEFAULT_DB_FILE : new File(dbPath);
+		db = new DbConnection(dbFile, numReaders);
+		db.getQueryCache().setMaxSize(Math.max(0, queryCacheSize) * 1024L * 1024L);
+		Metrics.register("Database", db.getMetrics());
 
 		File csvDir = dirPath == null ? DEFAULT_CSV_DIR : new File(dirPath);
 		csvInputDir = new File(csvDir, "input");
 		csvProcessedDir = new File(csvDir, "processed");
 		csvFailedDir = new File(csvDir, "failed");
+		csvRestoredDir = new File(csvDir, "restored");
 
 		//Make sure CSV directories is created
 		csvInputDir.mkdirs();
@@ -135,217 +276,316 @@ public class Main
 		csvFailedDir.mkdir();
 
 		//Setup CSV input directory watcher
-		if(filePath == null)
+		if(filePath == null && rebuildPath == null)
 		{
-			try
+			pipeline = new IngestPipeline(db, getProjectRegistry(), Math.max(1, numThreads), fastParser, skipUnchanged,
+				Math.max(0, checkpointRows), getRejectPolicy(), new IngestQueue(Math.max(1, queueSize), scheduling),
+				new GroupCommitPolicy(Math.max(0, groupCommitRows), Math.max(0, groupCommitMillis)));
+			Metrics.register("Ingest", pipeline.getMetrics());
+			if(metricsInterval > 0)
 			{
-				// https://docs.oracle.com/javase/tutorial/essential/io/notification.html
-				//Create and register watcher for CSV input directory
-				WatchService watcher = FileSystems.getDefault().newWatchService();
-				Path dir = csvInputDir.toPath();
-				WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
-
-				//Create
-				watcherThread = new Thread(() ->
+				metricsExecutor = Executors.newSingleThreadScheduledExecutor(runnable ->
 				{
-					while(true)
-					{
-						//Wait for file creation
-						WatchKey notifiedKey;
-						try
-						{
-							notifiedKey = watcher.take();
-						}
-						catch(InterruptedException e)
-						{
-							if(!shuttingDown)
-								log.error("CSV input directory watcher interrupted while waiting", e);
-							return;
-						}
-
-						if(!key.equals(notifiedKey))
-							continue;
-
-						//Handle each file creation
-						for(WatchEvent<?> event : notifiedKey.pollEvents())
-						{
-							if(event.kind().equals(StandardWatchEventKinds.OVERFLOW))
-								continue;
-
-							Path name = (Path) event.context();
-							Path child = dir.resolve(name);
-							log.debug("File creation detected: {}", child);
-
-							handleCSV(child.toFile());
-						}
-
-						//Reset key - if no longer valid, then quit
-						if(!notifiedKey.reset())
-						{
-							log.error("CSV input directory watcher no longer valid!");
-							shutdown();
-							return;
-						}
-					}
+					Thread thread = new Thread(runnable, "Metrics Logger");
+					thread.setDaemon(true);
+					return thread;
 				});
-				watcherThread.start();
-
-				//Process any existing CSV
-				processCSVs();
+				metricsExecutor.scheduleAtFixedRate(this::logMetrics, metricsInterval, metricsInterval, TimeUnit.SECONDS);
 			}
-			catch(IOException e)
+
+			archive = new ProcessedArchive(csvProcessedDir, new IngestLedger(db));
+			if(compactAfterDays > 0)
 			{
-				log.error("Error creating CSV input directory watcher", e);
-				log.info("Falling back to scheduled executor service...");
-				//Setup CSV input checker
-				scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
-				//Runs every 30mins
-				scheduledExecutor.scheduleAtFixedRate(this::processCSVs, 5, 1800, TimeUnit.SECONDS);
+				compactExecutor = Executors.newSingleThreadScheduledExecutor(runnable ->
+				{
+					Thread thread = new Thread(runnable, "Archive Compactor");
+					thread.setDaemon(true);
+					return thread;
+				});
+				compactExecutor.scheduleWithFixedDelay(this::compactProcessedCSVs, 1, 60, TimeUnit.MINUTES);
 			}
+
+			//Watch the CSV input directory, which also picks up any CSVs already in it
+			watcher = new DirectoryWatcher(csvInputDir, this::handleCSVs, Math.max(0, settleMillis),
+				DirectoryWatcher.DEFAULT_MIN_POLL_MILLIS, DirectoryWatcher.DEFAULT_MAX_POLL_MILLIS);
+			watcher.start();
 		}
 	}
 
-	private void shutdown()
+	private RejectPolicy getRejectPolicy()
 	{
-		log.info("Shutting down...");
-		synchronized(lock)
-		{
-			shuttingDown = true;
-			if(watcherThread != null)
-				watcherThread.interrupt();
-			if(scheduledExecutor != null)
-				scheduledExecutor.shutdown();
-		}
+		return new RejectPolicy(Math.max(0, maxErrorRate), csvFailedDir);
 	}
 
-	private void tryExecuteQuery(String query)
+	/**
+	 * Replays all of the processed and archived CSVs into the new DB as fast as possible
+	 */
+	private void rebuildDB()
 	{
-		if(StringUtils.isEmpty(query.trim()))
-			return;
+		log.info("Rebuilding DB {} from the processed CSVs in {}", rebuildPath, csvProcessedDir.getPath());
 		try
 		{
-			System.out.println(db.executeSingleResult(query, this::resultsToString));
+			ArchiveReplay replay = new ArchiveReplay(db, Math.max(1, numThreads), fastParser, ArchiveReplay.DEFAULT_TRANSACTION_ROWS);
+			ArchiveReplay.Result result = replay.replay(csvProcessedDir, ProcessedArchive.openReadOnly(csvProcessedDir));
+			log.info("Rebuilt DB {} - {}", rebuildPath, result);
 		}
-		catch(Exception e)
+		catch(IOException | SQLException e)
 		{
-			log.error("Error trying to use console input as query", e);
+			log.error(String.format("Failed to rebuild DB %s", rebuildPath), e);
 		}
 	}
 
-	String resultsToString(ResultSet results) throws SQLException
+	/**
+	 * Gets the registry of projects, loading it from the DB if it hasn't been yet
+	 */
+	private ProjectRegistry getProjectRegistry()
+	{
+		if(projectRegistry == null)
+			projectRegistry = new ProjectRegistry(db);
+		return projectRegistry;
+	}
+
+	private void shutdown()
 	{
-		ResultSetMetaData metaData = results.getMetaData();
-		int numColumns = metaData.getColumnCount();
+		log.info("Shutting down...");
+		if(watcher != null)
+			watcher.stop();
+		if(metricsExecutor != null)
+			metricsExecutor.shutdown();
+		if(compactExecutor != null)
+			compactExecutor.shutdown();
+		//This only returns once the pipeline has stopped writing, so the DB can be closed
+		if(pipeline != null)
+			pipeline.shutdown();
+		logMetrics();
+		Metrics.unregister("Ingest");
+		Metrics.unregister("Database");
+		db.close();
+	}
 
-		List<List<String>> resultTable = new ArrayList<>();
-		List<String> columnNames = new ArrayList<>();
-		for(int c = 1; c <= numColumns; c++)
-			columnNames.add(metaData.getColumnName(c));
-		resultTable.add(columnNames);
+	private void logMetrics()
+	{
+		if(pipeline != null)
+			log.info("Ingest metrics: {}", pipeline.getMetrics());
+		log.info("DB metrics: {}", db.getMetrics());
+	}
 
-		//Collect all results into lists
-		do
+	/**
+	 * Compacts the processed CSVs which are old enough into archive segments
+	 */
+	private void compactProcessedCSVs()
+	{
+		try
 		{
-			List<String> resultRow = new ArrayList<>();
-			for(int i = 1; i <= numColumns; i++)
-				resultRow.add(results.getString(i));
-			resultTable.add(resultRow);
+			int numCompacted = archive.compact(TimeUnit.DAYS.toMillis(Math.max(0, compactAfterDays)));
+			if(numCompacted > 0)
+				log.info("Compacted {} processed CSVs - {}", numCompacted, archive);
 		}
-		while(results.next());
-
-		//Find the largest value width for each column
-		List<Integer> largestWidths = new ArrayList<>(Collections.nCopies(numColumns, 0));
-		for(List<String> rowData : resultTable)
+		catch(Exception e)
 		{
-			for(int column = 0; column < numColumns; column++)
-			{
-				String value = rowData.get(column);
-				int valueLength = value.length();
-				if(valueLength > largestWidths.get(column))
-					largestWidths.set(column, valueLength);
-			}
+			log.error("Failed to compact processed CSVs", e);
 		}
+	}
 
-		StringBuilder sb = new StringBuilder(" ");
-		//Column names
-		for(int i = 0; i < numColumns; i++)
+	/**
+	 * Streams the original content of an archived CSV out to the restored directory
+	 */
+	private void restoreProcessedCSV(String name)
+	{
+		try
 		{
-			sb.append(pad(columnNames.get(i), largestWidths.get(i)));
-			if(i < numColumns - 1)
-				sb.append(" | ");
+			File file = archive.restore(name, csvRestoredDir);
+			if(file == null)
+				log.warn("There's no archived CSV called {}", name);
+			else
+				log.info("Restored CSV {} to {}", name, file.getPath());
 		}
-
-		sb.append(" \n-");
-
-		//Separator
-		for(int i = 0; i < numColumns; i++)
+		catch(IOException e)
 		{
-			sb.append(StringUtils.repeat("-", largestWidths.get(i)));
-			if(i < numColumns - 1)
-				sb.append("-+-");
+			log.error(String.format("Failed to restore CSV %s", name), e);
 		}
+	}
 
-		sb.append("-");
-
-		//Result rows
-		for(int row = 1; row < resultTable.size(); row++)
+	/**
+	 * Runs the console input as a command if it matches one, otherwise as a query
+	 */
+	private void handleConsoleInput(String line)
+	{
+		if(COMMAND_REBUILD_ROLLUPS.equalsIgnoreCase(line.trim()))
 		{
-			List<String> rowList = resultTable.get(row);
-			sb.append("\n ");
-			for(int i = 0; i < numColumns; i++)
+			try
+			{
+				RollupTables.rebuild(db);
+			}
+			catch(SQLException e)
 			{
-				sb.append(pad(rowList.get(i), largestWidths.get(i)));
-				if(i < numColumns - 1)
-					sb.append(" | ");
+				log.error("Failed to rebuild rollup tables", e);
 			}
-			sb.append(" ");
 		}
-
-		return sb.toString();
-	}
-
-	private String pad(String value, int maxLength)
-	{
-		int valueLength = value.length();
-		return StringUtils.repeat(" ", maxLength - valueLength) + value;
+		else if(COMMAND_METRICS.equalsIgnoreCase(line.trim()))
+			logMetrics();
+		else if(COMMAND_LEDGER.equalsIgnoreCase(line.trim()))
+			tryExecuteQuery(QUERY_LEDGER);
+		else if(archive != null && COMMAND_COMPACT.equalsIgnoreCase(line.trim()))
+			compactProcessedCSVs();
+		else if(archive != null && line.trim().toLowerCase(Locale.ROOT).startsWith(COMMAND_RESTORE))
+			restoreProcessedCSV(line.trim().substring(COMMAND_RESTORE.length()).trim());
+		else if(COMMAND_CACHE_STATS.equalsIgnoreCase(line.trim()))
+			log.info("Query cache: {}", db.getQueryCache());
+		else if(COMMAND_CACHE_CLEAR.equalsIgnoreCase(line.trim()))
+		{
+			db.getQueryCache().invalidateAll();
+			log.info("Cleared query cache");
+		}
+		else
+			tryExecuteQuery(line);
 	}
 
-	private void processCSVs()
+	private void tryExecuteQuery(String query)
 	{
-		synchronized(lock)
+		if(StringUtils.isEmpty(query.trim()))
+			return;
+		try
 		{
-			File[] files = csvInputDir.listFiles();
-			if(files == null)
+			PrintWriter out = new PrintWriter(System.out);
+			ResultRenderer renderer = new ResultRenderer(pageSize, maxRows, this::promptForMore);
+			QueryCache cache = db.getQueryCache();
+			String normalisedQuery = QueryCache.normalise(query);
+			boolean cacheable = cache.getMaxSize() > 0 && QueryCache.isCacheable(normalisedQuery);
+			CachedResult cached = cacheable ? cache.get(normalisedQuery) : null;
+			if(cached != null)
 			{
-				log.error("Problem getting files from {}", csvInputDir.getAbsolutePath());
+				Iterator<String[]> rows = cached.getRows().iterator();
+				int numRows = renderer.render(cached.getColumnNames(), () -> rows.hasNext() ? rows.next() : null, out);
+				System.out.printf("%n(%s rows, cached)%n", numRows);
 				return;
 			}
-			if(files.length <= 0)
+
+			//Use a read only connection so that queries and ingestion don't block each other
+			//The results are streamed to the console as they're read, so large results don't need to fit in memory
+			long cacheVersion = cache.getVersion();
+			try(ResultCursor<Integer> cursor = db.queryReadOnly(query, results ->
+				renderResults(results, renderer, out, cacheable ? normalisedQuery : null, cacheVersion)))
 			{
-				log.debug("No CSVs to process in {}", csvInputDir.getPath());
-				return;
+				if(cursor.hasNext())
+					System.out.printf("%n(%s rows)%n", cursor.next());
+				else
+					System.out.println("No results");
 			}
+		}
+		catch(Exception e)
+		{
+			log.error("Error trying to use console input as query", e);
+		}
+	}
+
+	/**
+	 * Renders the results, and caches them if all of the rows were rendered and they're small enough
+	 * @param normalisedQuery The normalised query to cache the results for, or null to not cache them
+	 * @param cacheVersion The version of the cache from before the query was executed
+	 * @return The number of rows rendered
+	 */
+	private int renderResults(ResultSet results, ResultRenderer renderer, PrintWriter out, String normalisedQuery, long cacheVersion) throws SQLException
+	{
+		String[] columnNames = ResultRenderer.getColumnNames(results);
+		ResultRenderer.RowSource source = ResultRenderer.rowSource(results);
+		if(normalisedQuery == null)
+			return renderer.render(columnNames, source, out);
+
+		QueryCache cache = db.getQueryCache();
+		CachedResult.Builder builder = new CachedResult.Builder(columnNames, cache.getMaxResultSize());
+		boolean[] complete = {false};
+		int numRows = renderer.render(columnNames, () ->
+		{
+			String[] row = source.next();
+			if(row == null)
+				complete[0] = true;
+			else
+				builder.add(row);
+			return row;
+		}, out);
+
+		//Results which were cut short by the user or the row limit aren't complete, so can't be cached
+		CachedResult result = complete[0] ? builder.build() : null;
+		if(result != null)
+			cache.put(normalisedQuery, result, cacheVersion);
+		return numRows;
+	}
 
-			log.info("Found {} CSVs to process", files.length);
-			for(File file : files)
-				handleCSV(file);
+	String resultsToString(ResultSet results) throws SQLException
+	{
+		StringWriter writer = new StringWriter();
+		new ResultRenderer(Integer.MAX_VALUE, Integer.MAX_VALUE, () -> true).render(results, new PrintWriter(writer));
+		return writer.toString();
+	}
 
-			log.info("Finished processing CSVs");
+	/**
+	 * Asks on the console whether to show the next page of results
+	 */
+	private boolean promptForMore()
+	{
+		System.out.print("\n-- More? (enter to continue, 'q' to stop) --");
+		System.out.flush();
+		String line;
+		try
+		{
+			line = consoleLines.poll(Math.max(1, promptTimeout), TimeUnit.SECONDS);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		//Stop rather than hold the query's read transaction open indefinitely, so that the WAL doesn't grow while ingesting
+		if(line == null)
+		{
+			System.out.printf("%n-- No answer after %ss - stopped --", Math.max(1, promptTimeout));
+			return false;
 		}
+		if(COMMAND_STOP.equalsIgnoreCase(line.trim()))
+		{
+			consoleLines.add(line);
+			return false;
+		}
+		return !"q".equalsIgnoreCase(line.trim());
 	}
 
-	private void handleCSV(File file)
+	/**
+	 * Submits a batch of CSVs which have finished being written to the ingest pipeline
+	 * This blocks the watcher while the ingest queue is full, so the directory isn't scanned until there's room
+	 */
+	private void handleCSVs(List<File> files)
 	{
-		boolean result = false;
+		log.info("Found {} CSVs to process", files.size());
+		files.forEach(this::handleCSV);
+	}
+
+	/**
+	 * Submits the CSV to the ingest pipeline, moving it to the processed or failed directory once done
+	 * If the pipeline is stopped before the CSV is done then its result is cancelled, so it's left in the input directory
+	 * @return A future which completes once the file has been moved, or null if the file is already being processed
+	 */
+	private CompletableFuture<Void> handleCSV(File file)
+	{
+		CompletableFuture<Boolean> result;
 		try
 		{
-			result = processCSV(file);
+			result = pipeline.submit(file);
 		}
-		catch(Exception e)
+		catch(RejectedExecutionException e)
 		{
-			log.error(String.format("Failed to process CSV %s", file.getName()), e);
+			log.warn("Can't process CSV {} while shutting down", file.getName());
+			return null;
 		}
-		if(result)
+		return result == null ? null : result.thenAccept(success -> moveCSV(file, success));
+	}
+
+	/**
+	 * Moves the CSV to the processed directory if successful, otherwise to the failed directory
+	 */
+	private void moveCSV(File file, boolean success)
+	{
+		if(success)
 		{
 			if(!file.renameTo(new File(csvProcessedDir, file.getName())))
 				log.warn("Failed to move CSV {} to the processed directory!", file.getName());
@@ -361,59 +601,73 @@ public class Main
 	boolean processCSV(File file)
 	{
 		log.info("Processing CSV {}", file.getPath());
-		List<String[]> rows = null;
-		try(CSVReader reader = new CSVReaderBuilder(new FileReader(file))
-			.withSkipLines(1).withCSVParser(CSV_PARSER).build())
-		{
-			rows = reader.readAll();
-		}
-		catch(FileNotFoundException e)
+		long start = System.currentTimeMillis();
+		IngestLedger ledger = new IngestLedger(db);
+		String hash;
+		try
 		{
-			log.error(String.format("CSV file %s couldn't be found", file.getPath()), e);
+			hash = IngestLedger.hash(file);
 		}
 		catch(IOException e)
 		{
 			log.error(String.format("Failed to read CSV file %s", file.getPath()), e);
-		}
-		if(rows == null)
 			return false;
+		}
+		LedgerEntry duplicate = ledger.find(hash);
+		if(duplicate != null)
+		{
+			log.info("CSV {} has the same content as {} which was already ingested - skipping", file.getPath(), duplicate.getFileName());
+			return true;
+		}
 
-		log.info("Read {} rows from CSV", rows.size());
-
-		//Process each row of the CSV
-		boolean ensuredProject = false;
-		for(String[] row : rows)
+		int numRows;
+		WriteResult result;
+		RejectPolicy rejectPolicy = getRejectPolicy();
+		RowRejects rejects = new RowRejects();
+		try(AnalyticsReader reader = AnalyticsReader.open(file, fastParser, rejects))
 		{
-			log.trace("Processing row: {}", Arrays.toString(row));
-			Analytics analytics = new Analytics(row);
-			//Check that the project exists in the DB - if not, add it
-			if(!ensuredProject)
+			//Check the rejected rows before each checkpoint and at the end of the file, so that too many invalid rows
+			//roll back everything since the last checkpoint. Checkpoints which passed the check stay committed.
+			ChunkSource source = new ChunkSource()
 			{
-				ensuredProject = true;
-				Project project;
-				try
-				{
-					project = db.executeSingleResult("select * from " + DbConnection.TABLE_PROJECTS + " where id = " + analytics.getProjectId(), Project::new);
-				}
-				catch(RuntimeException e)
+				@Override
+				public AnalyticsChunk nextChunk() throws IOException
 				{
-					log.error("Failed to get project from DB with id " + analytics.getProjectId(), e);
-					return false;
+					AnalyticsChunk chunk = reader.nextChunk();
+					if(chunk == null)
+						rejectPolicy.check(file, rejects, reader.getNumRows());
+					return chunk;
 				}
 
-				if(project == null)
+				@Override
+				public void beforeCheckpoint() throws IOException
 				{
-					project = new Project(analytics.getProjectId(), row[2]);
-					log.info("{} doesn't exist in DB - adding now", project);
-					db.insert(project);
+					if(rejectPolicy.isOverMaxErrorRate(rejects.getNumRejected(), reader.getNumRows()))
+						rejectPolicy.check(file, rejects, reader.getNumRows());
 				}
-			}
-
-			//Update the DB with each of the analytics
-			db.insert(analytics);
+			};
+			result = new AnalyticsWriter(db, getProjectRegistry(), skipUnchanged, Math.max(0, checkpointRows)).write(source, file);
+			numRows = reader.getNumRows();
+		}
+		catch(FileNotFoundException e)
+		{
+			log.error(String.format("CSV file %s couldn't be found", file.getPath()), e);
+			return false;
+		}
+		catch(IOException e)
+		{
+			log.error(String.format("Failed to read CSV file %s", file.getPath()), e);
+			return false;
+		}
+		catch(SQLException e)
+		{
+			log.error(String.format("Failed to write CSV file %s to the DB", file.getPath()), e);
+			return false;
 		}
 
-		log.info("CSV {} processed - added/updated {} analytics in DB", file.getPath(), rows.size());
+		log.info("Read {} rows from CSV", numRows);
+		log.info("CSV {} processed - {} analytics in DB", file.getPath(), result);
+		ledger.record(new LedgerEntry(hash, file.getName(), file.length(), numRows, result.getNumWritten(), start, System.currentTimeMillis() - start));
 		return true;
 	}
 }
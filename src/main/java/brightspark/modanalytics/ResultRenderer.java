@@ -0,0 +1,184 @@
+package brightspark.modanalytics;
+
+import java.io.PrintWriter;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Renders query results as a table, streaming the rows so that memory use doesn't depend on the number of results
+ * The first page of rows is buffered to work out the column widths, then the rest of the rows are written as they're
+ * read using the same widths
+ */
+class ResultRenderer
+{
+	private static final String NULL = "NULL";
+
+	private final int pageSize;
+	private final int maxRows;
+	private final BooleanSupplier continuePrompt;
+
+	/**
+	 * @param pageSize The number of rows to write before asking whether to continue
+	 * @param maxRows The max number of rows to write
+	 * @param continuePrompt Asked after each page whether to write the next one
+	 */
+	ResultRenderer(int pageSize, int maxRows, BooleanSupplier continuePrompt)
+	{
+		this.pageSize = Math.max(1, pageSize);
+		this.maxRows = Math.max(1, maxRows);
+		this.continuePrompt = continuePrompt;
+	}
+
+	/**
+	 * Writes the results as a table
+	 * @param results The results, which must already be on the first row
+	 * @param out Where to write the table to
+	 * @return The number of rows written
+	 */
+	int render(ResultSet results, PrintWriter out) throws SQLException
+	{
+		return render(getColumnNames(results), rowSource(results), out);
+	}
+
+	/**
+	 * Writes the rows as a table
+	 * @param columnNames The names of each column
+	 * @param rows The rows to write, which must have at least one row
+	 * @param out Where to write the table to
+	 * @return The number of rows written
+	 */
+	int render(String[] columnNames, RowSource rows, PrintWriter out) throws SQLException
+	{
+		int numColumns = columnNames.length;
+		int[] widths = new int[numColumns];
+		for(int i = 0; i < numColumns; i++)
+			widths[i] = columnNames[i].length();
+
+		//Buffer the first page to find the largest value width for each column
+		int firstPageSize = Math.min(pageSize, maxRows);
+		List<String[]> firstPage = new ArrayList<>(Math.min(firstPageSize, 1024));
+		String[] row;
+		while(firstPage.size() < firstPageSize && (row = rows.next()) != null)
+		{
+			for(int i = 0; i < numColumns; i++)
+				widths[i] = Math.max(widths[i], row[i].length());
+			firstPage.add(row);
+		}
+
+		//Column names
+		out.print(' ');
+		writeRow(out, columnNames, widths);
+		out.print(" \n-");
+
+		//Separator
+		for(int i = 0; i < numColumns; i++)
+		{
+			repeat(out, '-', widths[i]);
+			if(i < numColumns - 1)
+				out.print("-+-");
+		}
+		out.print('-');
+
+		//Result rows
+		for(String[] pageRow : firstPage)
+			writeResultRow(out, pageRow, widths);
+		int numRows = firstPage.size();
+		firstPage.clear();
+
+		//Stream the remaining rows, if the first page didn't already read them all
+		boolean hasMore = numRows == firstPageSize;
+		while(hasMore && (row = rows.next()) != null)
+		{
+			if(numRows >= maxRows)
+			{
+				out.printf("%n-- Stopped at the limit of %s rows --", maxRows);
+				break;
+			}
+			if(numRows % pageSize == 0)
+			{
+				out.flush();
+				if(!continuePrompt.getAsBoolean())
+					break;
+			}
+			writeResultRow(out, row, widths);
+			numRows++;
+		}
+		out.flush();
+		return numRows;
+	}
+
+	/**
+	 * Gets the column names of the results
+	 */
+	static String[] getColumnNames(ResultSet results) throws SQLException
+	{
+		ResultSetMetaData metaData = results.getMetaData();
+		String[] columnNames = new String[metaData.getColumnCount()];
+		for(int i = 0; i < columnNames.length; i++)
+			columnNames[i] = metaData.getColumnName(i + 1);
+		return columnNames;
+	}
+
+	/**
+	 * Gets a source of the rows of the results, which must already be on the first row
+	 * The results are only moved to the next row when it's needed
+	 */
+	static RowSource rowSource(ResultSet results) throws SQLException
+	{
+		int numColumns = results.getMetaData().getColumnCount();
+		boolean[] first = {true};
+		return () ->
+		{
+			if(!first[0] && !results.next())
+				return null;
+			first[0] = false;
+			String[] row = new String[numColumns];
+			for(int i = 0; i < numColumns; i++)
+			{
+				String value = results.getString(i + 1);
+				row[i] = value == null ? NULL : value;
+			}
+			return row;
+		};
+	}
+
+	private static void writeResultRow(PrintWriter out, String[] row, int[] widths)
+	{
+		out.print("\n ");
+		writeRow(out, row, widths);
+		out.print(' ');
+	}
+
+	private static void writeRow(PrintWriter out, String[] values, int[] widths)
+	{
+		for(int i = 0; i < values.length; i++)
+		{
+			//Values are right aligned
+			repeat(out, ' ', widths[i] - values[i].length());
+			out.print(values[i]);
+			if(i < values.length - 1)
+				out.print(" | ");
+		}
+	}
+
+	private static void repeat(PrintWriter out, char c, int count)
+	{
+		for(int i = 0; i < count; i++)
+			out.print(c);
+	}
+
+	/**
+	 * Supplies rows to be rendered
+	 */
+	interface RowSource
+	{
+		/**
+		 * @return The next row, or null if there are no more rows
+		 */
+		String[] next() throws SQLException;
+	}
+}
@@ -0,0 +1,331 @@
+package brightspark.modanalytics.archive;
+
+import brightspark.modanalytics.dao.LedgerEntry;
+import brightspark.modanalytics.dao.Project;
+import brightspark.modanalytics.db.DbBatch;
+import brightspark.modanalytics.db.DbConnection;
+import brightspark.modanalytics.db.RollupTables;
+import brightspark.modanalytics.ingest.AnalyticsChunk;
+import brightspark.modanalytics.ingest.AnalyticsReader;
+import brightspark.modanalytics.ingest.IngestLedger;
+import brightspark.modanalytics.ingest.RowRejects;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rebuilds a new DB from every processed CSV, both those still in the processed directory and those in the archive
+ * This skips everything the normal ingest does to keep an existing DB consistent while it's in use. Journaling is
+ * turned off, files are parsed in parallel, rows are written in large transactions, and the rollups are built once at
+ * the end rather than updated as rows are written.
+ * Files are written in the order they were last modified, so later exports replace the rows of earlier ones like they
+ * did when they were first ingested.
+ */
+public class ArchiveReplay
+{
+	private static final Logger log = LogManager.getLogger(ArchiveReplay.class);
+	public static final int DEFAULT_TRANSACTION_ROWS = 500_000;
+
+	private final DbConnection db;
+	private final int numParsers;
+	private final boolean fastParser;
+	private final int transactionRows;
+
+	/**
+	 * @param db The new DB to write to
+	 * @param numParsers The number of threads to parse files with
+	 * @param fastParser Whether to parse uncompressed files with the fast parser
+	 * @param transactionRows The number of rows to write in each transaction
+	 */
+	public ArchiveReplay(DbConnection db, int numParsers, boolean fastParser, int transactionRows)
+	{
+		this.db = db;
+		this.numParsers = numParsers;
+		this.fastParser = fastParser;
+		this.transactionRows = transactionRows;
+	}
+
+	/**
+	 * Writes the analytics of every processed file to the DB
+	 * @param processedDir The directory of processed files
+	 * @param archive The archive of older processed files
+	 */
+	public Result replay(File processedDir, ProcessedArchive archive) throws IOException, SQLException
+	{
+		long start = System.currentTimeMillis();
+		List<Source> sources = getSources(processedDir, archive);
+		log.info("Replaying {} processed files with {} parser threads", sources.size(), numParsers);
+		Result result = new Result();
+
+		AtomicInteger threadNum = new AtomicInteger();
+		ExecutorService parsers = Executors.newFixedThreadPool(numParsers, runnable ->
+		{
+			Thread thread = new Thread(runnable, "Replay Parser " + threadNum.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		db.setBulkLoad(true);
+		try
+		{
+			//Files are parsed ahead of the writer, but only a few at a time so that memory doesn't run out
+			Deque<Future<Parsed>> parsing = new ArrayDeque<>();
+			Iterator<Source> iterator = sources.iterator();
+			Map<Integer, Project> writtenProjects = new HashMap<>();
+			Map<Integer, Integer> latestEpochDays = new HashMap<>();
+			Set<String> hashes = new HashSet<>();
+			int uncommittedRows = 0;
+			DbBatch batch = db.beginBatch(DbConnection.DEFAULT_BATCH_FLUSH_SIZE);
+			try
+			{
+				while(true)
+				{
+					while(parsing.size() < numParsers * 2 && iterator.hasNext())
+					{
+						Source source = iterator.next();
+						parsing.add(parsers.submit(() -> parse(source)));
+					}
+					if(parsing.isEmpty())
+						break;
+
+					Parsed parsed = getParsed(parsing.remove());
+					if(parsed.error != null)
+					{
+						log.error(String.format("Failed to read processed file %s", parsed.source.name), parsed.error);
+						result.numFailed++;
+						continue;
+					}
+					if(!hashes.add(parsed.hash))
+					{
+						result.numDuplicate++;
+						continue;
+					}
+
+					int numWritten = 0;
+					for(AnalyticsChunk chunk : parsed.chunks)
+					{
+						//A project's name only changes with a newer export, like it does in the normal ingest
+						Project project = chunk.getProject();
+						Project written = writtenProjects.get(project.getId());
+						int latestEpochDay = chunk.getLatestEpochDay();
+						if(written == null || !written.getName().equals(project.getName())
+							&& latestEpochDay > latestEpochDays.get(project.getId()))
+						{
+							batch.add(project);
+							writtenProjects.put(project.getId(), project);
+						}
+						latestEpochDays.merge(project.getId(), latestEpochDay, Math::max);
+						batch.addAll(chunk.getAnalytics());
+						numWritten += chunk.getAnalytics().size();
+					}
+					batch.add(new LedgerEntry(parsed.hash, parsed.source.name, parsed.source.size, parsed.numRows, numWritten,
+						System.currentTimeMillis(), parsed.durationMs));
+					result.numFiles++;
+					result.numRows += numWritten;
+					result.numRejected += parsed.numRejected;
+
+					uncommittedRows += numWritten;
+					if(uncommittedRows >= transactionRows)
+					{
+						batch.commit();
+						batch.close();
+						batch = db.beginBatch(DbConnection.DEFAULT_BATCH_FLUSH_SIZE);
+						uncommittedRows = 0;
+						log.info("Replayed {} of {} files ({} rows)", result.numFiles + result.numDuplicate + result.numFailed,
+							sources.size(), result.numRows);
+					}
+				}
+				batch.commit();
+			}
+			finally
+			{
+				batch.close();
+			}
+
+			log.info("Building rollups...");
+			RollupTables.rebuild(db);
+		}
+		finally
+		{
+			parsers.shutdownNow();
+			db.setBulkLoad(false);
+		}
+		result.durationMs = System.currentTimeMillis() - start;
+		log.info("Replay finished - {}", result);
+		return result;
+	}
+
+	/**
+	 * Gets every processed file, with files still in the processed directory replacing archived files with the same name
+	 */
+	private static List<Source> getSources(File processedDir, ProcessedArchive archive) throws IOException
+	{
+		Map<String, Source> sources = new HashMap<>();
+		if(archive != null)
+			for(ArchivedFile archivedFile : archive.getFiles())
+				sources.put(archivedFile.getName(), new Source(archive, archivedFile));
+		File[] files = processedDir.listFiles(file -> file.isFile() && !file.getName().startsWith("."));
+		if(files != null)
+			for(File file : files)
+				sources.put(file.getName(), new Source(file));
+		List<Source> sorted = new ArrayList<>(sources.values());
+		sorted.sort(Comparator.comparingLong((Source source) -> source.modified).thenComparing(source -> source.name));
+		return sorted;
+	}
+
+	private Parsed parse(Source source)
+	{
+		Parsed parsed = new Parsed(source);
+		long start = System.currentTimeMillis();
+		RowRejects rejects = new RowRejects();
+		try(AnalyticsReader reader = source.open(fastParser, rejects))
+		{
+			AnalyticsChunk chunk;
+			while((chunk = reader.nextChunk()) != null)
+				parsed.chunks.add(chunk);
+			parsed.numRows = reader.getNumRows();
+			parsed.hash = source.archivedFile == null ? IngestLedger.hash(source.file) : source.archivedFile.getHash();
+		}
+		catch(Exception e)
+		{
+			parsed.error = e;
+		}
+		parsed.numRejected = rejects.getNumRejected();
+		parsed.durationMs = System.currentTimeMillis() - start;
+		return parsed;
+	}
+
+	private static Parsed getParsed(Future<Parsed> future) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for files to be parsed", e);
+		}
+		catch(ExecutionException e)
+		{
+			throw new IOException("Failed to parse file", e.getCause());
+		}
+	}
+
+	/**
+	 * A processed file, either in the processed directory or in the archive
+	 */
+	private static class Source
+	{
+		private final String name;
+		private final long size;
+		private final long modified;
+		private final File file;
+		private final ProcessedArchive archive;
+		private final ArchivedFile archivedFile;
+
+		private Source(File file)
+		{
+			name = file.getName();
+			size = file.length();
+			modified = file.lastModified();
+			this.file = file;
+			archive = null;
+			archivedFile = null;
+		}
+
+		private Source(ProcessedArchive archive, ArchivedFile archivedFile)
+		{
+			name = archivedFile.getName();
+			size = archivedFile.getSize();
+			modified = archivedFile.getModified();
+			file = null;
+			this.archive = archive;
+			this.archivedFile = archivedFile;
+		}
+
+		private AnalyticsReader open(boolean fastParser, RowRejects rejects) throws IOException
+		{
+			return file != null ? AnalyticsReader.open(file, fastParser, rejects) : AnalyticsReader.open(archive.open(archivedFile), name, rejects);
+		}
+	}
+
+	/**
+	 * The analytics parsed from a processed file
+	 */
+	private static class Parsed
+	{
+		private final Source source;
+		private final List<AnalyticsChunk> chunks = new ArrayList<>();
+		private String hash;
+		private int numRows;
+		private int numRejected;
+		private long durationMs;
+		private Exception error = null;
+
+		private Parsed(Source source)
+		{
+			this.source = source;
+		}
+	}
+
+	/**
+	 * The totals of a replay
+	 */
+	public static class Result
+	{
+		private int numFiles = 0;
+		private int numDuplicate = 0;
+		private int numFailed = 0;
+		private long numRows = 0;
+		private long numRejected = 0;
+		private long durationMs = 0;
+
+		public int getNumFiles()
+		{
+			return numFiles;
+		}
+
+		public int getNumDuplicate()
+		{
+			return numDuplicate;
+		}
+
+		public int getNumFailed()
+		{
+			return numFailed;
+		}
+
+		public long getNumRows()
+		{
+			return numRows;
+		}
+
+		public long getNumRejected()
+		{
+			return numRejected;
+		}
+
+		public long getDurationMs()
+		{
+			return durationMs;
+		}
+
+		public double getRowsPerSecond()
+		{
+			return durationMs <= 0 ? 0 : numRows * 1000D / durationMs;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%s files (%s duplicate, %s failed), %s rows (%s rejected) in %.1fs - %.0f rows/s",
+				numFiles, numDuplicate, numFailed, numRows, numRejected, durationMs / 1000D, getRowsPerSecond());
+		}
+	}
+}
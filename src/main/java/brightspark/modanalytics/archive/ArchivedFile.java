@@ -0,0 +1,103 @@
+package brightspark.modanalytics.archive;
+
+import java.io.File;
+
+/**
+ * An entry in the index of a segment, which locates a processed file's compressed content within the segment
+ */
+public class ArchivedFile
+{
+	static final String[] HEADER = {"Name", "Hash", "Rows", "Offset", "Length", "Size", "Modified"};
+
+	private final File segment;
+	private final String name;
+	private final String hash;
+	private final int rows;
+	private final long offset;
+	private final long length;
+	private final long size;
+	private final long modified;
+
+	/**
+	 * @param segment The segment file the content is in
+	 * @param name The name of the original file
+	 * @param hash The hash of the original file's content
+	 * @param rows The number of rows ingested from the file, or -1 if not known
+	 * @param offset The position in the segment that the compressed content starts at
+	 * @param length The length of the compressed content
+	 * @param size The size of the original file
+	 * @param modified The last modified time of the original file
+	 */
+	ArchivedFile(File segment, String name, String hash, int rows, long offset, long length, long size, long modified)
+	{
+		this.segment = segment;
+		this.name = name;
+		this.hash = hash;
+		this.rows = rows;
+		this.offset = offset;
+		this.length = length;
+		this.size = size;
+		this.modified = modified;
+	}
+
+	/**
+	 * Reads an entry from a row of a segment's index
+	 */
+	ArchivedFile(File segment, String[] row)
+	{
+		this(segment, row[0], row[1], Integer.parseInt(row[2]), Long.parseLong(row[3]), Long.parseLong(row[4]),
+			Long.parseLong(row[5]), Long.parseLong(row[6]));
+	}
+
+	String[] toRow()
+	{
+		return new String[] {name, hash, String.valueOf(rows), String.valueOf(offset), String.valueOf(length),
+			String.valueOf(size), String.valueOf(modified)};
+	}
+
+	public File getSegment()
+	{
+		return segment;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public String getHash()
+	{
+		return hash;
+	}
+
+	public int getRows()
+	{
+		return rows;
+	}
+
+	public long getOffset()
+	{
+		return offset;
+	}
+
+	public long getLength()
+	{
+		return length;
+	}
+
+	public long getSize()
+	{
+		return size;
+	}
+
+	public long getModified()
+	{
+		return modified;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s (%s bytes, %s rows) in %s", name, size, rows, segment.getName());
+	}
+}
@@ -0,0 +1,448 @@
+package brightspark.modanalytics.archive;
+
+import brightspark.modanalytics.dao.LedgerEntry;
+import brightspark.modanalytics.ingest.IngestLedger;
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.CSVWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compacts the processed CSV files into segment files, so the processed directory doesn't grow by a file per CSV forever
+ * Each file is gzipped on its own and appended to a segment, and the segment's index records where it is along with
+ * its hash and number of rows. This means any original file can be streamed back out without reading the rest of
+ * the segment.
+ * A segment and its index are only renamed into place once they've been synced to disk, and the original files are
+ * only deleted after that, so a crash part way through compaction never loses a file.
+ * Other processes must only open the archive with {@link #openReadOnly}, as the cleanup of an interrupted compaction
+ * would delete the files of one that's still in progress.
+ */
+public class ProcessedArchive
+{
+	private static final Logger log = LogManager.getLogger(ProcessedArchive.class);
+	public static final String SEGMENT_DIR = "segments";
+	public static final long DEFAULT_MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+	private static final String SEGMENT_EXTENSION = ".seg";
+	private static final String INDEX_EXTENSION = ".idx";
+	private static final String TEMP_EXTENSION = ".tmp";
+	private static final DateTimeFormatter SEGMENT_NAME_FORMAT = DateTimeFormatter.ofPattern("'segment-'yyyyMMdd-HHmmss-SSS");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File processedDir;
+	private final File segmentDir;
+	private final IngestLedger ledger;
+	private final long maxSegmentSize;
+	private final boolean readOnly;
+	//The latest archived file for each name, loaded from the segment indexes
+	private final Map<String, ArchivedFile> files = new HashMap<>();
+	private int numSegments = 0;
+	private boolean loaded = false;
+
+	/**
+	 * @param processedDir The directory of processed CSV files, which the segments are kept in a sub directory of
+	 * @param ledger The ledger to get the number of rows of each file from, or null to not record them
+	 * @param maxSegmentSize The size at which a segment is finished and a new one started
+	 */
+	public ProcessedArchive(File processedDir, IngestLedger ledger, long maxSegmentSize)
+	{
+		this(processedDir, ledger, maxSegmentSize, false);
+	}
+
+	private ProcessedArchive(File processedDir, IngestLedger ledger, long maxSegmentSize, boolean readOnly)
+	{
+		this.processedDir = processedDir;
+		segmentDir = new File(processedDir, SEGMENT_DIR);
+		this.ledger = ledger;
+		this.maxSegmentSize = maxSegmentSize;
+		this.readOnly = readOnly;
+	}
+
+	public ProcessedArchive(File processedDir, IngestLedger ledger)
+	{
+		this(processedDir, ledger, DEFAULT_MAX_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens the archive only to be read, so that it can be used while another process is compacting it
+	 * Segments which don't have an index yet are ignored rather than deleted, and the archive can't be compacted
+	 */
+	public static ProcessedArchive openReadOnly(File processedDir)
+	{
+		return new ProcessedArchive(processedDir, null, DEFAULT_MAX_SEGMENT_SIZE, true);
+	}
+
+	/**
+	 * Loads the indexes of the existing segments, and removes anything left over from an interrupted compaction
+	 */
+	private void load() throws IOException
+	{
+		if(loaded)
+			return;
+		if(readOnly && !segmentDir.isDirectory())
+		{
+			loaded = true;
+			return;
+		}
+		if(!segmentDir.isDirectory() && !segmentDir.mkdirs())
+			throw new IOException("Couldn't create segment directory " + segmentDir.getPath());
+		File[] segmentFiles = segmentDir.listFiles();
+		if(segmentFiles == null)
+			throw new IOException("Couldn't list segment directory " + segmentDir.getPath());
+		//Sorted by name, which starts with when the segment was written, so later files replace earlier ones
+		Arrays.sort(segmentFiles);
+		for(File file : segmentFiles)
+		{
+			String name = file.getName();
+			if(readOnly && (name.endsWith(TEMP_EXTENSION) || (name.endsWith(SEGMENT_EXTENSION) && !getIndexFile(file).exists())))
+			{
+				//It may be from a compaction that's still in progress, so leave it for that to finish
+				log.debug("Ignoring incomplete segment file {}", name);
+			}
+			else if(name.endsWith(TEMP_EXTENSION))
+			{
+				log.info("Deleting incomplete segment file {}", name);
+				Files.delete(file.toPath());
+			}
+			else if(name.endsWith(SEGMENT_EXTENSION) && !getIndexFile(file).exists())
+			{
+				//The originals aren't deleted until the index exists, so nothing is lost
+				log.info("Deleting segment {} which has no index", name);
+				Files.delete(file.toPath());
+			}
+			else if(name.endsWith(INDEX_EXTENSION))
+			{
+				File segment = new File(segmentDir, name.substring(0, name.length() - INDEX_EXTENSION.length()) + SEGMENT_EXTENSION);
+				for(ArchivedFile archivedFile : readIndex(segment))
+					files.put(archivedFile.getName(), archivedFile);
+				numSegments++;
+			}
+		}
+		loaded = true;
+		log.info("Loaded {} archived files from {} segments", files.size(), numSegments);
+	}
+
+	private static File getIndexFile(File segment)
+	{
+		String name = segment.getName();
+		return new File(segment.getParentFile(), name.substring(0, name.length() - SEGMENT_EXTENSION.length()) + INDEX_EXTENSION);
+	}
+
+	private static List<ArchivedFile> readIndex(File segment) throws IOException
+	{
+		List<ArchivedFile> entries = new ArrayList<>();
+		try(CSVReader reader = new CSVReaderBuilder(new FileReader(getIndexFile(segment))).withSkipLines(1).build())
+		{
+			String[] row;
+			while((row = reader.readNext()) != null)
+				entries.add(new ArchivedFile(segment, row));
+		}
+		return entries;
+	}
+
+	/**
+	 * Compacts the processed files which were last modified longer ago than the min age into new segments
+	 * @return The number of files compacted
+	 */
+	public synchronized int compact(long minAgeMillis) throws IOException
+	{
+		if(readOnly)
+			throw new IllegalStateException("Can't compact a read-only archive");
+		load();
+		long cutoff = System.currentTimeMillis() - minAgeMillis;
+		File[] processedFiles = processedDir.listFiles(file -> file.isFile() && !file.getName().startsWith(".") && file.lastModified() <= cutoff);
+		if(processedFiles == null || processedFiles.length == 0)
+			return 0;
+		Arrays.sort(processedFiles);
+
+		List<File> toArchive = new ArrayList<>();
+		for(File file : processedFiles)
+		{
+			//A previous compaction may have been interrupted after writing its index but before deleting the originals
+			ArchivedFile archived = files.get(file.getName());
+			if(archived != null && archived.getSize() == file.length() && archived.getModified() == file.lastModified())
+			{
+				log.debug("Processed file {} is already archived - deleting it", file.getName());
+				Files.deleteIfExists(file.toPath());
+			}
+			else
+				toArchive.add(file);
+		}
+
+		int numCompacted = 0;
+		Iterator<File> iterator = toArchive.iterator();
+		while(iterator.hasNext())
+			numCompacted += writeSegment(iterator);
+		return numCompacted;
+	}
+
+	/**
+	 * Writes files from the iterator to a new segment until it reaches the max segment size, then deletes the originals
+	 * @return The number of files written
+	 */
+	private int writeSegment(Iterator<File> filesToWrite) throws IOException
+	{
+		//The sequence number keeps the names in order even if they're written within the same millisecond
+		String name = String.format("%s-%06d", LocalDateTime.now().format(SEGMENT_NAME_FORMAT), numSegments);
+		File segment = new File(segmentDir, name + SEGMENT_EXTENSION);
+		File tempSegment = new File(segmentDir, segment.getName() + TEMP_EXTENSION);
+		List<ArchivedFile> written = new ArrayList<>();
+		List<File> originals = new ArrayList<>();
+		long start = System.currentTimeMillis();
+		try(FileOutputStream output = new FileOutputStream(tempSegment))
+		{
+			FileChannel channel = output.getChannel();
+			while(filesToWrite.hasNext() && channel.position() < maxSegmentSize)
+			{
+				File file = filesToWrite.next();
+				long size = file.length();
+				long modified = file.lastModified();
+				long offset = channel.position();
+				MessageDigest digest = IngestLedger.newDigest();
+				try(InputStream input = new FileInputStream(file);
+					OutputStream gzip = new GZIPOutputStream(new UnclosableOutputStream(output), BUFFER_SIZE))
+				{
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int read;
+					while((read = input.read(buffer)) > 0)
+					{
+						digest.update(buffer, 0, read);
+						gzip.write(buffer, 0, read);
+					}
+				}
+				catch(FileNotFoundException e)
+				{
+					//It's been moved since the directory was listed, so there's nothing to archive
+					channel.truncate(offset);
+					channel.position(offset);
+					continue;
+				}
+				String hash = IngestLedger.toHex(digest.digest());
+				written.add(new ArchivedFile(segment, file.getName(), hash, getRows(hash), offset, channel.position() - offset, size, modified));
+				originals.add(file);
+			}
+			output.getFD().sync();
+		}
+		if(written.isEmpty())
+		{
+			Files.delete(tempSegment.toPath());
+			return 0;
+		}
+		Files.move(tempSegment.toPath(), segment.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+		File index = getIndexFile(segment);
+		File tempIndex = new File(segmentDir, index.getName() + TEMP_EXTENSION);
+		try(FileOutputStream output = new FileOutputStream(tempIndex))
+		{
+			CSVWriter writer = new CSVWriter(new OutputStreamWriter(output));
+			writer.writeNext(ArchivedFile.HEADER);
+			for(ArchivedFile file : written)
+				writer.writeNext(file.toRow());
+			writer.flush();
+			output.getFD().sync();
+		}
+		Files.move(tempIndex.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		numSegments++;
+
+		//The files are safely in the segment now, so the originals can go, unless they've been replaced in the meantime
+		for(int i = 0; i < written.size(); i++)
+		{
+			ArchivedFile archived = written.get(i);
+			files.put(archived.getName(), archived);
+			File original = originals.get(i);
+			if(original.length() == archived.getSize() && original.lastModified() == archived.getModified())
+				Files.deleteIfExists(original.toPath());
+			else
+				log.warn("Processed file {} changed while being archived - keeping it", original.getName());
+		}
+		log.info("Compacted {} processed files into segment {} ({} bytes) in {}ms", written.size(), segment.getName(),
+			segment.length(), System.currentTimeMillis() - start);
+		return written.size();
+	}
+
+	private int getRows(String hash)
+	{
+		if(ledger == null)
+			return -1;
+		try
+		{
+			LedgerEntry entry = ledger.find(hash);
+			return entry == null ? -1 : entry.getNumRows();
+		}
+		catch(RuntimeException e)
+		{
+			log.warn("Couldn't get the number of rows of hash {} from the ingest ledger", hash);
+			return -1;
+		}
+	}
+
+	/**
+	 * Gets the latest archived file with the name
+	 * @return The archived file, or null if there's no file with the name
+	 */
+	public synchronized ArchivedFile find(String name) throws IOException
+	{
+		load();
+		return files.get(name);
+	}
+
+	/**
+	 * Gets the latest archived file for each name
+	 */
+	public synchronized List<ArchivedFile> getFiles() throws IOException
+	{
+		load();
+		return new ArrayList<>(files.values());
+	}
+
+	/**
+	 * Opens a stream of the original content of the archived file
+	 */
+	public InputStream open(ArchivedFile file) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file.getSegment().toPath(), StandardOpenOption.READ);
+		try
+		{
+			channel.position(file.getOffset());
+			//Bounded so that the gzip stream doesn't carry on into the next file in the segment
+			return new GZIPInputStream(new BoundedInputStream(Channels.newInputStream(channel), file.getLength()), BUFFER_SIZE);
+		}
+		catch(IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the original content of the archived file with the name to the directory
+	 * @return The restored file, or null if there's no archived file with the name
+	 */
+	public File restore(String name, File dir) throws IOException
+	{
+		ArchivedFile archived = find(name);
+		if(archived == null)
+			return null;
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Couldn't create directory " + dir.getPath());
+		File file = new File(dir, archived.getName());
+		try(InputStream input = open(archived))
+		{
+			Files.copy(input, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		if(!file.setLastModified(archived.getModified()))
+			log.warn("Couldn't set the modified time of restored file {}", file.getName());
+		return file;
+	}
+
+	/**
+	 * Gets the number of archived files, which are loaded the first time the archive is compacted or searched
+	 */
+	public synchronized int getNumFiles()
+	{
+		return files.size();
+	}
+
+	public synchronized int getNumSegments()
+	{
+		return numSegments;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("%s archived files in %s segments", files.size(), numSegments);
+	}
+
+	/**
+	 * Lets each file's gzip stream be closed to finish it without closing the segment
+	 */
+	private static class UnclosableOutputStream extends FilterOutputStream
+	{
+		private UnclosableOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			out.write(bytes, offset, length);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			flush();
+		}
+	}
+
+	/**
+	 * Reads up to a max number of bytes from a stream
+	 */
+	private static class BoundedInputStream extends FilterInputStream
+	{
+		private long remaining;
+
+		private BoundedInputStream(InputStream in, long length)
+		{
+			super(in);
+			remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if(remaining <= 0)
+				return -1;
+			int b = in.read();
+			if(b >= 0)
+				remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException
+		{
+			if(remaining <= 0)
+				return -1;
+			int read = in.read(bytes, offset, (int) Math.min(length, remaining));
+			if(read > 0)
+				remaining -= read;
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long skipped = in.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+	}
+}
@@ -1,66 +1,135 @@
 package brightspark.modanalytics.dao;
 
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
-
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.LocalDate;
 
-public class AnalyticDate
+/**
+ * A date of analytics, stored as the number of days since the epoch (1970-01-01)
+ */
+public class AnalyticDate implements Comparable<AnalyticDate>
 {
-	private final String date;
-	private final int day;
-	private final int month;
-	private final int year;
+	private final int epochDay;
 
 	public AnalyticDate(ResultSet resultSet) throws SQLException
 	{
-		this(resultSet.getString("date"));
+		this(resultSet.getInt("date"));
+	}
+
+	public AnalyticDate(int epochDay)
+	{
+		this.epochDay = epochDay;
 	}
 
+	/**
+	 * Parses the date from either a yyyy-MM-dd or dd-MM-yyyy String
+	 */
 	public AnalyticDate(String dateString)
 	{
-		date = dateString;
-		String[] components = date.split("-");
-		day = Integer.parseInt(components[0]);
-		month = Integer.parseInt(components[1]);
-		year = Integer.parseInt(components[2]);
+		String[] components = dateString.split("-");
+		if(components.length != 3)
+			throw new IllegalArgumentException(String.format("Invalid date '%s'", dateString));
+		epochDay = fromComponents(Integer.parseInt(components[0]), Integer.parseInt(components[1]), Integer.parseInt(components[2]));
+	}
+
+	/**
+	 * Gets the date from the 3 components of either a yyyy-MM-dd or dd-MM-yyyy date
+	 * The first component is treated as the year if it's too large to be a day
+	 */
+	public static AnalyticDate of(int first, int second, int third)
+	{
+		return new AnalyticDate(fromComponents(first, second, third));
+	}
+
+	private static int fromComponents(int first, int second, int third)
+	{
+		return first > 31 ? toEpochDay(first, second, third) : toEpochDay(third, second, first);
+	}
+
+	/**
+	 * Converts the date to the number of days since the epoch without creating a {@link LocalDate}
+	 * Based on the days_from_civil algorithm from http://howardhinnant.github.io/date_algorithms.html
+	 */
+	static int toEpochDay(int year, int month, int day)
+	{
+		if(month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month))
+			throw new IllegalArgumentException(String.format("Invalid date %s-%s-%s", year, month, day));
+		year -= month <= 2 ? 1 : 0;
+		int era = (year >= 0 ? year : year - 399) / 400;
+		int yearOfEra = year - era * 400;
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
 	}
 
+	/**
+	 * Gets the number of days in the month, taking leap years into account
+	 */
+	static int lengthOfMonth(int year, int month)
+	{
+		switch(month)
+		{
+			case 2:
+				return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28;
+			case 4:
+			case 6:
+			case 9:
+			case 11:
+				return 30;
+			default:
+				return 31;
+		}
+	}
+
+	public int getEpochDay()
+	{
+		return epochDay;
+	}
+
+	/**
+	 * Gets the date as a yyyy-MM-dd String
+	 */
 	public String getDate()
 	{
-		return date;
+		return toLocalDate().toString();
+	}
+
+	public LocalDate toLocalDate()
+	{
+		return LocalDate.ofEpochDay(epochDay);
 	}
 
 	public int getDay()
 	{
-		return day;
+		return toLocalDate().getDayOfMonth();
 	}
 
 	public int getMonth()
 	{
-		return month;
+		return toLocalDate().getMonthValue();
 	}
 
 	public int getYear()
 	{
-		return year;
+		return toLocalDate().getYear();
+	}
+
+	@Override
+	public int compareTo(AnalyticDate other)
+	{
+		return Integer.compare(epochDay, other.epochDay);
 	}
 
 	@Override
 	public String toString()
 	{
-		return date;
+		return getDate();
 	}
 
 	@Override
 	public int hashCode()
 	{
-		return new HashCodeBuilder()
-			.append(day)
-			.append(month)
-			.append(year)
-			.toHashCode();
+		return epochDay;
 	}
 
 	@Override
@@ -69,11 +138,6 @@ public class AnalyticDate
 		if(obj == null) return false;
 		if(obj == this) return true;
 		if(obj.getClass() != getClass()) return false;
-		AnalyticDate date = (AnalyticDate) obj;
-		return new EqualsBuilder()
-			.append(day, date.day)
-			.append(month, date.month)
-			.append(year, date.year)
-			.isEquals();
+		return epochDay == ((AnalyticDate) obj).epochDay;
 	}
 }
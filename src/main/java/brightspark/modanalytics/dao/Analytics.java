@@ -3,7 +3,6 @@ package brightspark.modanalytics.dao;
 import brightspark.modanalytics.db.DbConnection;
 import brightspark.modanalytics.db.DbStorable;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -11,7 +10,6 @@ import java.util.Map;
 
 public class Analytics extends DbStorable
 {
-	private final String id;
 	private final int projectId;
 	private final AnalyticDate date;
 	private final float points;
@@ -23,8 +21,6 @@ public class Analytics extends DbStorable
 
 	public Analytics(ResultSet resultSet) throws SQLException
 	{
-		// ID = <projectId>_<analyticDate>
-		id = resultSet.getString("id");
 		projectId = resultSet.getInt("project_id");
 		date = new AnalyticDate(resultSet);
 		points = resultSet.getFloat("points");
@@ -42,7 +38,6 @@ public class Analytics extends DbStorable
 
 		date = new AnalyticDate(csvRow[0]);
 		projectId = Integer.parseInt(csvRow[1]);
-		id = projectId + "_" + date.getDate();
 		points = Float.parseFloat(csvRow[3]);
 		historicalDownload = Integer.parseInt(csvRow[4]);
 		dailyDownload = Integer.parseInt(csvRow[5]);
@@ -51,11 +46,10 @@ public class Analytics extends DbStorable
 		dailyCurseForgeDownload = Integer.parseInt(csvRow[8]);
 	}
 
-	public Analytics(String id, int projectId, String date, float points, int historicalDownload, int dailyDownload, int dailyUniqueDownload, int dailyTwitchAppDownload, int dailyCurseForgeDownload)
+	public Analytics(int projectId, AnalyticDate date, float points, int historicalDownload, int dailyDownload, int dailyUniqueDownload, int dailyTwitchAppDownload, int dailyCurseForgeDownload)
 	{
-		this.id = id;
 		this.projectId = projectId;
-		this.date = new AnalyticDate(date);
+		this.date = date;
 		this.points = points;
 		this.historicalDownload = historicalDownload;
 		this.dailyDownload = dailyDownload;
@@ -64,9 +58,17 @@ public class Analytics extends DbStorable
 		this.dailyCurseForgeDownload = dailyCurseForgeDownload;
 	}
 
-	public String getId()
+	public Analytics(int projectId, String date, float points, int historicalDownload, int dailyDownload, int dailyUniqueDownload, int dailyTwitchAppDownload, int dailyCurseForgeDownload)
 	{
-		return id;
+		this(projectId, new AnalyticDate(date), points, historicalDownload, dailyDownload, dailyUniqueDownload, dailyTwitchAppDownload, dailyCurseForgeDownload);
+	}
+
+	/**
+	 * Gets the unique key of this analytics, made from the project ID and date
+	 */
+	public long getKey()
+	{
+		return ((long) projectId << 32) | (date.getEpochDay() & 0xFFFFFFFFL);
 	}
 
 	public int getProjectId()
@@ -118,15 +120,14 @@ public class Analytics extends DbStorable
 	@Override
 	protected String getColumns()
 	{
-		return "id,project_id,date,points,historical_download,daily_download,daily_unique_download,daily_twitch_app_download,daily_curseforge_download";
+		return "project_id,date,points,historical_download,daily_download,daily_unique_download,daily_twitch_app_download,daily_curseforge_download";
 	}
 
 	@Override
 	public void getData(Map<String, Object> data)
 	{
-		data.put("id", id);
 		data.put("project_id", projectId);
-		data.put("date", date.toString());
+		data.put("date", date.getEpochDay());
 		data.put("points", points);
 		data.put("historical_download", historicalDownload);
 		data.put("daily_download", dailyDownload);
@@ -136,25 +137,22 @@ public class Analytics extends DbStorable
 	}
 
 	@Override
-	public PreparedStatement createStatement(Connection connection) throws SQLException
+	public void setStatementValues(PreparedStatement statement) throws SQLException
 	{
-		PreparedStatement statement = connection.prepareStatement(insertQuery);
-		statement.setString(1, id);
-		statement.setInt(2, projectId);
-		statement.setString(3, date.getDate());
-		statement.setFloat(4, points);
-		statement.setInt(5, historicalDownload);
-		statement.setInt(6, dailyDownload);
-		statement.setInt(7, dailyUniqueDownload);
-		statement.setInt(8, dailyTwitchAppDownload);
-		statement.setInt(9, dailyCurseForgeDownload);
-		return statement;
+		statement.setInt(1, projectId);
+		statement.setInt(2, date.getEpochDay());
+		statement.setFloat(3, points);
+		statement.setInt(4, historicalDownload);
+		statement.setInt(5, dailyDownload);
+		statement.setInt(6, dailyUniqueDownload);
+		statement.setInt(7, dailyTwitchAppDownload);
+		statement.setInt(8, dailyCurseForgeDownload);
 	}
 
 	@Override
 	public int hashCode()
 	{
-		return id.hashCode();
+		return Long.hashCode(getKey());
 	}
 
 	@Override
@@ -163,6 +161,7 @@ public class Analytics extends DbStorable
 		if(obj == null) return false;
 		if(obj == this) return true;
 		if(obj.getClass() != getClass()) return false;
-		return id.equals(((Analytics) obj).id);
+		Analytics analytics = (Analytics) obj;
+		return projectId == analytics.projectId && date.equals(analytics.date);
 	}
 }
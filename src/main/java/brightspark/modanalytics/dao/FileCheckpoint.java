@@ -0,0 +1,135 @@
+package brightspark.modanalytics.dao;
+
+import brightspark.modanalytics.db.DbBatch;
+import brightspark.modanalytics.db.DbConnection;
+import brightspark.modanalytics.db.DbStorable;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * The number of rows of a CSV file which have been committed to the DB, so that ingestion of the file can resume from
+ * there if it's interrupted
+ * The file is identified by its name, size and last modified time, so a checkpoint doesn't apply to a different file
+ * with the same name
+ */
+public class FileCheckpoint extends DbStorable
+{
+	public static final String QUERY_SELECT = "select * from " + DbConnection.TABLE_CHECKPOINTS + " where file_name = ?";
+	public static final String QUERY_DELETE = "delete from " + DbConnection.TABLE_CHECKPOINTS + " where file_name = ?";
+
+	private final String fileName;
+	private final long fileSize;
+	private final long fileModified;
+	private final int rows;
+
+	public FileCheckpoint(ResultSet resultSet) throws SQLException
+	{
+		this(resultSet.getString("file_name"), resultSet.getLong("file_size"), resultSet.getLong("file_modified"), resultSet.getInt("rows"));
+	}
+
+	public FileCheckpoint(String fileName, long fileSize, long fileModified, int rows)
+	{
+		this.fileName = fileName;
+		this.fileSize = fileSize;
+		this.fileModified = fileModified;
+		this.rows = rows;
+	}
+
+	/**
+	 * Creates a checkpoint at the start of the file
+	 */
+	public FileCheckpoint(File file)
+	{
+		this(file.getName(), file.length(), file.lastModified(), 0);
+	}
+
+	/**
+	 * Loads the checkpoint for the file from the DB
+	 * @return The checkpoint, or null if there isn't one for this file
+	 */
+	public static FileCheckpoint load(DbConnection db, File file) throws SQLException
+	{
+		try(DbBatch batch = db.beginBatch())
+		{
+			return load(batch, file);
+		}
+	}
+
+	/**
+	 * Loads the checkpoint for the file from the DB within the batch's transaction
+	 * @return The checkpoint, or null if there isn't one for this file
+	 */
+	public static FileCheckpoint load(DbBatch batch, File file) throws SQLException
+	{
+		FileCheckpoint current = new FileCheckpoint(file);
+		PreparedStatement select = batch.prepare(QUERY_SELECT);
+		select.setString(1, current.fileName);
+		try(ResultSet resultSet = select.executeQuery())
+		{
+			if(!resultSet.next())
+				return null;
+			FileCheckpoint checkpoint = new FileCheckpoint(resultSet);
+			return current.isSameFile(checkpoint) ? checkpoint : null;
+		}
+	}
+
+	/**
+	 * Checks if the checkpoint is for the same version of the same file as this
+	 */
+	public boolean isSameFile(FileCheckpoint other)
+	{
+		return fileName.equals(other.fileName) && fileSize == other.fileSize && fileModified == other.fileModified;
+	}
+
+	/**
+	 * Creates a checkpoint for the same file after the number of rows
+	 */
+	public FileCheckpoint withRows(int rows)
+	{
+		return new FileCheckpoint(fileName, fileSize, fileModified, rows);
+	}
+
+	public String getFileName()
+	{
+		return fileName;
+	}
+
+	public int getRows()
+	{
+		return rows;
+	}
+
+	@Override
+	public String getTableName()
+	{
+		return DbConnection.TABLE_CHECKPOINTS;
+	}
+
+	@Override
+	protected String getColumns()
+	{
+		return "file_name,file_size,file_modified,rows";
+	}
+
+	@Override
+	public void getData(Map<String, Object> data)
+	{
+		data.put("file_name", fileName);
+		data.put("file_size", fileSize);
+		data.put("file_modified", fileModified);
+		data.put("rows", rows);
+	}
+
+	@Override
+	public void setStatementValues(PreparedStatement statement) throws SQLException
+	{
+		statement.setString(1, fileName);
+		statement.setLong(2, fileSize);
+		statement.setLong(3, fileModified);
+		statement.setInt(4, rows);
+	}
+}
@@ -0,0 +1,100 @@
+package brightspark.modanalytics.dao;
+
+import brightspark.modanalytics.db.DbConnection;
+import brightspark.modanalytics.db.DbStorable;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * A record of a CSV file that was ingested, keyed by the hash of its content
+ */
+public class LedgerEntry extends DbStorable
+{
+	private final String hash;
+	private final String fileName;
+	private final long fileSize;
+	private final int numRows;
+	private final int numWritten;
+	private final long ingestedAt;
+	private final long durationMs;
+
+	public LedgerEntry(ResultSet resultSet) throws SQLException
+	{
+		this(resultSet.getString("hash"), resultSet.getString("file_name"), resultSet.getLong("file_size"), resultSet.getInt("rows"),
+			resultSet.getInt("rows_written"), resultSet.getLong("ingested_at"), resultSet.getLong("duration_ms"));
+	}
+
+	/**
+	 * @param ingestedAt The time the file started being ingested in epoch milliseconds
+	 * @param durationMs How long the file took to ingest
+	 */
+	public LedgerEntry(String hash, String fileName, long fileSize, int numRows, int numWritten, long ingestedAt, long durationMs)
+	{
+		this.hash = hash;
+		this.fileName = fileName;
+		this.fileSize = fileSize;
+		this.numRows = numRows;
+		this.numWritten = numWritten;
+		this.ingestedAt = ingestedAt;
+		this.durationMs = durationMs;
+	}
+
+	public String getHash()
+	{
+		return hash;
+	}
+
+	public String getFileName()
+	{
+		return fileName;
+	}
+
+	public int getNumRows()
+	{
+		return numRows;
+	}
+
+	public long getIngestedAt()
+	{
+		return ingestedAt;
+	}
+
+	@Override
+	public String getTableName()
+	{
+		return DbConnection.TABLE_LEDGER;
+	}
+
+	@Override
+	protected String getColumns()
+	{
+		return "hash,file_name,file_size,rows,rows_written,ingested_at,duration_ms";
+	}
+
+	@Override
+	public void getData(Map<String, Object> data)
+	{
+		data.put("hash", hash);
+		data.put("file_name", fileName);
+		data.put("file_size", fileSize);
+		data.put("rows", numRows);
+		data.put("rows_written", numWritten);
+		data.put("ingested_at", ingestedAt);
+		data.put("duration_ms", durationMs);
+	}
+
+	@Override
+	public void setStatementValues(PreparedStatement statement) throws SQLException
+	{
+		statement.setString(1, hash);
+		statement.setString(2, fileName);
+		statement.setLong(3, fileSize);
+		statement.setInt(4, numRows);
+		statement.setInt(5, numWritten);
+		statement.setLong(6, ingestedAt);
+		statement.setLong(7, durationMs);
+	}
+}
@@ -3,7 +3,6 @@ package brightspark.modanalytics.dao;
 import brightspark.modanalytics.db.DbConnection;
 import brightspark.modanalytics.db.DbStorable;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -55,12 +54,10 @@ public class Project extends DbStorable
 	}
 
 	@Override
-	public PreparedStatement createStatement(Connection connection) throws SQLException
+	public void setStatementValues(PreparedStatement statement) throws SQLException
 	{
-		PreparedStatement statement = connection.prepareStatement(insertQuery);
 		statement.setInt(1, id);
 		statement.setString(2, name);
-		return statement;
 	}
 
 	@Override
@@ -0,0 +1,106 @@
+package brightspark.modanalytics.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The rows of a query result held as Strings, so that they can be shown again without re-executing the query
+ */
+public class CachedResult
+{
+	//Rough sizes used to estimate how much memory a result uses
+	private static final int OBJECT_OVERHEAD = 16;
+	private static final int REFERENCE_SIZE = 8;
+	private static final int STRING_OVERHEAD = 40;
+
+	private final String[] columnNames;
+	private final List<String[]> rows;
+	private final long size;
+
+	private CachedResult(String[] columnNames, List<String[]> rows, long size)
+	{
+		this.columnNames = columnNames;
+		this.rows = Collections.unmodifiableList(rows);
+		this.size = size;
+	}
+
+	public String[] getColumnNames()
+	{
+		return columnNames.clone();
+	}
+
+	public List<String[]> getRows()
+	{
+		return rows;
+	}
+
+	public int getNumRows()
+	{
+		return rows.size();
+	}
+
+	/**
+	 * Gets the estimated number of bytes used by this result
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+
+	private static long estimateSize(String[] values)
+	{
+		long size = OBJECT_OVERHEAD + (long) values.length * REFERENCE_SIZE;
+		for(String value : values)
+			if(value != null)
+				size += STRING_OVERHEAD + value.length() * 2L;
+		return size;
+	}
+
+	/**
+	 * Collects rows as they're read, giving up once the result gets too large to be worth caching
+	 */
+	public static class Builder
+	{
+		private final String[] columnNames;
+		private final long maxSize;
+		private List<String[]> rows = new ArrayList<>();
+		private long size;
+
+		/**
+		 * @param maxSize The max estimated size in bytes, after which rows are no longer collected
+		 */
+		public Builder(String[] columnNames, long maxSize)
+		{
+			this.columnNames = columnNames.clone();
+			this.maxSize = maxSize;
+			size = estimateSize(columnNames);
+		}
+
+		/**
+		 * Adds a copy of the row
+		 * @return False if the result is now too large to cache
+		 */
+		public boolean add(String[] row)
+		{
+			if(rows == null)
+				return false;
+			size += estimateSize(row) + REFERENCE_SIZE;
+			if(size > maxSize)
+			{
+				rows = null;
+				return false;
+			}
+			rows.add(row.clone());
+			return true;
+		}
+
+		/**
+		 * @return The result, or null if it was too large to cache
+		 */
+		public CachedResult build()
+		{
+			return rows == null ? null : new CachedResult(columnNames, rows, size);
+		}
+	}
+}
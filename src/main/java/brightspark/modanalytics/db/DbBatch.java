@@ -0,0 +1,176 @@
+package brightspark.modanalytics.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A batch of inserts which are all written to the DB within a single transaction.
+ * Inserts are grouped by their query (so per table) and sent to the DB using JDBC batching.
+ * If the batch is closed without being committed then all of its changes are rolled back.
+ * The thread which began the batch holds the DB's write lock until the batch is closed.
+ */
+public class DbBatch implements AutoCloseable
+{
+	private static final Logger log = LogManager.getLogger(DbBatch.class);
+
+	private final DbConnection db;
+	private final Connection connection;
+	private final int flushSize;
+	private final Map<String, PreparedStatement> statements = new LinkedHashMap<>();
+	//Tables written to by this batch, whose cached query results are invalidated once it's committed
+	private final Set<String> tables = new HashSet<>();
+	private int numPending = 0;
+	private int numAdded = 0;
+	private boolean finished = false;
+	private boolean closed = false;
+
+	DbBatch(DbConnection db, Connection connection, int flushSize) throws SQLException
+	{
+		this.db = db;
+		this.connection = connection;
+		this.flushSize = flushSize;
+		connection.setAutoCommit(false);
+	}
+
+	/**
+	 * Adds the object to the batch, sending the pending inserts to the DB if the flush size has been reached
+	 */
+	public void add(DbStorable storable) throws SQLException
+	{
+		if(finished)
+			throw new IllegalStateException("Batch has already been committed or closed");
+		PreparedStatement statement = statements.get(storable.getInsertQuery());
+		if(statement == null)
+		{
+			statements.put(storable.getInsertQuery(), statement = db.getCachedStatement(storable.getInsertQuery()));
+			tables.add(storable.getTableName());
+		}
+		storable.setStatementValues(statement);
+		statement.addBatch();
+		numAdded++;
+		if(++numPending >= flushSize)
+			flush();
+	}
+
+	/**
+	 * Adds all of the objects to the batch
+	 */
+	public void addAll(Collection<? extends DbStorable> storables) throws SQLException
+	{
+		for(DbStorable storable : storables)
+			add(storable);
+	}
+
+	/**
+	 * Gets a prepared statement for the query which will be executed within this batch's transaction
+	 * Any pending inserts are sent to the DB first, so that the statement sees them
+	 */
+	public PreparedStatement prepare(String query) throws SQLException
+	{
+		if(finished)
+			throw new IllegalStateException("Batch has already been committed or closed");
+		flush();
+		//Any table the query references may be written to
+		tables.addAll(QueryCache.getIdentifiers(query));
+		return db.getCachedStatement(query);
+	}
+
+	/**
+	 * Sends all pending inserts to the DB within the transaction
+	 */
+	public void flush() throws SQLException
+	{
+		if(numPending <= 0)
+			return;
+		log.trace("Flushing {} pending inserts", numPending);
+		for(PreparedStatement statement : statements.values())
+		{
+			long start = System.nanoTime();
+			statement.executeBatch();
+			db.getMetrics().statementExecuted(start);
+		}
+		numPending = 0;
+	}
+
+	/**
+	 * Flushes any pending inserts and commits the transaction
+	 * @return The number of objects written in this batch
+	 */
+	public int commit() throws SQLException
+	{
+		flush();
+		long start = System.nanoTime();
+		connection.commit();
+		db.getMetrics().committed(start);
+		finished = true;
+		db.getQueryCache().invalidate(tables);
+		log.debug("Committed batch of {} inserts", numAdded);
+		return numAdded;
+	}
+
+	/**
+	 * Gets the number of objects added to this batch so far
+	 */
+	public int getNumAdded()
+	{
+		return numAdded;
+	}
+
+	/**
+	 * Rolls back the transaction if it wasn't committed
+	 * The statements used by this batch are cached by the {@link DbConnection}, so they're cleared rather than closed
+	 */
+	@Override
+	public void close()
+	{
+		if(closed)
+			return;
+		closed = true;
+		try
+		{
+			if(!finished)
+			{
+				log.warn("Rolling back batch of {} inserts", numAdded);
+				connection.rollback();
+			}
+		}
+		catch(SQLException e)
+		{
+			log.error("Couldn't rollback batch", e);
+		}
+		finally
+		{
+			finished = true;
+			for(PreparedStatement statement : statements.values())
+			{
+				try
+				{
+					statement.clearBatch();
+				}
+				catch(SQLException e)
+				{
+					log.error("Couldn't clear batch statement", e);
+				}
+			}
+			statements.clear();
+			try
+			{
+				connection.setAutoCommit(true);
+			}
+			catch(SQLException e)
+			{
+				log.error("Couldn't restore auto commit", e);
+			}
+			db.endBatch();
+		}
+	}
+}
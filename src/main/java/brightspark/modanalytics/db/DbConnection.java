@@ -1,43 +1,127 @@
 package brightspark.modanalytics.db;
 
+import brightspark.modanalytics.dao.AnalyticDate;
+import brightspark.modanalytics.metrics.DbMetrics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.sqlite.SQLiteConfig;
 
 import java.io.File;
 import java.sql.*;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class DbConnection
 {
 	private static final Logger log = LogManager.getLogger(DbConnection.class);
 	public static final String TABLE_PROJECTS = "projects";
 	public static final String TABLE_ANALYTICS = "analytics";
+	public static final String TABLE_CHECKPOINTS = "ingest_checkpoints";
+	public static final String TABLE_LEDGER = "ingest_ledger";
+
+	//Version of the DB schema, stored in the DB's user_version
+	public static final int SCHEMA_VERSION = 2;
 
 	private static final String QUERY_CREATE = "create table if not exists %s (%s)";
+	private static final String QUERY_CREATE_WITHOUT_ROWID = QUERY_CREATE + " without rowid";
+	//Dates are stored as the number of days since the epoch, and the primary key lets date ranges for a project use the index
+	private static final String ANALYTICS_COLUMNS =
+		"project_id integer not null, " +
+		"date integer not null, " +
+		"points real not null, " +
+		"historical_download integer not null, " +
+		"daily_download integer not null, " +
+		"daily_unique_download integer not null, " +
+		"daily_twitch_app_download integer not null, " +
+		"daily_curseforge_download integer not null, " +
+		"primary key (project_id, date)";
 	public static final String QUERY_INSERT = "replace into %s (%s) values (%s)";
 
+	//Number of inserts a batch will hold before sending them to the DB
+	public static final int DEFAULT_BATCH_FLUSH_SIZE = 1000;
+	//Max number of read only connections for queries
+	public static final int DEFAULT_NUM_READERS = 2;
+	//Page cache size per connection in KiB (negative values for the cache_size pragma are in KiB rather than pages)
+	private static final int CACHE_SIZE_KIB = 16 * 1024;
+	//Page cache size while bulk loading, so that the primary key B-trees being built mostly stay in memory
+	private static final int BULK_LOAD_CACHE_SIZE_KIB = 256 * 1024;
+	private static final int BUSY_TIMEOUT_MS = 30_000;
+
 	private String location;
 	private Connection connection;
+	private final int maxReaders;
+	//Idle read only connections, and the number which have been opened
+	private final BlockingQueue<Connection> readers;
+	private final AtomicInteger numReaders = new AtomicInteger();
+	//Prepared statements which are reused, keyed by their query
+	private final Map<String, PreparedStatement> statementCache = new HashMap<>();
+	//Results of read only queries, which are invalidated by writes
+	private final QueryCache queryCache = new QueryCache();
+	private final DbMetrics metrics;
+	//Held for the whole time a thread is writing with the writer connection, so that one thread's batch can't commit or
+	//roll back another's changes
+	private final ReentrantLock writeLock = new ReentrantLock();
 
-	public DbConnection(File file)
+	/**
+	 * @param file The DB file, or null for an in-memory DB
+	 * @param maxReaders The max number of read only connections to open for queries
+	 */
+	public DbConnection(File file, int maxReaders)
 	{
 		location = file == null ? ":memory:" : file.getAbsolutePath();
+		metrics = new DbMetrics(file == null ? null : file.getAbsoluteFile());
+		//Each connection to an in-memory DB would be a separate DB, so queries have to use the writer connection
+		this.maxReaders = file == null ? 0 : maxReaders;
+		readers = new ArrayBlockingQueue<>(Math.max(1, this.maxReaders));
 
 		//Create tables if they don't already exist
 		execute(String.format(QUERY_CREATE, TABLE_PROJECTS,
 			"id integer primary key, " +
 			"name text not null"));
-		execute(String.format(QUERY_CREATE, TABLE_ANALYTICS,
-			"id text not null primary key, " +
-			"project_id integer not null, " +
-			"date text not null, " +
-			"points real not null, " +
-			"historical_download integer not null, " +
-			"daily_download integer not null, " +
-			"daily_unique_download integer not null, " +
-			"daily_twitch_app_download integer not null, " +
-			"daily_curseforge_download integer not null"));
+		int schemaVersion = executeSingleResult("pragma user_version", results -> results.getInt(1));
+		if(schemaVersion < 1 && tableHasColumn(TABLE_ANALYTICS, "id"))
+			migrateToEpochDays();
+		else
+			execute(String.format(QUERY_CREATE_WITHOUT_ROWID, TABLE_ANALYTICS, ANALYTICS_COLUMNS));
+		RollupTables.createTables(this);
+		execute(String.format(QUERY_CREATE_WITHOUT_ROWID, TABLE_CHECKPOINTS,
+			"file_name text primary key, " +
+			"file_size integer not null, " +
+			"file_modified integer not null, " +
+			"rows integer not null"));
+		execute(String.format(QUERY_CREATE_WITHOUT_ROWID, TABLE_LEDGER,
+			"hash text primary key, " +
+			"file_name text not null, " +
+			"file_size integer not null, " +
+			"rows integer not null, " +
+			"rows_written integer not null, " +
+			"ingested_at integer not null, " +
+			"duration_ms integer not null"));
+		int newSchemaVersion = SCHEMA_VERSION;
+		if(schemaVersion < 2)
+		{
+			//Populate the rollups from any existing analytics
+			try
+			{
+				RollupTables.rebuild(this);
+			}
+			catch(SQLException | RuntimeException e)
+			{
+				//Leave the DB on the previous version so that the rollups are built again next time it's opened
+				log.error("Couldn't build rollup tables - they'll be rebuilt next time the DB is opened", e);
+				newSchemaVersion = 1;
+			}
+		}
+		if(schemaVersion != newSchemaVersion)
+			execute("pragma user_version = " + newSchemaVersion);
 
 		//Log the tables and their columns
 		if(log.isDebugEnabled())
@@ -53,6 +137,93 @@ public class DbConnection
 		}
 	}
 
+	public DbConnection(File file)
+	{
+		this(file, DEFAULT_NUM_READERS);
+	}
+
+	/**
+	 * Checks if the table exists and has the column
+	 */
+	private boolean tableHasColumn(String table, String column)
+	{
+		List<String> columns = execute("pragma table_info('" + table + "')", results -> results.getString("name"));
+		return columns != null && columns.contains(column);
+	}
+
+	/**
+	 * Migrates the analytics table from the original schema, which used a text "<projectId>_<date>" ID and text dates,
+	 * to integer epoch day dates with a (project_id, date) primary key in a table without a rowid
+	 * Rows are streamed from the old table into the new one within a single transaction, then the DB is vacuumed to
+	 * reclaim the space used by the old table
+	 */
+	private void migrateToEpochDays()
+	{
+		log.info("Migrating {} table to epoch day dates...", TABLE_ANALYTICS);
+		String oldTable = TABLE_ANALYTICS + "_old";
+		String columns = "project_id,date,points,historical_download,daily_download,daily_unique_download,daily_twitch_app_download,daily_curseforge_download";
+		Connection conn = getConnection();
+		int count = 0;
+		try
+		{
+			conn.setAutoCommit(false);
+			try(Statement statement = conn.createStatement())
+			{
+				statement.execute(String.format("alter table %s rename to %s", TABLE_ANALYTICS, oldTable));
+				statement.execute(String.format(QUERY_CREATE_WITHOUT_ROWID, TABLE_ANALYTICS, ANALYTICS_COLUMNS));
+			}
+			try(Statement select = conn.createStatement();
+			    ResultSet results = select.executeQuery(String.format("select %s from %s", columns, oldTable));
+			    PreparedStatement insert = conn.prepareStatement(String.format(QUERY_INSERT, TABLE_ANALYTICS, columns, "?,?,?,?,?,?,?,?")))
+			{
+				while(results.next())
+				{
+					insert.setInt(1, results.getInt(1));
+					insert.setInt(2, new AnalyticDate(results.getString(2)).getEpochDay());
+					insert.setFloat(3, results.getFloat(3));
+					for(int i = 4; i <= 8; i++)
+						insert.setInt(i, results.getInt(i));
+					insert.addBatch();
+					if(++count % DEFAULT_BATCH_FLUSH_SIZE == 0)
+						insert.executeBatch();
+				}
+				insert.executeBatch();
+			}
+			try(Statement statement = conn.createStatement())
+			{
+				statement.execute("drop table " + oldTable);
+				statement.execute("pragma user_version = 1");
+			}
+			conn.commit();
+		}
+		catch(SQLException | RuntimeException e)
+		{
+			log.error("Failed to migrate " + TABLE_ANALYTICS + " table - rolling back", e);
+			try
+			{
+				conn.rollback();
+			}
+			catch(SQLException e1)
+			{
+				log.error("Couldn't rollback migration", e1);
+			}
+			System.exit(0);
+		}
+		finally
+		{
+			try
+			{
+				conn.setAutoCommit(true);
+			}
+			catch(SQLException e)
+			{
+				log.error("Couldn't restore auto commit", e);
+			}
+		}
+		log.info("Migrated {} analytics rows", count);
+		execute("vacuum");
+	}
+
 	/**
 	 * Gets a connection to the DB
 	 */
@@ -60,9 +231,14 @@ public class DbConnection
 	{
 		try
 		{
-			return connection != null && !connection.isClosed() ?
-					connection :
-					(connection = DriverManager.getConnection("jdbc:sqlite:" + location));
+			if(connection != null && !connection.isClosed())
+				return connection;
+			//Statements from a previous connection can't be reused
+			synchronized(statementCache)
+			{
+				statementCache.clear();
+			}
+			return connection = openConnection(false);
 		}
 		catch(SQLException e)
 		{
@@ -79,15 +255,24 @@ public class DbConnection
 	public void execute(String query)
 	{
 		log.debug("Executing query: {}", query);
+		writeLock.lock();
 		try(Statement statement = getConnection().createStatement())
 		{
+			long start = System.nanoTime();
 			statement.execute(query);
+			metrics.statementExecuted(start);
 			log.trace("Executed query");
 		}
 		catch(SQLException e)
 		{
 			log.error(String.format("Couldn't execute query '%s'", query), e);
 		}
+		finally
+		{
+			writeLock.unlock();
+			//We can't easily tell what an arbitrary statement changed
+			queryCache.invalidateAll();
+		}
 	}
 
 	/**
@@ -99,25 +284,73 @@ public class DbConnection
 	 */
 	public <T> List<T> execute(String query, ResultParser<T> resultParser)
 	{
-		log.debug("Executing query: {}", query);
-		try(Statement statement = getConnection().createStatement();
-		    ResultSet results = statement.executeQuery(query))
+		try(ResultCursor<T> cursor = query(query, resultParser))
 		{
-			List<T> resultList = new LinkedList<>();
-			while(results.next())
-				resultList.add(resultParser.apply(results));
+			List<T> resultList = new ArrayList<>();
+			cursor.forEachRemaining(resultList::add);
 			log.trace("Executed query");
 			return resultList;
 		}
-		catch(SQLException e)
+		catch(SQLException | RuntimeException e)
 		{
 			log.error(String.format("Error parsing results from query '%s'", query), e);
 		}
 		return null;
 	}
 
+	/**
+	 * Executes a query on the DB and returns a cursor which parses each row with the function as it's iterated
+	 * The cursor should be used in a try-with-resources so that it's closed if not fully iterated
+	 * This uses the writer connection, so it waits for any batch open on another thread, and blocks writes from other
+	 * threads until the cursor is closed
+	 * @param query Query to execute
+	 * @param resultParser Function to format each row
+	 * @param <T> The type the function will return
+	 * @return The cursor over the results
+	 */
+	public <T> ResultCursor<T> query(String query, ResultParser<T> resultParser) throws SQLException
+	{
+		log.debug("Executing query: {}", query);
+		writeLock.lock();
+		try
+		{
+			long start = System.nanoTime();
+			ResultCursor<T> cursor = new ResultCursor<>(query, getConnection().createStatement(), resultParser, writeLock::unlock);
+			metrics.statementExecuted(start);
+			return cursor;
+		}
+		catch(SQLException | RuntimeException e)
+		{
+			writeLock.unlock();
+			throw e;
+		}
+	}
+
+	/**
+	 * Executes a query on the DB and passes each row, as formatted by the function, to the consumer
+	 * @param query Query to execute
+	 * @param resultParser Function to format each row
+	 * @param consumer Consumer of each formatted row
+	 * @param <T> The type the function will return
+	 * @return The number of rows consumed
+	 */
+	public <T> int forEach(String query, ResultParser<T> resultParser, Consumer<T> consumer) throws SQLException
+	{
+		int count = 0;
+		try(ResultCursor<T> cursor = query(query, resultParser))
+		{
+			while(cursor.hasNext())
+			{
+				consumer.accept(cursor.next());
+				count++;
+			}
+		}
+		return count;
+	}
+
 	/**
 	 * Executes a query on the DB that expects a single result and returns the result as formatted by the function
+	 * Only the first two rows are read, so that a query with more than one result fails quickly
 	 * @param query Query to execute
 	 * @param resultParser Function to format the result
 	 * @param <T> The type the function will return
@@ -125,11 +358,195 @@ public class DbConnection
 	 */
 	public <T> T executeSingleResult(String query, ResultParser<T> resultParser)
 	{
-		List<T> resultList = execute(query, resultParser);
-		Integer size = null;
-		if(resultList == null || (size = resultList.size()) > 1)
-			throw new RuntimeException(String.format("Expected 1 result, but got %s! Query -> %s", size, query));
-		return size == 0 ? null : resultList.get(0);
+		try(ResultCursor<T> cursor = query(query, resultParser))
+		{
+			return getSingleResult(query, cursor);
+		}
+		catch(SQLException e)
+		{
+			throw new RuntimeException(String.format("Error executing query '%s'", query), e);
+		}
+	}
+
+	/**
+	 * Turns off journaling and syncing to load a new DB as fast as possible, or restores them once it's loaded
+	 * A crash while bulk loading can corrupt the DB, so it should only be used for a DB that can be recreated
+	 */
+	public void setBulkLoad(boolean bulkLoad)
+	{
+		log.info("{} bulk load mode", bulkLoad ? "Enabling" : "Disabling");
+		if(bulkLoad)
+		{
+			execute("pragma journal_mode = off");
+			execute("pragma synchronous = off");
+			execute("pragma cache_size = -" + BULK_LOAD_CACHE_SIZE_KIB);
+		}
+		else
+		{
+			execute("pragma cache_size = -" + CACHE_SIZE_KIB);
+			if(!":memory:".equals(location))
+			{
+				execute("pragma journal_mode = wal");
+				execute("pragma synchronous = normal");
+			}
+		}
+	}
+
+	/**
+	 * Opens a new connection to the DB
+	 * File DBs use write-ahead logging, so that read only connections see a consistent snapshot without blocking, or
+	 * being blocked by, the writer
+	 */
+	private Connection openConnection(boolean readOnly) throws SQLException
+	{
+		SQLiteConfig config = new SQLiteConfig();
+		config.setBusyTimeout(BUSY_TIMEOUT_MS);
+		config.setCacheSize(-CACHE_SIZE_KIB);
+		if(!":memory:".equals(location))
+		{
+			config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+			//Normal is durable in WAL mode except on power loss, and avoids an fsync on every commit
+			config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+		}
+		config.setReadOnly(readOnly);
+		return DriverManager.getConnection("jdbc:sqlite:" + location, config.toProperties());
+	}
+
+	/**
+	 * Takes an idle read only connection, opening a new one if the max hasn't been reached yet
+	 * Blocks if all readers are in use
+	 */
+	private Connection acquireReader() throws SQLException
+	{
+		Connection reader = readers.poll();
+		if(reader != null)
+			return reader;
+		if(numReaders.incrementAndGet() <= maxReaders)
+		{
+			log.debug("Opening read only connection {}", numReaders.get());
+			try
+			{
+				return openConnection(true);
+			}
+			catch(SQLException e)
+			{
+				numReaders.decrementAndGet();
+				throw e;
+			}
+		}
+		numReaders.decrementAndGet();
+		try
+		{
+			return readers.take();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a read only connection", e);
+		}
+	}
+
+	/**
+	 * Returns the read only connection to the pool once a query has finished with it
+	 */
+	private void releaseReader(Connection reader)
+	{
+		if(!readers.offer(reader))
+		{
+			try
+			{
+				reader.close();
+			}
+			catch(SQLException e)
+			{
+				log.error("Couldn't close read only connection", e);
+			}
+		}
+	}
+
+	/**
+	 * Executes a read only query using one of the read only connections, so that it doesn't block or get blocked by
+	 * writes, and returns a cursor which parses each row with the function as it's iterated
+	 * The connection is returned to the pool once the cursor is closed
+	 * @param query Query to execute
+	 * @param resultParser Function to format each row
+	 * @param <T> The type the function will return
+	 * @return The cursor over the results
+	 */
+	public <T> ResultCursor<T> queryReadOnly(String query, ResultParser<T> resultParser) throws SQLException
+	{
+		//An in-memory DB only has the writer connection, so reads are serialised with the writes on it
+		if(maxReaders <= 0)
+			return query(query, resultParser);
+		log.debug("Executing read only query: {}", query);
+		Connection reader = acquireReader();
+		try
+		{
+			long start = System.nanoTime();
+			ResultCursor<T> cursor = new ResultCursor<>(query, reader.createStatement(), resultParser, () -> releaseReader(reader));
+			metrics.statementExecuted(start);
+			return cursor;
+		}
+		catch(SQLException | RuntimeException e)
+		{
+			releaseReader(reader);
+			throw e;
+		}
+	}
+
+	/**
+	 * Executes a read only query that expects a single result using one of the read only connections, and returns the
+	 * result as formatted by the function
+	 * @param query Query to execute
+	 * @param resultParser Function to format the result
+	 * @param <T> The type the function will return
+	 * @return The object as a result of the function
+	 */
+	public <T> T executeSingleResultReadOnly(String query, ResultParser<T> resultParser)
+	{
+		try(ResultCursor<T> cursor = queryReadOnly(query, resultParser))
+		{
+			return getSingleResult(query, cursor);
+		}
+		catch(SQLException e)
+		{
+			throw new RuntimeException(String.format("Error executing query '%s'", query), e);
+		}
+	}
+
+	/**
+	 * Gets the metrics of statements executed on this connection
+	 */
+	public DbMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Gets the cache of read only query results
+	 */
+	public QueryCache getQueryCache()
+	{
+		return queryCache;
+	}
+
+	/**
+	 * Gets the cached prepared statement for the query, preparing it if it's not in the cache yet
+	 * Cached statements shouldn't be closed, and should only be used by one thread at a time
+	 */
+	PreparedStatement getCachedStatement(String query) throws SQLException
+	{
+		Connection conn = getConnection();
+		synchronized(statementCache)
+		{
+			PreparedStatement statement = statementCache.get(query);
+			if(statement == null || statement.isClosed())
+			{
+				log.trace("Preparing statement: {}", query);
+				statementCache.put(query, statement = conn.prepareStatement(query));
+			}
+			return statement;
+		}
 	}
 
 	/**
@@ -137,16 +554,135 @@ public class DbConnection
 	 */
 	public void insert(DbStorable storable)
 	{
-		try(PreparedStatement statement = storable.createStatement(getConnection()))
+		writeLock.lock();
+		try
 		{
+			PreparedStatement statement = getCachedStatement(storable.getInsertQuery());
 			log.debug("Executing insert of {}", storable);
+			storable.setStatementValues(statement);
+			long start = System.nanoTime();
 			statement.executeUpdate();
+			metrics.statementExecuted(start);
 			log.trace("Executed query");
+			queryCache.invalidate(storable.getTableName());
 		}
 		catch(SQLException e)
 		{
 			log.error("Couldn't create query", e);
 		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	private static <T> T getSingleResult(String query, ResultCursor<T> cursor)
+	{
+		T result = cursor.hasNext() ? cursor.next() : null;
+		if(cursor.hasNext())
+			throw new RuntimeException(String.format("Expected 1 result, but got more! Query -> %s", query));
+		return result;
+	}
+
+	/**
+	 * Starts a new batch of inserts which will be written within a single transaction
+	 * The batch should be used in a try-with-resources so that it's rolled back if not committed
+	 * Other threads can't write to the DB until the batch is closed, so this blocks while another thread has a batch open
+	 * @param flushSize Number of inserts to hold before sending them to the DB
+	 */
+	public DbBatch beginBatch(int flushSize) throws SQLException
+	{
+		writeLock.lock();
+		try
+		{
+			return new DbBatch(this, getConnection(), flushSize);
+		}
+		catch(SQLException | RuntimeException e)
+		{
+			writeLock.unlock();
+			throw e;
+		}
+	}
+
+	/**
+	 * Called by a batch once it's closed, so that other threads can write again
+	 */
+	void endBatch()
+	{
+		writeLock.unlock();
+	}
+
+	/**
+	 * Starts a new batch of inserts with the default flush size
+	 */
+	public DbBatch beginBatch() throws SQLException
+	{
+		return beginBatch(DEFAULT_BATCH_FLUSH_SIZE);
+	}
+
+	/**
+	 * Inserts or updates all of the objects in the DB within a single transaction
+	 * If any of them fail, then none of them will be written
+	 * @return True if all objects were written
+	 */
+	public boolean insertAll(Collection<? extends DbStorable> storables)
+	{
+		log.debug("Executing batch insert of {} objects", storables.size());
+		try(DbBatch batch = beginBatch())
+		{
+			batch.addAll(storables);
+			batch.commit();
+			log.trace("Executed batch insert");
+			return true;
+		}
+		catch(SQLException e)
+		{
+			log.error("Couldn't execute batch insert", e);
+		}
+		return false;
+	}
+
+	/**
+	 * Closes all cached statements and the connections to the DB
+	 */
+	public void close()
+	{
+		Connection reader;
+		while((reader = readers.poll()) != null)
+		{
+			try
+			{
+				reader.close();
+			}
+			catch(SQLException e)
+			{
+				log.error("Couldn't close read only connection", e);
+			}
+		}
+		synchronized(statementCache)
+		{
+			for(PreparedStatement statement : statementCache.values())
+			{
+				try
+				{
+					statement.close();
+				}
+				catch(SQLException e)
+				{
+					log.error("Couldn't close cached statement", e);
+				}
+			}
+			statementCache.clear();
+		}
+		try
+		{
+			if(connection != null)
+				connection.close();
+		}
+		catch(SQLException e)
+		{
+			log.error("Couldn't close connection to DB", e);
+		}
 	}
 
 	private void setAllValuesToStatement(PreparedStatement statement, List<Object> values, int index) throws SQLException
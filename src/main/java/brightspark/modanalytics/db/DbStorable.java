@@ -10,10 +10,12 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class DbStorable
 {
-	protected String insertQuery = String.format(DbConnection.QUERY_INSERT, getTableName(), getColumns(), getValuePlaceholders());
+	//The insert query for each type, which is only created once per type rather than for every instance
+	private static final Map<Class<? extends DbStorable>, String> INSERT_QUERIES = new ConcurrentHashMap<>();
 
 	/**
 	 * Gets the table name for this type
@@ -73,7 +75,29 @@ public abstract class DbStorable
 		return allData;
 	}
 
-	public abstract PreparedStatement createStatement(Connection connection) throws SQLException;
+	/**
+	 * Gets the insert query for this type
+	 */
+	public String getInsertQuery()
+	{
+		return INSERT_QUERIES.computeIfAbsent(getClass(), type ->
+			String.format(DbConnection.QUERY_INSERT, getTableName(), getColumns(), getValuePlaceholders()));
+	}
+
+	/**
+	 * Sets all of the values of this object to the parameters of the insert statement
+	 */
+	public abstract void setStatementValues(PreparedStatement statement) throws SQLException;
+
+	/**
+	 * Creates a new insert statement for this object on the connection
+	 */
+	public PreparedStatement createStatement(Connection connection) throws SQLException
+	{
+		PreparedStatement statement = connection.prepareStatement(getInsertQuery());
+		setStatementValues(statement);
+		return statement;
+	}
 
 	@Override
 	public String toString()
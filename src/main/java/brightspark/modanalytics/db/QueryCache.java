@@ -0,0 +1,273 @@
+package brightspark.modanalytics.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A cache of read only query results, keyed by the normalised query text and bounded by the estimated memory used
+ * by the results, evicting the least recently used results first
+ * Results are invalidated whenever a table the query references is written to
+ */
+public class QueryCache
+{
+	private static final Logger log = LogManager.getLogger(QueryCache.class);
+	public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+	private static final Pattern IDENTIFIER = Pattern.compile("[a-z_][a-z0-9_]*");
+	//Functions and keywords which give a different result each time they're used, or depend on earlier writes
+	private static final Pattern VOLATILE = Pattern.compile(
+		"\\b(random|randomblob|changes|total_changes|last_insert_rowid) ?\\(|\\bcurrent_(timestamp|date|time)\\b|'now'",
+		Pattern.CASE_INSENSITIVE);
+
+	private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75F, true);
+	private long maxSize;
+	private long size = 0;
+	//Incremented by every invalidation, so that results read before a write aren't cached after it
+	private long version = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+
+	/**
+	 * @param maxSize The max estimated size in bytes of all cached results, or 0 to disable the cache
+	 */
+	public QueryCache(long maxSize)
+	{
+		this.maxSize = maxSize;
+	}
+
+	public QueryCache()
+	{
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Normalises the query so that queries which only differ by whitespace or letter case share a result
+	 * Quoted strings are left as they are
+	 */
+	public static String normalise(String query)
+	{
+		StringBuilder sb = new StringBuilder(query.length());
+		char quote = 0;
+		boolean space = false;
+		for(int i = 0; i < query.length(); i++)
+		{
+			char c = query.charAt(i);
+			if(quote != 0)
+			{
+				sb.append(c);
+				if(c == quote)
+					quote = 0;
+			}
+			else if(Character.isWhitespace(c))
+				space = true;
+			else
+			{
+				if(space && sb.length() > 0)
+					sb.append(' ');
+				space = false;
+				if(c == '\'' || c == '"' || c == '`')
+					quote = c;
+				sb.append(Character.toLowerCase(c));
+			}
+		}
+		//Trailing semicolons don't change the query
+		int end = sb.length();
+		while(end > 0 && (sb.charAt(end - 1) == ';' || sb.charAt(end - 1) == ' '))
+			end--;
+		sb.setLength(end);
+		return sb.toString();
+	}
+
+	/**
+	 * Checks if the results of the normalised query can be cached
+	 * Only selects are cached, and not ones which would give a different result each time, such as those using the
+	 * current time or the number of rows changed by the last write
+	 */
+	public static boolean isCacheable(String normalisedQuery)
+	{
+		return (normalisedQuery.startsWith("select ") || normalisedQuery.startsWith("with ")) &&
+			!VOLATILE.matcher(normalisedQuery).find();
+	}
+
+	/**
+	 * Gets all of the identifiers in the query, which includes any tables it references
+	 */
+	static Set<String> getIdentifiers(String query)
+	{
+		Set<String> identifiers = new HashSet<>();
+		Matcher matcher = IDENTIFIER.matcher(query.toLowerCase(Locale.ROOT));
+		while(matcher.find())
+			identifiers.add(matcher.group());
+		return identifiers;
+	}
+
+	/**
+	 * Gets the cached result for the normalised query
+	 * @return The result, or null if it's not cached
+	 */
+	public synchronized CachedResult get(String normalisedQuery)
+	{
+		Entry entry = entries.get(normalisedQuery);
+		if(entry == null)
+		{
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.result;
+	}
+
+	/**
+	 * Gets the current version, which should be read before executing a query whose result will be cached
+	 */
+	public synchronized long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Caches the result of the normalised query, evicting the least recently used results to make space
+	 * @param version The version from before the query was executed - if anything has been invalidated since then,
+	 *                the result may be out of date, so isn't cached
+	 */
+	public synchronized void put(String normalisedQuery, CachedResult result, long version)
+	{
+		if(version != this.version || result.getSize() > maxSize)
+			return;
+		Entry old = entries.put(normalisedQuery, new Entry(result, getIdentifiers(normalisedQuery)));
+		if(old != null)
+			size -= old.result.getSize();
+		size += result.getSize();
+		evict();
+	}
+
+	/**
+	 * Removes the cached results of queries which reference any of the tables
+	 */
+	public synchronized void invalidate(Collection<String> tables)
+	{
+		version++;
+		if(entries.isEmpty())
+			return;
+		Iterator<Entry> iterator = entries.values().iterator();
+		while(iterator.hasNext())
+		{
+			Entry entry = iterator.next();
+			for(String table : tables)
+			{
+				if(entry.tables.contains(table.toLowerCase(Locale.ROOT)))
+				{
+					size -= entry.result.getSize();
+					iterator.remove();
+					invalidations++;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the cached results of queries which reference the table
+	 */
+	public void invalidate(String table)
+	{
+		invalidate(Collections.singleton(table));
+	}
+
+	/**
+	 * Removes all cached results
+	 */
+	public synchronized void invalidateAll()
+	{
+		version++;
+		invalidations += entries.size();
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * Sets the max estimated size in bytes of all cached results, evicting results if needed
+	 */
+	public synchronized void setMaxSize(long maxSize)
+	{
+		this.maxSize = maxSize;
+		evict();
+	}
+
+	public synchronized long getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * Gets the max estimated size in bytes of a single result which can be cached
+	 */
+	public synchronized long getMaxResultSize()
+	{
+		//Stop a single result from pushing everything else out of the cache
+		return maxSize / 4;
+	}
+
+	private void evict()
+	{
+		Iterator<Entry> iterator = entries.values().iterator();
+		while(size > maxSize && iterator.hasNext())
+		{
+			size -= iterator.next().result.getSize();
+			iterator.remove();
+			evictions++;
+		}
+		log.trace("Query cache has {} results using {} bytes", entries.size(), size);
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	public synchronized long getInvalidations()
+	{
+		return invalidations;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("%s results using %s/%s KiB - hits: %s, misses: %s, evictions: %s, invalidations: %s",
+			entries.size(), size / 1024, maxSize / 1024, hits, misses, evictions, invalidations);
+	}
+
+	private static class Entry
+	{
+		private final CachedResult result;
+		private final Set<String> tables;
+
+		private Entry(CachedResult result, Set<String> tables)
+		{
+			this.result = result;
+			this.tables = tables;
+		}
+	}
+}
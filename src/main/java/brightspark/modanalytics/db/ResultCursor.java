@@ -0,0 +1,113 @@
+package brightspark.modanalytics.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily iterates over the results of a query, parsing each row only when it's requested
+ * The statement and results are closed once the last row has been read, or when this is closed
+ * @param <T> The type each row is parsed into
+ */
+public class ResultCursor<T> implements Iterator<T>, AutoCloseable
+{
+	private final String query;
+	private final Statement statement;
+	private final ResultSet results;
+	private final ResultParser<T> resultParser;
+	private final Runnable onClose;
+	private boolean hasNext;
+	private boolean closed = false;
+
+	/**
+	 * @param onClose Run after the statement has been closed
+	 */
+	ResultCursor(String query, Statement statement, ResultParser<T> resultParser, Runnable onClose) throws SQLException
+	{
+		this.query = query;
+		this.statement = statement;
+		this.resultParser = resultParser;
+		this.onClose = onClose;
+		try
+		{
+			results = statement.executeQuery(query);
+			hasNext = results.next();
+		}
+		catch(SQLException e)
+		{
+			statement.close();
+			throw e;
+		}
+		if(!hasNext)
+			close();
+	}
+
+	ResultCursor(String query, Statement statement, ResultParser<T> resultParser) throws SQLException
+	{
+		this(query, statement, resultParser, null);
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		return hasNext;
+	}
+
+	@Override
+	public T next()
+	{
+		if(!hasNext)
+			throw new NoSuchElementException();
+		try
+		{
+			T result = resultParser.apply(results);
+			hasNext = results.next();
+			if(!hasNext)
+				close();
+			return result;
+		}
+		catch(SQLException e)
+		{
+			close();
+			throw new RuntimeException(String.format("Error parsing results from query '%s'", query), e);
+		}
+	}
+
+	/**
+	 * Gets a {@link Stream} of the remaining rows, which closes this cursor when it's closed
+	 */
+	public Stream<T> stream()
+	{
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+			.onClose(this::close);
+	}
+
+	@Override
+	public void close()
+	{
+		if(closed)
+			return;
+		closed = true;
+		hasNext = false;
+		try
+		{
+			//Closing the statement also closes its results
+			statement.close();
+		}
+		catch(SQLException e)
+		{
+			throw new RuntimeException(String.format("Couldn't close statement for query '%s'", query), e);
+		}
+		finally
+		{
+			if(onClose != null)
+				onClose.run();
+		}
+	}
+}
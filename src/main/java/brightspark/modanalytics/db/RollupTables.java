@@ -0,0 +1,169 @@
+package brightspark.modanalytics.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Weekly and monthly rollups of the analytics per project, so that reports over long periods don't need to aggregate
+ * every daily row
+ * Each rollup row is keyed by the project and the epoch day that the period starts on (weeks start on Monday)
+ * The rollups are updated for the affected periods whenever analytics are written, and can be rebuilt from scratch
+ */
+public class RollupTables
+{
+	private static final Logger log = LogManager.getLogger(RollupTables.class);
+	public static final String TABLE_WEEKLY = "analytics_weekly";
+	public static final String TABLE_MONTHLY = "analytics_monthly";
+
+	private static final String COLUMNS =
+		"project_id integer not null, " +
+		"start integer not null, " +
+		"days integer not null, " +
+		"points real not null, " +
+		"historical_download integer not null, " +
+		"daily_download integer not null, " +
+		"daily_unique_download integer not null, " +
+		"daily_twitch_app_download integer not null, " +
+		"daily_curseforge_download integer not null, " +
+		"primary key (project_id, start)";
+	//Historical downloads are a running total, so the latest value in the period is used rather than the sum
+	private static final String AGGREGATES = "count(*), sum(points), max(historical_download), sum(daily_download), " +
+		"sum(daily_unique_download), sum(daily_twitch_app_download), sum(daily_curseforge_download)";
+	private static final String QUERY_UPDATE = "replace into %s select project_id, ?, " + AGGREGATES + " from " +
+		DbConnection.TABLE_ANALYTICS + " where project_id = ? and date between ? and ? group by project_id";
+	private static final String QUERY_REBUILD = "insert into %s select project_id, %s as period_start, " + AGGREGATES + " from " +
+		DbConnection.TABLE_ANALYTICS + " group by project_id, period_start";
+
+	public enum Period
+	{
+		WEEK(TABLE_WEEKLY, "date - ((date + 3) % 7)"),
+		MONTH(TABLE_MONTHLY, "cast(julianday(date(date * 86400, 'unixepoch', 'start of month')) - 2440587.5 as integer)");
+
+		private final String table;
+		private final String startExpression;
+
+		Period(String table, String startExpression)
+		{
+			this.table = table;
+			this.startExpression = startExpression;
+		}
+
+		public String getTable()
+		{
+			return table;
+		}
+
+		/**
+		 * Gets the epoch day that the period containing the given epoch day starts on
+		 */
+		public int getStart(int epochDay)
+		{
+			switch(this)
+			{
+				case WEEK:
+					//The epoch was a Thursday
+					return epochDay - Math.floorMod(epochDay + 3, 7);
+				case MONTH:
+				default:
+					return (int) LocalDate.ofEpochDay(epochDay).withDayOfMonth(1).toEpochDay();
+			}
+		}
+
+		/**
+		 * Gets the last epoch day of the period that starts on the given epoch day
+		 */
+		public int getEnd(int start)
+		{
+			switch(this)
+			{
+				case WEEK:
+					return start + 6;
+				case MONTH:
+				default:
+					return (int) LocalDate.ofEpochDay(start).plusMonths(1).toEpochDay() - 1;
+			}
+		}
+	}
+
+	static void createTables(DbConnection db)
+	{
+		for(Period period : Period.values())
+			db.execute(String.format("create table if not exists %s (%s) without rowid", period.table, COLUMNS));
+	}
+
+	/**
+	 * Updates the rollups for the periods that were affected by the changes, within the batch's transaction
+	 */
+	public static void update(DbBatch batch, Changes changes) throws SQLException
+	{
+		for(Period period : Period.values())
+		{
+			PreparedStatement statement = batch.prepare(String.format(QUERY_UPDATE, period.table));
+			for(Map.Entry<Integer, Set<Integer>> entry : changes.get(period).entrySet())
+			{
+				for(int start : entry.getValue())
+				{
+					statement.setInt(1, start);
+					statement.setInt(2, entry.getKey());
+					statement.setInt(3, start);
+					statement.setInt(4, period.getEnd(start));
+					statement.addBatch();
+				}
+			}
+			statement.executeBatch();
+		}
+	}
+
+	/**
+	 * Rebuilds all of the rollups from the analytics within a single transaction
+	 */
+	public static void rebuild(DbConnection db) throws SQLException
+	{
+		long start = System.currentTimeMillis();
+		try(DbBatch batch = db.beginBatch())
+		{
+			for(Period period : Period.values())
+			{
+				batch.prepare("delete from " + period.table).executeUpdate();
+				batch.prepare(String.format(QUERY_REBUILD, period.table, period.startExpression)).executeUpdate();
+			}
+			batch.commit();
+		}
+		log.info("Rebuilt rollups in {}ms", System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * The periods for each project that have been affected by written analytics
+	 */
+	public static class Changes
+	{
+		private final Map<Period, Map<Integer, Set<Integer>>> periods = new HashMap<>();
+
+		public void add(int projectId, int epochDay)
+		{
+			for(Period period : Period.values())
+				periods.computeIfAbsent(period, p -> new HashMap<>())
+					.computeIfAbsent(projectId, id -> new HashSet<>())
+					.add(period.getStart(epochDay));
+		}
+
+		private Map<Integer, Set<Integer>> get(Period period)
+		{
+			return periods.getOrDefault(period, Collections.emptyMap());
+		}
+
+		public boolean isEmpty()
+		{
+			return periods.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package brightspark.modanalytics.ingest;
+
+import brightspark.modanalytics.dao.Analytics;
+import brightspark.modanalytics.dao.Project;
+
+import java.util.List;
+
+/**
+ * A chunk of analytics parsed from a CSV file, along with the project that the file is for
+ */
+public class AnalyticsChunk
+{
+	private final Project project;
+	private final List<Analytics> analytics;
+
+	public AnalyticsChunk(Project project, List<Analytics> analytics)
+	{
+		this.project = project;
+		this.analytics = analytics;
+	}
+
+	public Project getProject()
+	{
+		return project;
+	}
+
+	public List<Analytics> getAnalytics()
+	{
+		return analytics;
+	}
+
+	/**
+	 * Gets the latest date in the chunk as an epoch day, which is how recent the export it came from is
+	 */
+	public int getLatestEpochDay()
+	{
+		int latest = Integer.MIN_VALUE;
+		for(Analytics row : analytics)
+			latest = Math.max(latest, row.getDate().getEpochDay());
+		return latest;
+	}
+}
@@ -0,0 +1,115 @@
+package brightspark.modanalytics.ingest;
+
+import brightspark.modanalytics.dao.Analytics;
+import brightspark.modanalytics.dao.Project;
+import com.opencsv.CSVParser;
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streams the rows of an analytics CSV file as chunks of {@link Analytics}
+ * Only a single chunk is held in memory at a time, so memory usage doesn't grow with the file size
+ * Invalid rows are added to the {@link RowRejects} if one is given, otherwise they fail the whole file
+ */
+public class AnalyticsCsvReader implements AnalyticsReader
+{
+	private static final Logger log = LogManager.getLogger(AnalyticsCsvReader.class);
+	private static final CSVParser CSV_PARSER = new CSVParser();
+	//Max number of CSV rows held in a chunk
+	public static final int CHUNK_SIZE = 500;
+	//Size of the buffer used to decompress compressed CSVs
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	private final CSVReader reader;
+	private final int chunkSize;
+	private final int lineOffset;
+	private final RowRejects rejects;
+	private Project project = null;
+	private int numRows = 0;
+
+	/**
+	 * @param input The CSV input
+	 * @param skipLines The number of lines to skip at the start of the input (i.e. the header)
+	 * @param chunkSize The max number of rows in each chunk
+	 * @param lineOffset The number of lines of the file before the start of the input, for the line numbers of rejects
+	 * @param rejects Where invalid rows are added, or null to throw an exception for them
+	 */
+	public AnalyticsCsvReader(Reader input, int skipLines, int chunkSize, int lineOffset, RowRejects rejects)
+	{
+		reader = new CSVReaderBuilder(input).withSkipLines(skipLines).withCSVParser(CSV_PARSER).build();
+		this.chunkSize = chunkSize;
+		this.lineOffset = lineOffset;
+		this.rejects = rejects;
+	}
+
+	public AnalyticsCsvReader(Reader input, int skipLines, int chunkSize)
+	{
+		this(input, skipLines, chunkSize, 0, null);
+	}
+
+	public AnalyticsCsvReader(File file, int chunkSize, RowRejects rejects) throws IOException
+	{
+		this(new FileReader(file), 1, chunkSize, 0, rejects);
+	}
+
+	public AnalyticsCsvReader(File file, int chunkSize) throws IOException
+	{
+		this(file, chunkSize, null);
+	}
+
+	public AnalyticsCsvReader(File file) throws IOException
+	{
+		this(file, CHUNK_SIZE);
+	}
+
+	@Override
+	public AnalyticsChunk nextChunk() throws IOException
+	{
+		List<Analytics> chunk = new ArrayList<>(chunkSize);
+		String[] row;
+		while(chunk.size() < chunkSize && (row = reader.readNext()) != null)
+		{
+			numRows++;
+			log.trace("Processing row: {}", Arrays.toString(row));
+			Analytics analytics;
+			try
+			{
+				analytics = new Analytics(row);
+			}
+			catch(RuntimeException e)
+			{
+				if(rejects == null)
+					throw e;
+				rejects.reject(lineOffset + reader.getLinesRead(), e, row);
+				continue;
+			}
+			//The project for the file is taken from the first row
+			if(project == null)
+				project = new Project(analytics.getProjectId(), row[2]);
+			chunk.add(analytics);
+		}
+		return chunk.isEmpty() ? null : new AnalyticsChunk(project, chunk);
+	}
+
+	@Override
+	public int getNumRows()
+	{
+		return numRows;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		reader.close();
+	}
+}
@@ -0,0 +1,118 @@
+package brightspark.modanalytics.ingest;
+
+import brightspark.modanalytics.dao.Analytics;
+import brightspark.modanalytics.db.DbConnection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps a digest of the metric values of each analytics row in the DB, so that rows which haven't changed can be
+ * skipped rather than replaced
+ * The digests for a project are loaded from the DB the first time the project is seen, and only the most recently
+ * used projects are kept in memory
+ * This isn't thread safe, and is expected to only be used by the thread writing to the DB
+ */
+public class AnalyticsDigestCache
+{
+	private static final Logger log = LogManager.getLogger(AnalyticsDigestCache.class);
+	//Max number of projects to keep the digests in memory for
+	public static final int DEFAULT_MAX_PROJECTS = 64;
+
+	public enum Change
+	{
+		NEW,
+		CHANGED,
+		UNCHANGED
+	}
+
+	private final DbConnection db;
+	private final Map<Integer, Map<Integer, Long>> projects;
+
+	public AnalyticsDigestCache(DbConnection db, int maxProjects)
+	{
+		this.db = db;
+		projects = new LinkedHashMap<Integer, Map<Integer, Long>>(16, 0.75F, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Map<Integer, Long>> eldest)
+			{
+				return size() > maxProjects;
+			}
+		};
+	}
+
+	public AnalyticsDigestCache(DbConnection db)
+	{
+		this(db, DEFAULT_MAX_PROJECTS);
+	}
+
+	/**
+	 * Compares the analytics against what's in the DB, and records it as the latest values
+	 * @return Whether the analytics is new, changed or unchanged compared to the DB
+	 */
+	public Change update(Analytics analytics)
+	{
+		Map<Integer, Long> digests = projects.computeIfAbsent(analytics.getProjectId(), this::load);
+		long digest = digest(analytics);
+		Long previous = digests.put(analytics.getDate().getEpochDay(), digest);
+		if(previous == null)
+			return Change.NEW;
+		return previous == digest ? Change.UNCHANGED : Change.CHANGED;
+	}
+
+	/**
+	 * Removes the digests for the project, so that they're loaded from the DB again next time
+	 * Should be used if writes for the project were rolled back
+	 */
+	public void invalidate(int projectId)
+	{
+		projects.remove(projectId);
+	}
+
+	private Map<Integer, Long> load(int projectId)
+	{
+		Map<Integer, Long> digests = new HashMap<>();
+		try
+		{
+			db.forEach("select * from " + DbConnection.TABLE_ANALYTICS + " where project_id = " + projectId, Analytics::new,
+				analytics -> digests.put(analytics.getDate().getEpochDay(), digest(analytics)));
+		}
+		catch(SQLException e)
+		{
+			throw new RuntimeException("Failed to load analytics from DB for project " + projectId, e);
+		}
+		log.debug("Loaded {} analytics digests for project {}", digests.size(), projectId);
+		return digests;
+	}
+
+	/**
+	 * Creates a 64 bit digest of the metric values of the analytics
+	 */
+	static long digest(Analytics analytics)
+	{
+		long hash = mix(Float.floatToIntBits(analytics.getPoints()));
+		hash = mix(hash ^ analytics.getHistoricalDownload());
+		hash = mix(hash ^ analytics.getDailyDownload());
+		hash = mix(hash ^ analytics.getDailyUniqueDownload());
+		hash = mix(hash ^ analytics.getDailyTwitchAppDownload());
+		return mix(hash ^ analytics.getDailyCurseForgeDownload());
+	}
+
+	/**
+	 * The finaliser from MurmurHash3, so that each value affects all bits of the digest
+	 */
+	private static long mix(long hash)
+	{
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,79 @@
+package brightspark.modanalytics.ingest;
+
+import java.io.*;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the analytics from a CSV file as chunks
+ * CSVs compressed with gzip (.gz) or zipped (.zip) are decompressed as they're read
+ */
+public interface AnalyticsReader extends ChunkSource, Closeable
+{
+	String GZIP_EXTENSION = ".gz";
+	String ZIP_EXTENSION = ".zip";
+
+	/**
+	 * Gets the number of rows read so far
+	 */
+	int getNumRows();
+
+	/**
+	 * Opens a reader for the CSV file
+	 * @param fastParser Whether to use the {@link FastAnalyticsCsvReader} rather than the generic opencsv parser
+	 */
+	static AnalyticsReader open(File file, boolean fastParser) throws IOException
+	{
+		return open(file, fastParser, null);
+	}
+
+	/**
+	 * Opens a reader for the CSV file which adds invalid rows to the rejects rather than failing
+	 * @param fastParser Whether to use the {@link FastAnalyticsCsvReader} rather than the generic opencsv parser.
+	 *                   Compressed files always use the generic parser since they can't be memory mapped
+	 * @param rejects Where invalid rows are added, or null to throw an exception for them
+	 */
+	static AnalyticsReader open(File file, boolean fastParser, RowRejects rejects) throws IOException
+	{
+		if(isCompressed(file))
+		{
+			InputStream input = new FileInputStream(file);
+			try
+			{
+				return open(input, file.getName(), rejects);
+			}
+			catch(IOException e)
+			{
+				input.close();
+				throw e;
+			}
+		}
+		return fastParser ?
+			new FastAnalyticsCsvReader(file, AnalyticsCsvReader.CHUNK_SIZE, rejects) :
+			new AnalyticsCsvReader(file, AnalyticsCsvReader.CHUNK_SIZE, rejects);
+	}
+
+	/**
+	 * Opens a reader for CSV content from a stream (e.g. a file restored from an archive) with the generic parser
+	 * @param name The name of the file that the content is from, which decides how it's decompressed
+	 * @param rejects Where invalid rows are added, or null to throw an exception for them
+	 */
+	static AnalyticsReader open(InputStream input, String name, RowRejects rejects) throws IOException
+	{
+		String lowerName = name.toLowerCase(Locale.ROOT);
+		if(lowerName.endsWith(GZIP_EXTENSION))
+			input = new GZIPInputStream(input, AnalyticsCsvReader.BUFFER_SIZE);
+		else if(lowerName.endsWith(ZIP_EXTENSION))
+			return new ZipAnalyticsReader(name, input, AnalyticsCsvReader.CHUNK_SIZE, rejects);
+		return new AnalyticsCsvReader(new InputStreamReader(input), 1, AnalyticsCsvReader.CHUNK_SIZE, 0, rejects);
+	}
+
+	/**
+	 * Checks whether the file is compressed, so its contents can't be read directly
+	 */
+	static boolean isCompressed(File file)
+	{
+		String name = file.getName().toLowerCase(Locale.ROOT);
+		return name.endsWith(GZIP_EXTENSION) || name.endsWith(ZIP_EXTENSION);
+	}
+}
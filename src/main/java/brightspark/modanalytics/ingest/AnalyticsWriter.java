@@ -0,0 +1,282 @@
+package brightspark.modanalytics.ingest;
+
+import brightspark.modanalytics.dao.Analytics;
+import brightspark.modanalytics.dao.FileCheckpoint;
+import brightspark.modanalytics.dao.Project;
+import brightspark.modanalytics.db.DbBatch;
+import brightspark.modanalytics.db.DbConnection;
+import brightspark.modanalytics.db.DbStorable;
+import brightspark.modanalytics.db.RollupTables;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the analytics from a {@link ChunkSource} to the DB
+ */
+public class AnalyticsWriter
+{
+	private static final Logger log = LogManager.getLogger(AnalyticsWriter.class);
+
+	private final DbConnection db;
+	private final ProjectRegistry projects;
+	private final AnalyticsDigestCache digestCache;
+	private final int checkpointRows;
+
+	/**
+	 * @param projects The registry of projects in the DB, which will be updated when projects are written
+	 * @param skipUnchanged Whether to skip writing rows which already exist in the DB with the same values
+	 * @param checkpointRows The number of rows of a file to write per transaction, recording a checkpoint with each
+	 *                       commit so that the file can be resumed, or 0 to write each file in a single transaction
+	 */
+	public AnalyticsWriter(DbConnection db, ProjectRegistry projects, boolean skipUnchanged, int checkpointRows)
+	{
+		this.db = db;
+		this.projects = projects;
+		digestCache = skipUnchanged ? new AnalyticsDigestCache(db) : null;
+		this.checkpointRows = checkpointRows;
+	}
+
+	public AnalyticsWriter(DbConnection db, ProjectRegistry projects, boolean skipUnchanged)
+	{
+		this(db, projects, skipUnchanged, 0);
+	}
+
+	/**
+	 * Writes all of the chunks from the source to the DB in a single transaction
+	 * If anything fails then nothing from the source is written
+	 * @return The number of analytics written or skipped
+	 */
+	public WriteResult write(ChunkSource source) throws IOException, SQLException
+	{
+		return write(source, null);
+	}
+
+	/**
+	 * Writes all of the chunks from the source, which was read from the file, to the DB
+	 * If checkpoints are enabled then files larger than the checkpoint size are written over multiple transactions,
+	 * each of which records how many rows of the file have been committed. If a checkpoint already exists for the file
+	 * then the rows it covers are skipped. Otherwise the whole file is written in a single transaction.
+	 * If anything fails then everything since the last checkpoint is rolled back, and the checkpoint is kept so that
+	 * the same file can be resumed later. The source is checked before each checkpoint is committed, so that e.g. a
+	 * file with too many invalid rows can be failed before any of it is committed.
+	 * @param file The file the source was read from, or null to always use a single transaction
+	 * @return The number of analytics written or skipped
+	 */
+	public WriteResult write(ChunkSource source, File file) throws IOException, SQLException
+	{
+		WriteResult result = new WriteResult(digestCache != null);
+		//A source can have chunks for multiple projects (e.g. a zip of CSVs)
+		Map<Integer, Project> changedProjects = new HashMap<>();
+		Map<Integer, Integer> latestEpochDays = new HashMap<>();
+		Set<Integer> projectIds = new HashSet<>();
+		RollupTables.Changes rollupChanges = new RollupTables.Changes();
+		int numRows = 0;
+		int uncommittedRows = 0;
+		FileCheckpoint checkpoint = null;
+		int skipRows = 0;
+		boolean hasCheckpoint = false;
+		DbBatch batch = db.beginBatch(AnalyticsCsvReader.CHUNK_SIZE);
+		try
+		{
+			if(file != null && checkpointRows > 0)
+			{
+				checkpoint = FileCheckpoint.load(batch, file);
+				if(checkpoint != null)
+				{
+					skipRows = checkpoint.getRows();
+					hasCheckpoint = true;
+					log.info("Resuming CSV {} after {} committed rows", file.getName(), skipRows);
+				}
+				else
+					checkpoint = new FileCheckpoint(file);
+			}
+
+			AnalyticsChunk chunk;
+			while((chunk = source.nextChunk()) != null)
+			{
+				//Check that the project exists in the DB and its name is up to date - if not, write it
+				Project project = chunk.getProject();
+				int latestEpochDay = latestEpochDays.merge(project.getId(), chunk.getLatestEpochDay(), Math::max);
+				Project written = changedProjects.get(project.getId());
+				if((written == null || !written.getName().equals(project.getName())) && projects.needsWrite(project, latestEpochDay))
+				{
+					batch.add(project);
+					changedProjects.put(project.getId(), project);
+				}
+
+				//Skip the rows which were already committed before the file was interrupted
+				List<Analytics> analyticsList = chunk.getAnalytics();
+				if(numRows < skipRows)
+				{
+					int skip = Math.min(skipRows - numRows, analyticsList.size());
+					numRows += skip;
+					analyticsList = analyticsList.subList(skip, analyticsList.size());
+					if(analyticsList.isEmpty())
+						continue;
+				}
+
+				addAnalytics(batch, analyticsList, result, rollupChanges, projectIds);
+				numRows += analyticsList.size();
+				uncommittedRows += analyticsList.size();
+
+				//Commit what we have so far along with a checkpoint, then carry on in a new transaction
+				if(checkpoint != null && uncommittedRows >= checkpointRows)
+				{
+					source.beforeCheckpoint();
+					batch.add(checkpoint.withRows(numRows));
+					commit(batch, rollupChanges);
+					hasCheckpoint = true;
+					log.debug("Committed {} rows of CSV {}", numRows, checkpoint.getFileName());
+					register(changedProjects, latestEpochDays);
+					changedProjects.clear();
+					latestEpochDays.clear();
+					projectIds.clear();
+					rollupChanges = new RollupTables.Changes();
+					uncommittedRows = 0;
+					batch.close();
+					batch = db.beginBatch(AnalyticsCsvReader.CHUNK_SIZE);
+				}
+			}
+
+			//The file is complete, so it won't need resuming
+			if(hasCheckpoint)
+			{
+				PreparedStatement delete = batch.prepare(FileCheckpoint.QUERY_DELETE);
+				delete.setString(1, checkpoint.getFileName());
+				delete.executeUpdate();
+			}
+			commit(batch, rollupChanges);
+		}
+		catch(IOException | SQLException | RuntimeException e)
+		{
+			//The digests will have been updated with rows that were rolled back
+			if(digestCache != null)
+				projectIds.forEach(digestCache::invalidate);
+			throw e;
+		}
+		finally
+		{
+			batch.close();
+		}
+		//Only update the registry once the project is actually in the DB
+		register(changedProjects, latestEpochDays);
+		return result;
+	}
+
+	/**
+	 * Writes the analytics merged from a group of files in a single transaction, along with any other objects that
+	 * should be committed with them (e.g. the files' ledger entries)
+	 * If anything fails then nothing is written
+	 * @return The number of analytics written or skipped
+	 */
+	WriteResult writeGroup(Collection<Project> groupProjects, Collection<Analytics> analyticsList, Collection<? extends DbStorable> extras) throws SQLException
+	{
+		WriteResult result = new WriteResult(digestCache != null);
+		Map<Integer, Project> changedProjects = new HashMap<>();
+		Map<Integer, Integer> latestEpochDays = new HashMap<>();
+		for(Analytics analytics : analyticsList)
+			latestEpochDays.merge(analytics.getProjectId(), analytics.getDate().getEpochDay(), Math::max);
+		Set<Integer> projectIds = new HashSet<>();
+		RollupTables.Changes rollupChanges = new RollupTables.Changes();
+		try(DbBatch batch = db.beginBatch(AnalyticsCsvReader.CHUNK_SIZE))
+		{
+			for(Project project : groupProjects)
+			{
+				if(projects.needsWrite(project, latestEpochDays.getOrDefault(project.getId(), Integer.MIN_VALUE)))
+				{
+					batch.add(project);
+					changedProjects.put(project.getId(), project);
+				}
+			}
+			addAnalytics(batch, analyticsList, result, rollupChanges, projectIds);
+			batch.addAll(extras);
+			commit(batch, rollupChanges);
+		}
+		catch(SQLException | RuntimeException e)
+		{
+			if(digestCache != null)
+				projectIds.forEach(digestCache::invalidate);
+			throw e;
+		}
+		register(changedProjects, latestEpochDays);
+		return result;
+	}
+
+	/**
+	 * Updates the registry with the projects and the latest dates of the analytics which have been committed
+	 */
+	private void register(Map<Integer, Project> changedProjects, Map<Integer, Integer> latestEpochDays)
+	{
+		latestEpochDays.forEach((id, latestEpochDay) ->
+		{
+			Project project = changedProjects.get(id);
+			if(project != null)
+				projects.put(project, latestEpochDay);
+			else
+				projects.putLatestEpochDay(id, latestEpochDay);
+		});
+	}
+
+	/**
+	 * Adds the analytics to the batch, skipping those which are unchanged if the digest cache is being used
+	 * @param projectIds Collects the IDs of the projects whose digests have been updated
+	 */
+	private void addAnalytics(DbBatch batch, Collection<Analytics> analyticsList, WriteResult result,
+		RollupTables.Changes rollupChanges, Set<Integer> projectIds) throws SQLException
+	{
+		if(digestCache == null)
+		{
+			batch.addAll(analyticsList);
+			result.addInserted(analyticsList.size());
+			for(Analytics analytics : analyticsList)
+				addRollupChange(rollupChanges, analytics);
+			return;
+		}
+		for(Analytics analytics : analyticsList)
+		{
+			projectIds.add(analytics.getProjectId());
+			switch(digestCache.update(analytics))
+			{
+				case NEW:
+					batch.add(analytics);
+					result.addInserted();
+					addRollupChange(rollupChanges, analytics);
+					break;
+				case CHANGED:
+					batch.add(analytics);
+					result.addUpdated();
+					addRollupChange(rollupChanges, analytics);
+					break;
+				case UNCHANGED:
+					result.addUnchanged();
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Updates the rollups for the written analytics within the same transaction, then commits it
+	 */
+	private static void commit(DbBatch batch, RollupTables.Changes rollupChanges) throws SQLException
+	{
+		if(!rollupChanges.isEmpty())
+			RollupTables.update(batch, rollupChanges);
+		batch.commit();
+	}
+
+	private static void addRollupChange(RollupTables.Changes rollupChanges, Analytics analytics)
+	{
+		rollupChanges.add(analytics.getProjectId(), analytics.getDate().getEpochDay());
+	}
+}
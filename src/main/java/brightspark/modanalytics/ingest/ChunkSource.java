@@ -0,0 +1,22 @@
+package brightspark.modanalytics.ingest;
+
+import java.io.IOException;
+
+/**
+ * Supplies the chunks of analytics parsed from a single CSV file
+ */
+public interface ChunkSource
+{
+	/**
+	 * Gets the next chunk of analytics
+	 * @return The next chunk, or null if there are no more
+	 */
+	AnalyticsChunk nextChunk() throws IOException;
+
+	/**
+	 * Called before the writer commits the rows taken so far at a checkpoint, as they can't be rolled back once
+	 * committed if the file fails later on
+	 * @throws IOException If the rows shouldn't be committed, e.g. if too many of the rows read so far were invalid
+	 */
+	default void beforeCheckpoint() throws IOException {}
+}
@@ -0,0 +1,320 @@
+package brightspark.modanalytics.ingest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches a directory for new files, and passes them on once they've finished being written
+ *
+ * A file is only passed on once its size and last modified time haven't changed for the settle time, so files which
+ * are still being written aren't read early. Settled files are held back while other files are still changing, for up to
+ * another settle time, so that a burst of files is passed on together as one batch.
+ * Each file is only passed on once, until it's removed from the directory.
+ *
+ * A {@link WatchService} is used when available, with the whole directory rescanned if it overflows and periodically
+ * in case any events were missed. Otherwise the directory is polled, more often while files are arriving and less
+ * often while it's idle.
+ */
+public class DirectoryWatcher
+{
+	private static final Logger log = LogManager.getLogger(DirectoryWatcher.class);
+	public static final long DEFAULT_SETTLE_MILLIS = 2000;
+	public static final long DEFAULT_MIN_POLL_MILLIS = 1000;
+	public static final long DEFAULT_MAX_POLL_MILLIS = 60_000;
+
+	private final File dir;
+	private final Consumer<List<File>> handler;
+	private final long settleNanos;
+	private final long minPollMillis;
+	private final long maxPollMillis;
+	private final Thread thread;
+	//Files which have been seen but haven't settled yet
+	private final Map<File, FileState> pending = new HashMap<>();
+	//Files which have settled but are waiting for the rest of their batch, and when the first of them settled
+	private final List<File> ready = new ArrayList<>();
+	private long readySince = 0;
+	//Files which have been passed on but are still in the directory
+	private final Set<File> passedOn = new HashSet<>();
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param dir The directory to watch
+	 * @param handler Called from the watcher thread with each batch of settled files
+	 * @param settleMillis How long a file must stay unchanged before it's passed on
+	 * @param minPollMillis The poll interval while files are arriving
+	 * @param maxPollMillis The poll interval while the directory is idle, and the rescan interval when using a {@link WatchService}
+	 */
+	public DirectoryWatcher(File dir, Consumer<List<File>> handler, long settleMillis, long minPollMillis, long maxPollMillis)
+	{
+		this.dir = dir;
+		this.handler = handler;
+		settleNanos = TimeUnit.MILLISECONDS.toNanos(settleMillis);
+		this.minPollMillis = Math.max(1, minPollMillis);
+		this.maxPollMillis = Math.max(this.minPollMillis, maxPollMillis);
+		thread = new Thread(this::run, "CSV Watcher");
+		thread.setDaemon(true);
+	}
+
+	public DirectoryWatcher(File dir, Consumer<List<File>> handler)
+	{
+		this(dir, handler, DEFAULT_SETTLE_MILLIS, DEFAULT_MIN_POLL_MILLIS, DEFAULT_MAX_POLL_MILLIS);
+	}
+
+	/**
+	 * Starts watching, which passes on any files already in the directory once they've settled
+	 */
+	public void start()
+	{
+		thread.start();
+	}
+
+	/**
+	 * Stops watching and waits for the watcher thread to finish
+	 */
+	public void stop()
+	{
+		stopped = true;
+		thread.interrupt();
+		try
+		{
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run()
+	{
+		WatchService watcher;
+		try
+		{
+			watcher = FileSystems.getDefault().newWatchService();
+			dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		}
+		catch(IOException | UnsupportedOperationException e)
+		{
+			log.warn("Couldn't watch {} - polling it instead", dir.getPath(), e);
+			runPolling();
+			return;
+		}
+
+		try
+		{
+			runWatching(watcher);
+		}
+		finally
+		{
+			try
+			{
+				watcher.close();
+			}
+			catch(IOException e)
+			{
+				log.error("Couldn't close directory watcher", e);
+			}
+		}
+	}
+
+	private void runWatching(WatchService watcher)
+	{
+		log.info("Watching {} for CSVs", dir.getPath());
+		long nextRescan = 0;
+		while(!stopped)
+		{
+			long now = System.currentTimeMillis();
+			if(now >= nextRescan)
+			{
+				rescan();
+				nextRescan = now + maxPollMillis;
+			}
+			checkPending();
+
+			//Wake up in time to check on pending files, otherwise just for the next rescan
+			long timeout = pending.isEmpty() && ready.isEmpty() ? nextRescan - System.currentTimeMillis() : minPollMillis;
+			WatchKey key;
+			try
+			{
+				key = watcher.poll(Math.max(1, timeout), TimeUnit.MILLISECONDS);
+			}
+			catch(InterruptedException | ClosedWatchServiceException e)
+			{
+				if(!stopped)
+					log.error("CSV directory watcher interrupted while waiting", e);
+				return;
+			}
+			if(key == null)
+				continue;
+
+			for(WatchEvent<?> event : key.pollEvents())
+			{
+				if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+				{
+					log.warn("Too many changes in {} to keep track of - rescanning", dir.getPath());
+					nextRescan = 0;
+					continue;
+				}
+				File file = dir.toPath().resolve((Path) event.context()).toFile();
+				if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+				{
+					pending.remove(file);
+					ready.remove(file);
+					passedOn.remove(file);
+				}
+				else
+					see(file);
+			}
+
+			if(!key.reset())
+			{
+				log.error("CSV directory watcher for {} is no longer valid - polling it instead", dir.getPath());
+				runPolling();
+				return;
+			}
+		}
+	}
+
+	private void runPolling()
+	{
+		log.info("Polling {} for CSVs every {}-{}ms", dir.getPath(), minPollMillis, maxPollMillis);
+		long interval = minPollMillis;
+		while(!stopped)
+		{
+			boolean changed = rescan();
+			checkPending();
+			//Poll quickly while files are arriving, then back off while the directory is idle
+			interval = changed || !pending.isEmpty() || !ready.isEmpty() ? minPollMillis : Math.min(maxPollMillis, interval * 2);
+			try
+			{
+				Thread.sleep(interval);
+			}
+			catch(InterruptedException e)
+			{
+				if(!stopped)
+					log.error("CSV directory poller interrupted while waiting", e);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Looks for new files in the directory, and forgets about files which are no longer in it
+	 * @return True if any new files were found
+	 */
+	private boolean rescan()
+	{
+		File[] files = dir.listFiles();
+		if(files == null)
+		{
+			log.error("Problem getting files from {}", dir.getAbsolutePath());
+			return false;
+		}
+		Set<File> present = new HashSet<>(Arrays.asList(files));
+		pending.keySet().retainAll(present);
+		ready.retainAll(present);
+		passedOn.retainAll(present);
+		boolean found = false;
+		for(File file : files)
+			found |= see(file);
+		return found;
+	}
+
+	/**
+	 * Starts tracking the file if it's new
+	 * @return True if the file is new
+	 */
+	private boolean see(File file)
+	{
+		if(passedOn.contains(file) || pending.containsKey(file) || !file.isFile() || file.getName().startsWith("."))
+			return false;
+		log.debug("Found new file: {}", file);
+		pending.put(file, new FileState(file));
+		return true;
+	}
+
+	/**
+	 * Passes on the pending files which have stopped changing, once the rest of the batch has too
+	 */
+	private void checkPending()
+	{
+		if(pending.isEmpty() && ready.isEmpty())
+			return;
+		long now = System.nanoTime();
+		Iterator<Map.Entry<File, FileState>> iterator = pending.entrySet().iterator();
+		while(iterator.hasNext())
+		{
+			Map.Entry<File, FileState> entry = iterator.next();
+			File file = entry.getKey();
+			if(!file.exists())
+			{
+				iterator.remove();
+				continue;
+			}
+			if(entry.getValue().update(file, now) && now - entry.getValue().changedAt >= settleNanos)
+			{
+				iterator.remove();
+				passedOn.add(file);
+				if(ready.isEmpty())
+					readySince = now;
+				ready.add(file);
+			}
+		}
+
+		//Wait for the rest of the batch, unless it's taking too long
+		if(ready.isEmpty() || (!pending.isEmpty() && now - readySince < settleNanos))
+			return;
+		List<File> settled = new ArrayList<>(ready);
+		ready.clear();
+		Collections.sort(settled);
+		log.debug("{} files have settled", settled.size());
+		try
+		{
+			handler.accept(settled);
+		}
+		catch(RuntimeException e)
+		{
+			log.error("Error handling new files", e);
+		}
+	}
+
+	/**
+	 * The size and last modified time of a file when they last changed
+	 */
+	private static class FileState
+	{
+		private long size;
+		private long modified;
+		private long changedAt;
+
+		private FileState(File file)
+		{
+			size = file.length();
+			modified = file.lastModified();
+			changedAt = System.nanoTime();
+		}
+
+		/**
+		 * Checks if the file has changed since it was last checked
+		 * @return True if the file is unchanged
+		 */
+		private boolean update(File file, long now)
+		{
+			long newSize = file.length();
+			long newModified = file.lastModified();
+			if(newSize == size && newModified == modified)
+				return true;
+			size = newSize;
+			modified = newModified;
+			changedAt = now;
+			return false;
+		}
+	}
+}
@@ -0,0 +1,422 @@
+package brightspark.modanalytics.ingest;
+
+import brightspark.modanalytics.dao.AnalyticDate;
+import brightspark.modanalytics.dao.Analytics;
+import brightspark.modanalytics.dao.Project;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A CSV reader specialised for the 9 column Curse analytics export:
+ * Date, Project ID, Name, Points, Historical Download, Daily Download, Daily Unique Download, Daily Twitch App Download, Daily Curse Forge Download
+ *
+ * The file is read a block at a time into a reused buffer and the numbers and dates are decoded straight from the
+ * bytes, without creating a String for each value like the generic opencsv parser does. The file isn't memory mapped,
+ * as a mapping is only released once it's garbage collected, and the file can't be moved on Windows until then.
+ * If a row is found that doesn't match the expected layout (e.g. quoted values or a different number of columns) then
+ * the rest of the file is read using the {@link AnalyticsCsvReader} instead, which also handles any invalid rows.
+ */
+public class FastAnalyticsCsvReader implements AnalyticsReader
+{
+	private static final Logger log = LogManager.getLogger(FastAnalyticsCsvReader.class);
+	private static final int NUM_COLUMNS = 9;
+	//Max digits of an int value before we can't be sure it won't overflow
+	private static final int MAX_INT_DIGITS = 9;
+	//Max digits of a decimal value which can be held exactly in a float, along with its power of ten
+	private static final int MAX_EXACT_FLOAT_DIGITS = 7;
+	private static final long[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000, 10_000_000};
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File file;
+	private final FileChannel channel;
+	//Holds the bytes of the file from bufferOffset up to its limit
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private long bufferOffset = 0;
+	//The position of the last line break in the buffer, as every line before it is complete
+	private int lastLineEnd = -1;
+	private boolean endOfFile = false;
+	private final int chunkSize;
+	private final RowRejects rejects;
+	private final Charset charset = Charset.defaultCharset();
+	private int pos = 0;
+	private boolean readHeader = false;
+	private Project project = null;
+	private int numRows = 0;
+	private AnalyticsCsvReader fallback = null;
+
+	//Used while parsing a row, to save returning multiple values from methods
+	private boolean invalid;
+	private int numDigits;
+
+	/**
+	 * @param rejects Where invalid rows are added, or null to throw an exception for them
+	 */
+	public FastAnalyticsCsvReader(File file, int chunkSize, RowRejects rejects) throws IOException
+	{
+		this.file = file;
+		this.chunkSize = chunkSize;
+		this.rejects = rejects;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		buffer.limit(0);
+	}
+
+	public FastAnalyticsCsvReader(File file, int chunkSize) throws IOException
+	{
+		this(file, chunkSize, null);
+	}
+
+	public FastAnalyticsCsvReader(File file) throws IOException
+	{
+		this(file, AnalyticsCsvReader.CHUNK_SIZE);
+	}
+
+	@Override
+	public AnalyticsChunk nextChunk() throws IOException
+	{
+		if(fallback != null)
+			return nextFallbackChunk();
+
+		if(!readHeader)
+		{
+			//Nothing has been dropped from the buffer yet, so the fallback can start from the beginning of the file
+			if(!fillLine() || !skipHeader())
+			{
+				startFallback(0, 1);
+				return nextFallbackChunk();
+			}
+			readHeader = true;
+		}
+
+		List<Analytics> chunk = new ArrayList<>(chunkSize);
+		while(chunk.size() < chunkSize)
+		{
+			if(!fillLine())
+			{
+				startFallback(pos, 0);
+				break;
+			}
+			if(pos >= buffer.limit())
+				break;
+			int rowStart = pos;
+			Analytics analytics = parseRow();
+			if(analytics == null)
+			{
+				startFallback(rowStart, 0);
+				break;
+			}
+			numRows++;
+			chunk.add(analytics);
+		}
+
+		if(chunk.isEmpty())
+			return fallback == null ? null : nextFallbackChunk();
+		return new AnalyticsChunk(project, chunk);
+	}
+
+	private AnalyticsChunk nextFallbackChunk() throws IOException
+	{
+		AnalyticsChunk chunk = fallback.nextChunk();
+		if(chunk == null || project == null)
+			return chunk;
+		//Keep using the project from the first row of the file
+		return new AnalyticsChunk(project, chunk.getAnalytics());
+	}
+
+	/**
+	 * Makes sure that the whole line from the current position is in the buffer, reading more of the file if needed
+	 * @return False if the line is too long to fit in the buffer
+	 */
+	private boolean fillLine() throws IOException
+	{
+		while(pos > lastLineEnd && !endOfFile)
+		{
+			if(pos == 0 && buffer.limit() == buffer.capacity())
+				return false;
+
+			//Move the rest of the buffer from the current position to the start, and read more of the file after it
+			buffer.position(pos);
+			buffer.compact();
+			bufferOffset += pos;
+			pos = 0;
+			if(channel.read(buffer) < 0)
+				endOfFile = true;
+			buffer.flip();
+			lastLineEnd = buffer.limit() - 1;
+			while(lastLineEnd >= 0 && buffer.get(lastLineEnd) != '\n')
+				lastLineEnd--;
+		}
+		return true;
+	}
+
+	/**
+	 * Switches to reading the rest of the file with the generic opencsv parser
+	 * @param position The position in the buffer to start from, which is followed by the unread rest of the file
+	 */
+	private void startFallback(int position, int skipLines)
+	{
+		log.debug("CSV {} has an unexpected layout at byte {} - using fallback parser", file.getName(), bufferOffset + position);
+		ByteBuffer remaining = buffer.duplicate();
+		remaining.position(position);
+		InputStream input = new SequenceInputStream(new ByteBufferInputStream(remaining), Channels.newInputStream(channel));
+		//Every line before the position is either the header or a row which was parsed
+		int lineOffset = readHeader ? numRows + 1 : 0;
+		fallback = new AnalyticsCsvReader(new InputStreamReader(input, charset), skipLines, chunkSize, lineOffset, rejects);
+	}
+
+	/**
+	 * Skips the header line
+	 * @return False if the header doesn't have the expected layout
+	 */
+	private boolean skipHeader()
+	{
+		int limit = buffer.limit();
+		int numCommas = 0;
+		while(pos < limit)
+		{
+			byte b = buffer.get(pos++);
+			if(b == '\n')
+				break;
+			if(b == ',')
+				numCommas++;
+			else if(b == '"')
+				return false;
+		}
+		return numCommas == NUM_COLUMNS - 1;
+	}
+
+	/**
+	 * Parses the row at the current position
+	 * @return The analytics for the row, or null if the row doesn't have the expected layout
+	 */
+	private Analytics parseRow()
+	{
+		invalid = false;
+
+		//Date
+		int dateFirst = readInt('-');
+		int dateSecond = readInt('-');
+		int dateThird = readInt(',');
+		if(invalid)
+			return null;
+
+		int projectId = readInt(',');
+
+		//Name - we only need this for the first row
+		int nameStart = pos;
+		if(!skipValue())
+			return null;
+		int nameLength = pos - nameStart - 1;
+
+		float points = readFloat();
+		int historicalDownload = readInt(',');
+		int dailyDownload = readInt(',');
+		int dailyUniqueDownload = readInt(',');
+		int dailyTwitchAppDownload = readInt(',');
+		int dailyCurseForgeDownload = readInt('\n');
+		if(invalid)
+			return null;
+
+		if(project == null)
+			project = new Project(projectId, getString(nameStart, nameLength));
+
+		AnalyticDate date;
+		try
+		{
+			date = AnalyticDate.of(dateFirst, dateSecond, dateThird);
+		}
+		catch(IllegalArgumentException e)
+		{
+			return null;
+		}
+		return new Analytics(projectId, date, points, historicalDownload, dailyDownload, dailyUniqueDownload, dailyTwitchAppDownload, dailyCurseForgeDownload);
+	}
+
+	/**
+	 * Reads an unsigned int value up to and including the terminator
+	 * A terminator of '\n' also accepts "\r\n" or the end of the file
+	 */
+	private int readInt(char terminator)
+	{
+		if(invalid)
+			return 0;
+		long value = readDigits();
+		if(numDigits == 0 || numDigits > MAX_INT_DIGITS || !readTerminator(terminator))
+		{
+			invalid = true;
+			return 0;
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Reads an unsigned decimal value up to and including the next comma
+	 */
+	private float readFloat()
+	{
+		if(invalid)
+			return 0;
+		int start = pos;
+		long whole = readDigits();
+		int wholeDigits = numDigits;
+		if(wholeDigits == 0 || wholeDigits > MAX_INT_DIGITS)
+		{
+			invalid = true;
+			return 0;
+		}
+		if(pos < buffer.limit() && buffer.get(pos) == '.')
+		{
+			pos++;
+			long fraction = readDigits();
+			int fractionDigits = numDigits;
+			int length = pos - start;
+			if(fractionDigits == 0 || fractionDigits > MAX_INT_DIGITS || !readTerminator(','))
+			{
+				invalid = true;
+				return 0;
+			}
+			//The digits and the power of ten are both exact floats, so the division is the only rounding and gives the
+			//same result as Float.parseFloat. Otherwise it could be rounded twice, so leave it to Float.parseFloat.
+			if(wholeDigits + fractionDigits <= MAX_EXACT_FLOAT_DIGITS)
+				return (float) (whole * POWERS_OF_TEN[fractionDigits] + fraction) / POWERS_OF_TEN[fractionDigits];
+			return Float.parseFloat(getString(start, length));
+		}
+		if(!readTerminator(','))
+		{
+			invalid = true;
+			return 0;
+		}
+		return whole;
+	}
+
+	/**
+	 * Decodes the bytes of the buffer from the start position into a String
+	 */
+	private String getString(int start, int length)
+	{
+		byte[] bytes = new byte[length];
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(start);
+		slice.get(bytes);
+		return new String(bytes, charset);
+	}
+
+	/**
+	 * Reads the digits at the current position, setting {@link #numDigits} to the number read
+	 */
+	private long readDigits()
+	{
+		long value = 0;
+		numDigits = 0;
+		int limit = buffer.limit();
+		while(pos < limit && numDigits <= MAX_INT_DIGITS)
+		{
+			byte b = buffer.get(pos);
+			if(b < '0' || b > '9')
+				break;
+			value = value * 10 + (b - '0');
+			numDigits++;
+			pos++;
+		}
+		return value;
+	}
+
+	/**
+	 * Reads the terminator at the current position
+	 * A terminator of '\n' also accepts "\r\n" or the end of the file
+	 * @return False if the terminator isn't at the current position
+	 */
+	private boolean readTerminator(char terminator)
+	{
+		int limit = buffer.limit();
+		if(pos >= limit)
+			return terminator == '\n';
+		byte b = buffer.get(pos);
+		if(b == terminator)
+		{
+			pos++;
+			return true;
+		}
+		if(terminator == '\n' && b == '\r' && (pos + 1 >= limit || buffer.get(pos + 1) == '\n'))
+		{
+			pos = Math.min(pos + 2, limit);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Skips a text value up to and including the next comma
+	 * @return False if the value is quoted or the line ends
+	 */
+	private boolean skipValue()
+	{
+		if(invalid)
+			return true;
+		int limit = buffer.limit();
+		while(pos < limit)
+		{
+			byte b = buffer.get(pos++);
+			if(b == ',')
+				return true;
+			if(b == '"' || b == '\n' || b == '\r')
+				return false;
+		}
+		return false;
+	}
+
+	@Override
+	public int getNumRows()
+	{
+		return fallback == null ? numRows : numRows + fallback.getNumRows();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if(fallback != null)
+			fallback.close();
+		channel.close();
+	}
+
+	/**
+	 * An {@link InputStream} which reads the remaining bytes of a {@link ByteBuffer}
+	 */
+	private static class ByteBufferInputStream extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length)
+		{
+			if(!buffer.hasRemaining())
+				return -1;
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package brightspark.modanalytics.ingest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A CSV file moving through the {@link IngestPipeline}
+ * The parser thread puts chunks into this while the writer thread takes them out, so only a few chunks are held at a time
+ */
+class FileBatch implements ChunkSource
+{
+	//Marks the end of the chunks for the file
+	private static final AnalyticsChunk END = new AnalyticsChunk(null, null);
+
+	private final File file;
+	private final RejectPolicy rejectPolicy;
+	private final BlockingQueue<AnalyticsChunk> chunks;
+	private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+	private volatile Throwable error = null;
+	private volatile boolean aborted = false;
+	private volatile boolean cancelled = false;
+	//Set by the parser, and read by the writer once it has taken the end of the chunks
+	private final long startMillis = System.currentTimeMillis();
+	private volatile String hash = null;
+	private volatile int numRows = 0;
+	//Updated by the parser as it reads, so the writer can check the rejects before committing a checkpoint
+	private int numRowsRead = 0;
+	private int numRejected = 0;
+
+	FileBatch(File file, int capacity, RejectPolicy rejectPolicy)
+	{
+		this.file = file;
+		this.rejectPolicy = rejectPolicy;
+		chunks = new ArrayBlockingQueue<>(capacity);
+	}
+
+	File getFile()
+	{
+		return file;
+	}
+
+	CompletableFuture<Boolean> getResult()
+	{
+		return result;
+	}
+
+	long getStartMillis()
+	{
+		return startMillis;
+	}
+
+	String getHash()
+	{
+		return hash;
+	}
+
+	void setHash(String hash)
+	{
+		this.hash = hash;
+	}
+
+	int getNumRows()
+	{
+		return numRows;
+	}
+
+	void setNumRows(int numRows)
+	{
+		this.numRows = numRows;
+	}
+
+	/**
+	 * Called by the parser with the number of rows it has read so far, and how many of them were rejected
+	 */
+	synchronized void setProgress(int numRowsRead, int numRejected)
+	{
+		this.numRowsRead = numRowsRead;
+		this.numRejected = numRejected;
+	}
+
+	/**
+	 * Called by the parser to pass a chunk to the writer - blocks while the writer is behind
+	 */
+	void put(AnalyticsChunk chunk) throws InterruptedException
+	{
+		if(!cancelled)
+			chunks.put(chunk);
+	}
+
+	/**
+	 * Called by the parser once all chunks have been put
+	 */
+	void finish() throws InterruptedException
+	{
+		if(!cancelled)
+			chunks.put(END);
+	}
+
+	/**
+	 * Called by the parser if the file couldn't be parsed
+	 */
+	void fail(Throwable throwable) throws InterruptedException
+	{
+		error = throwable;
+		if(!cancelled)
+			chunks.put(END);
+	}
+
+	/**
+	 * Called by the writer if it failed to write the file, so that the parser stops early
+	 * Any remaining chunks are discarded until the parser finishes
+	 */
+	void abort() throws InterruptedException
+	{
+		aborted = true;
+		//noinspection StatementWithEmptyBody
+		while(chunks.take() != END);
+	}
+
+	/**
+	 * Called if the file is stopped during shutdown, so that the parser doesn't wait for a writer which has stopped
+	 * The result is cancelled, so that the file is left to be ingested again
+	 */
+	void cancel()
+	{
+		cancelled = true;
+		chunks.clear();
+		result.cancel(false);
+	}
+
+	boolean isAborted()
+	{
+		return aborted || cancelled;
+	}
+
+	@Override
+	public AnalyticsChunk nextChunk() throws IOException
+	{
+		AnalyticsChunk chunk;
+		try
+		{
+			chunk = chunks.take();
+		}
+		catch(InterruptedException e)
+		{
+			throw new InterruptedIOException("Interrupted while waiting for chunk from " + file.getName());
+		}
+		if(chunk != END)
+			return chunk;
+		//Put the end marker back in case this is called again
+		chunks.offer(END);
+		if(error != null)
+			throw new IOException("Failed to parse CSV " + file.getName(), error);
+		return null;
+	}
+
+	/**
+	 * The parser reads ahead of the writer, so this checks every row read so far, including the ones being committed
+	 */
+	@Override
+	public synchronized void beforeCheckpoint() throws IOException
+	{
+		rejectPolicy.checkSoFar(file, numRejected, numRowsRead);
+	}
+}
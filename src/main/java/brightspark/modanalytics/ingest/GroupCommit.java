@@ -0,0 +1,158 @@
+package brightspark.modanalytics.ingest;
+
+import brightspark.modanalytics.dao.Analytics;
+import brightspark.modanalytics.dao.Project;
+import brightspark.modanalytics.db.DbStorable;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers the analytics of small files so that many files are written in one transaction, rather than each one paying
+ * for its own commit
+ * Rows for the same project and date are merged when the group is written, so only the latest one is written. Each
+ * file's future is only completed once the group has been committed, so nothing is done with a file before its rows
+ * are in the DB. If a group fails then its files are written one at a time, so that only the bad files fail.
+ * This isn't thread safe - it's only used by the {@link IngestPipeline}'s writer thread.
+ */
+class GroupCommit
+{
+	private static final Logger log = LogManager.getLogger(GroupCommit.class);
+
+	private final AnalyticsWriter writer;
+	private final GroupCommitPolicy policy;
+	private final List<Member> members = new ArrayList<>();
+	private int numRows = 0;
+	private long startNanos = 0;
+
+	GroupCommit(AnalyticsWriter writer, GroupCommitPolicy policy)
+	{
+		this.writer = writer;
+		this.policy = policy;
+	}
+
+	/**
+	 * Adds a file's analytics to the group
+	 * @param extras Other objects to write in the same transaction as the analytics
+	 * @return A future which completes once the analytics have been committed
+	 */
+	CompletableFuture<Void> add(List<AnalyticsChunk> chunks, Collection<? extends DbStorable> extras)
+	{
+		if(members.isEmpty())
+			startNanos = System.nanoTime();
+		Member member = new Member(chunks, extras);
+		members.add(member);
+		for(AnalyticsChunk chunk : chunks)
+			numRows += chunk.getAnalytics().size();
+		return member.future;
+	}
+
+	boolean isEmpty()
+	{
+		return members.isEmpty();
+	}
+
+	/**
+	 * Checks whether the group has enough rows or has been waiting long enough to be committed
+	 */
+	boolean isDue()
+	{
+		return !members.isEmpty() && (numRows >= policy.getMaxRows() || getRemainingMillis() <= 0);
+	}
+
+	/**
+	 * Gets how much longer the group can wait before it's due to be committed
+	 */
+	long getRemainingMillis()
+	{
+		return policy.getMaxDelayMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Writes the group to the DB in a single transaction, then completes the futures of its files
+	 */
+	void commit()
+	{
+		if(members.isEmpty())
+			return;
+		List<Member> committing = new ArrayList<>(members);
+		members.clear();
+		int groupRows = numRows;
+		numRows = 0;
+		try
+		{
+			WriteResult result = write(committing);
+			log.debug("Group committed {} files - {} analytics in DB from {} rows", committing.size(), result, groupRows);
+			committing.forEach(member -> member.future.complete(null));
+		}
+		catch(Exception e)
+		{
+			if(committing.size() == 1)
+			{
+				committing.get(0).future.completeExceptionally(e);
+				return;
+			}
+			log.warn(String.format("Failed to group commit %s files - writing them one at a time", committing.size()), e);
+			for(Member member : committing)
+			{
+				try
+				{
+					write(Collections.singletonList(member));
+					member.future.complete(null);
+				}
+				catch(Exception e1)
+				{
+					member.future.completeExceptionally(e1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the analytics of the files, with later files replacing the rows of earlier ones, and writes them
+	 */
+	private WriteResult write(List<Member> toWrite) throws Exception
+	{
+		//Each project's name comes from the file with its newest analytics
+		Map<Integer, Project> projects = new LinkedHashMap<>();
+		Map<Integer, Integer> latestEpochDays = new HashMap<>();
+		Map<Long, Analytics> analytics = new LinkedHashMap<>();
+		List<DbStorable> extras = new ArrayList<>();
+		for(Member member : toWrite)
+		{
+			for(AnalyticsChunk chunk : member.chunks)
+			{
+				int id = chunk.getProject().getId();
+				int latestEpochDay = chunk.getLatestEpochDay();
+				if(latestEpochDay >= latestEpochDays.getOrDefault(id, Integer.MIN_VALUE))
+				{
+					projects.put(id, chunk.getProject());
+					latestEpochDays.put(id, latestEpochDay);
+				}
+				for(Analytics row : chunk.getAnalytics())
+					analytics.put(row.getKey(), row);
+			}
+			extras.addAll(member.extras);
+		}
+		return writer.writeGroup(projects.values(), analytics.values(), extras);
+	}
+
+	/**
+	 * A file in the group
+	 */
+	private static class Member
+	{
+		private final List<AnalyticsChunk> chunks;
+		private final Collection<? extends DbStorable> extras;
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		private Member(List<AnalyticsChunk> chunks, Collection<? extends DbStorable> extras)
+		{
+			this.chunks = chunks;
+			this.extras = extras;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package brightspark.modanalytics.ingest;
+
+import java.io.File;
+
+/**
+ * Decides which files are written to the DB together in a group commit, and when the group is committed
+ */
+public class GroupCommitPolicy
+{
+	public static final int DEFAULT_MAX_ROWS = 50_000;
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 1000;
+	public static final long DEFAULT_MAX_FILE_SIZE = 1024 * 1024;
+	/** Writes every file in its own transaction */
+	public static final GroupCommitPolicy DISABLED = new GroupCommitPolicy(0, 0, 0);
+
+	private final int maxRows;
+	private final long maxDelayMillis;
+	private final long maxFileSize;
+
+	/**
+	 * @param maxRows The number of rows at which a group is committed, or 0 to disable group commits
+	 * @param maxDelayMillis The max time the first file in a group waits before the group is committed
+	 * @param maxFileSize Files larger than this are written on their own, so that they can use checkpoints and aren't
+	 *                    held in memory. Compressed files are always written on their own, as their size doesn't say
+	 *                    how many rows they hold.
+	 */
+	public GroupCommitPolicy(int maxRows, long maxDelayMillis, long maxFileSize)
+	{
+		this.maxRows = maxRows;
+		this.maxDelayMillis = maxDelayMillis;
+		this.maxFileSize = maxFileSize;
+	}
+
+	public GroupCommitPolicy(int maxRows, long maxDelayMillis)
+	{
+		this(maxRows, maxDelayMillis, DEFAULT_MAX_FILE_SIZE);
+	}
+
+	public boolean isEnabled()
+	{
+		return maxRows > 0;
+	}
+
+	/**
+	 * Checks whether the file is small enough to be written as part of a group
+	 * A group holds all of its files' rows in memory, and a small compressed file can expand to many times its size
+	 */
+	public boolean accepts(File file)
+	{
+		return isEnabled() && !AnalyticsReader.isCompressed(file) && file.length() <= maxFileSize;
+	}
+
+	public int getMaxRows()
+	{
+		return maxRows;
+	}
+
+	public long getMaxDelayMillis()
+	{
+		return maxDelayMillis;
+	}
+}
@@ -0,0 +1,96 @@
+package brightspark.modanalytics.ingest;
+
+import brightspark.modanalytics.dao.LedgerEntry;
+import brightspark.modanalytics.db.DbConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The ledger of ingested CSV files, which is used to skip files with the same content as one already ingested
+ */
+public class IngestLedger
+{
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final DbConnection db;
+
+	public IngestLedger(DbConnection db)
+	{
+		this.db = db;
+	}
+
+	/**
+	 * Hashes the content of the file, reading it in blocks rather than all at once
+	 * @return The SHA-256 hash as a hex String
+	 */
+	public static String hash(File file) throws IOException
+	{
+		MessageDigest digest = newDigest();
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			while(channel.read(buffer) >= 0)
+			{
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Creates the digest used to hash files, for when the content is read some other way than {@link #hash(File)}
+	 */
+	public static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			//Every Java platform has to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Converts the bytes of a hash to a hex String
+	 */
+	public static String toHex(byte[] bytes)
+	{
+		char[] chars = new char[bytes.length * 2];
+		for(int i = 0; i < bytes.length; i++)
+		{
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Gets the ledger entry of the file which was ingested with the hash
+	 * @return The entry, or null if no file with the hash has been ingested
+	 */
+	public LedgerEntry find(String hash)
+	{
+		//The hash is hex, so is safe to put in the query
+		return db.executeSingleResultReadOnly(String.format("select * from %s where hash = '%s'", DbConnection.TABLE_LEDGER, hash), LedgerEntry::new);
+	}
+
+	/**
+	 * Records that the file was ingested
+	 */
+	public void record(LedgerEntry entry)
+	{
+		db.insert(entry);
+	}
+}
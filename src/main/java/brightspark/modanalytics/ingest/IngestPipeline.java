@@ -0,0 +1,416 @@
+package brightspark.modanalytics.ingest;
+
+import brightspark.modanalytics.dao.LedgerEntry;
+import brightspark.modanalytics.db.DbConnection;
+import brightspark.modanalytics.metrics.IngestMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ingests CSV files using a pool of parser threads which feed a single writer thread through a bounded queue
+ * Parsing scales with the number of threads while the DB only sees serialised, batched writes
+ * Submitted files wait in an {@link IngestQueue} until a parser is free, which decides the order they're parsed in
+ * Small files can be written together in a {@link GroupCommit} so that each one doesn't pay for its own transaction
+ */
+public class IngestPipeline
+{
+	private static final Logger log = LogManager.getLogger(IngestPipeline.class);
+	//Marks the end of the files for the writer
+	private static final FileBatch POISON = new FileBatch(new File(""), 1, RejectPolicy.STRICT);
+	//Max number of parsed chunks held for a file before its parser waits for the writer
+	private static final int FILE_CHUNK_CAPACITY = 4;
+
+	private final AnalyticsWriter writer;
+	private final IngestLedger ledger;
+	private final boolean fastParser;
+	private final RejectPolicy rejectPolicy;
+	private final IngestQueue queue;
+	private final GroupCommitPolicy groupCommitPolicy;
+	private final GroupCommit groupCommit;
+	private final ExecutorService parsers;
+	private final BlockingQueue<FileBatch> fileQueue;
+	private final Thread writerThread;
+	private final Set<File> inProgress = ConcurrentHashMap.newKeySet();
+	private final IngestMetrics metrics;
+	private volatile boolean shuttingDown = false;
+	//Set if the pipeline didn't finish in time when shutting down, so the files still being ingested are being stopped
+	private volatile boolean stopping = false;
+
+	/**
+	 * @param db The DB connection that the writer thread will use
+	 * @param projects The registry of projects in the DB
+	 * @param numParsers The number of threads to parse CSV files with
+	 * @param fastParser Whether to parse CSV files with the {@link FastAnalyticsCsvReader}
+	 * @param skipUnchanged Whether to skip writing rows which already exist in the DB with the same values
+	 * @param checkpointRows The number of rows of a file to commit at a time so that it can be resumed, or 0 to write
+	 *                       each file in a single transaction
+	 * @param rejectPolicy What to do with the invalid rows of each file
+	 * @param queue The queue that submitted files wait in until a parser is free
+	 * @param groupCommitPolicy Which files are written together in a single transaction
+	 */
+	public IngestPipeline(DbConnection db, ProjectRegistry projects, int numParsers, boolean fastParser, boolean skipUnchanged,
+		int checkpointRows, RejectPolicy rejectPolicy, IngestQueue queue, GroupCommitPolicy groupCommitPolicy)
+	{
+		writer = new AnalyticsWriter(db, projects, skipUnchanged, checkpointRows);
+		ledger = new IngestLedger(db);
+		this.fastParser = fastParser;
+		this.rejectPolicy = rejectPolicy;
+		this.queue = queue;
+		this.groupCommitPolicy = groupCommitPolicy;
+		groupCommit = new GroupCommit(writer, groupCommitPolicy);
+		metrics = new IngestMetrics(inProgress::size, queue::size);
+		AtomicInteger threadNum = new AtomicInteger();
+		parsers = Executors.newFixedThreadPool(numParsers, runnable ->
+		{
+			Thread thread = new Thread(runnable, "CSV Parser " + threadNum.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		for(int i = 0; i < numParsers; i++)
+			parsers.execute(this::runParser);
+		fileQueue = new ArrayBlockingQueue<>(numParsers * 2);
+		writerThread = new Thread(this::runWriter, "CSV Writer");
+		writerThread.start();
+		log.info("Started ingest pipeline with {} parser threads and a {} queue of {} files", numParsers,
+			queue.getScheduling(), queue.getCapacity());
+	}
+
+	public IngestPipeline(DbConnection db, ProjectRegistry projects, int numParsers, boolean fastParser, boolean skipUnchanged, int checkpointRows)
+	{
+		this(db, projects, numParsers, fastParser, skipUnchanged, checkpointRows, RejectPolicy.STRICT,
+			new IngestQueue(IngestQueue.DEFAULT_CAPACITY, IngestQueue.Scheduling.ROUND_ROBIN), GroupCommitPolicy.DISABLED);
+	}
+
+	/**
+	 * Submits the CSV file to be ingested, waiting while the ingest queue is full
+	 * @return A future which completes with whether the file was successfully ingested, or null if the file is
+	 * already being ingested. The future is cancelled if the pipeline is shut down before the file is finished, in which
+	 * case the file should be left to be ingested again.
+	 * @throws RejectedExecutionException If the pipeline is shutting down, or the thread is interrupted while waiting
+	 */
+	public CompletableFuture<Boolean> submit(File file)
+	{
+		if(shuttingDown)
+			throw new RejectedExecutionException("Ingest pipeline is shutting down");
+		if(!inProgress.add(file.getAbsoluteFile()))
+		{
+			log.debug("CSV {} is already being processed", file.getName());
+			return null;
+		}
+		FileBatch batch = new FileBatch(file, FILE_CHUNK_CAPACITY, rejectPolicy);
+		try
+		{
+			queue.put(batch);
+		}
+		catch(InterruptedException e)
+		{
+			inProgress.remove(file.getAbsoluteFile());
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting to queue CSV " + file.getName(), e);
+		}
+		catch(RejectedExecutionException e)
+		{
+			inProgress.remove(file.getAbsoluteFile());
+			throw e;
+		}
+		batch.getResult().whenComplete((result, throwable) -> inProgress.remove(file.getAbsoluteFile()));
+		return batch.getResult();
+	}
+
+	/**
+	 * Parses files from the queue until it's closed and empty
+	 */
+	private void runParser()
+	{
+		while(true)
+		{
+			IngestQueue.Entry entry;
+			try
+			{
+				entry = queue.take();
+			}
+			catch(InterruptedException e)
+			{
+				log.error("CSV parser interrupted while waiting", e);
+				return;
+			}
+			if(entry == null)
+				return;
+			metrics.getQueueWaitHistogram().recordSince(entry.getQueuedAt());
+			parse(entry.getBatch());
+		}
+	}
+
+	private void parse(FileBatch batch)
+	{
+		File file = batch.getFile();
+		try
+		{
+			//Files with the same content as one that's already been ingested don't need to be parsed at all
+			try
+			{
+				batch.setHash(IngestLedger.hash(file));
+			}
+			catch(IOException e)
+			{
+				log.error(String.format("Couldn't read CSV %s", file.getName()), e);
+				metrics.fileFailed();
+				batch.getResult().complete(false);
+				return;
+			}
+			LedgerEntry duplicate = null;
+			try
+			{
+				duplicate = ledger.find(batch.getHash());
+			}
+			catch(RuntimeException e)
+			{
+				//Ingesting a duplicate again is harmless, so carry on
+				log.error(String.format("Couldn't check the ingest ledger for CSV %s", file.getName()), e);
+			}
+			if(duplicate != null)
+			{
+				log.info("CSV {} has the same content as {} which was already ingested - skipping", file.getName(), duplicate.getFileName());
+				metrics.fileDuplicate();
+				batch.getResult().complete(true);
+				return;
+			}
+
+			//Queue the file for the writer first so that files are written in the order they're parsed
+			fileQueue.put(batch);
+			log.info("Processing CSV {}", file.getPath());
+			long start = System.nanoTime();
+			RowRejects rejects = new RowRejects();
+			try(AnalyticsReader reader = AnalyticsReader.open(file, fastParser, rejects))
+			{
+				AnalyticsChunk chunk;
+				while(!batch.isAborted() && (chunk = reader.nextChunk()) != null)
+				{
+					batch.setProgress(reader.getNumRows(), rejects.getNumRejected());
+					batch.put(chunk);
+				}
+				log.info("Read {} rows from CSV {}", reader.getNumRows(), file.getName());
+				batch.setNumRows(reader.getNumRows());
+				metrics.rowsRejected(rejects.getNumRejected());
+				//Fails the batch before the writer commits its last transaction if there are too many invalid rows
+				//Any checkpoints the writer already committed were checked against the rows read at the time, so stay
+				rejectPolicy.check(file, rejects, reader.getNumRows());
+				batch.finish();
+				metrics.getParseLatencyHistogram().recordSince(start);
+			}
+			catch(Exception e)
+			{
+				batch.fail(e);
+			}
+		}
+		catch(InterruptedException e)
+		{
+			//Parsers are only interrupted when they're stopped during shutdown
+			stopped(batch);
+		}
+	}
+
+	private void runWriter()
+	{
+		while(!stopping)
+		{
+			FileBatch batch;
+			try
+			{
+				//While a group is waiting to be committed, only wait for the next file until the group is due
+				batch = groupCommit.isEmpty() ? fileQueue.take() : fileQueue.poll(groupCommit.getRemainingMillis(), TimeUnit.MILLISECONDS);
+			}
+			catch(InterruptedException e)
+			{
+				log.error("Ingest writer interrupted while waiting", e);
+				groupCommit.commit();
+				return;
+			}
+			if(batch == null)
+			{
+				groupCommit.commit();
+				continue;
+			}
+			if(batch == POISON)
+			{
+				groupCommit.commit();
+				return;
+			}
+
+			if(groupCommitPolicy.accepts(batch.getFile()))
+				addToGroup(batch);
+			else
+			{
+				//Commit the group first so that files are still written in the order they were parsed
+				groupCommit.commit();
+				write(batch);
+			}
+			if(groupCommit.isDue())
+				groupCommit.commit();
+		}
+		//The files which have already been read are committed, so they don't need to be ingested again
+		groupCommit.commit();
+	}
+
+	/**
+	 * Writes the file in its own transaction
+	 */
+	private void write(FileBatch batch)
+	{
+		File file = batch.getFile();
+		long start = System.nanoTime();
+		try
+		{
+			WriteResult result = writer.write(batch, file);
+			log.info("CSV {} processed - {} analytics in DB", file.getPath(), result);
+			metrics.getWriteLatencyHistogram().recordSince(start);
+			metrics.fileProcessed(result.getNumWritten() + result.getNumUnchanged());
+			ledger.record(new LedgerEntry(batch.getHash(), file.getName(), file.length(), batch.getNumRows(),
+				result.getNumWritten(), batch.getStartMillis(), System.currentTimeMillis() - batch.getStartMillis()));
+			batch.getResult().complete(true);
+		}
+		catch(Exception e)
+		{
+			fail(batch, e);
+		}
+	}
+
+	/**
+	 * Reads all of the file's chunks and adds them to the group commit
+	 * The file's result is only completed once the group has been committed, so it isn't moved before then
+	 */
+	private void addToGroup(FileBatch batch)
+	{
+		File file = batch.getFile();
+		long start = System.nanoTime();
+		List<AnalyticsChunk> chunks = new ArrayList<>();
+		int numRows = 0;
+		try
+		{
+			AnalyticsChunk chunk;
+			while((chunk = batch.nextChunk()) != null)
+			{
+				chunks.add(chunk);
+				numRows += chunk.getAnalytics().size();
+			}
+		}
+		catch(Exception e)
+		{
+			fail(batch, e);
+			return;
+		}
+
+		//The ledger entry is committed with the analytics, so a file is never recorded without its rows
+		LedgerEntry entry = new LedgerEntry(batch.getHash(), file.getName(), file.length(), batch.getNumRows(), numRows,
+			batch.getStartMillis(), System.currentTimeMillis() - batch.getStartMillis());
+		int fileRows = numRows;
+		groupCommit.add(chunks, Collections.singletonList(entry)).whenComplete((result, throwable) ->
+		{
+			if(throwable != null)
+			{
+				log.error(String.format("Failed to process CSV %s", file.getName()), throwable);
+				metrics.fileFailed();
+				batch.getResult().complete(false);
+				return;
+			}
+			log.info("CSV {} processed - {} analytics committed in a group", file.getPath(), fileRows);
+			metrics.getWriteLatencyHistogram().recordSince(start);
+			metrics.fileProcessed(fileRows);
+			batch.getResult().complete(true);
+		});
+	}
+
+	private void fail(FileBatch batch, Exception e)
+	{
+		if(stopping)
+		{
+			stopped(batch);
+			return;
+		}
+		File file = batch.getFile();
+		log.error(String.format("Failed to process CSV %s", file.getName()), e);
+		metrics.fileFailed();
+		try
+		{
+			batch.abort();
+		}
+		catch(InterruptedException e1)
+		{
+			log.error("Ingest writer interrupted while aborting " + file.getName(), e1);
+		}
+		batch.getResult().complete(false);
+	}
+
+	/**
+	 * Cancels the file's result because it was stopped during shutdown, so that it's left to be ingested again
+	 * Anything already committed for the file is kept as its checkpoint
+	 */
+	private void stopped(FileBatch batch)
+	{
+		log.warn("Stopped ingesting CSV {} for shutdown - it'll be ingested again next time", batch.getFile().getName());
+		batch.cancel();
+	}
+
+	public IngestMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Stops accepting new files and waits up to a minute for all submitted files to finish being ingested
+	 * @see #shutdown(long)
+	 */
+	public void shutdown()
+	{
+		shutdown(TimeUnit.MINUTES.toMillis(1));
+	}
+
+	/**
+	 * Stops accepting new files and waits for all submitted files to finish being ingested
+	 * If they haven't finished within the timeout then the files which are left are stopped, and their results are
+	 * cancelled. This only returns once the writer thread has stopped, so the DB can be closed afterwards.
+	 */
+	public void shutdown(long timeoutMillis)
+	{
+		shuttingDown = true;
+		queue.close();
+		parsers.shutdown();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		try
+		{
+			if(parsers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)
+				&& fileQueue.offer(POISON, deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS))
+				//A join of 0 would wait forever
+				writerThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+			if(writerThread.isAlive())
+			{
+				log.warn("Timed out waiting for the ingest pipeline to finish - stopping the files still being ingested");
+				stopping = true;
+				parsers.shutdownNow();
+				writerThread.interrupt();
+				writerThread.join();
+				if(!parsers.awaitTermination(1, TimeUnit.MINUTES))
+					log.warn("Timed out waiting for CSV parsers to stop");
+				queue.drain().forEach(this::stopped);
+				fileQueue.forEach(batch ->
+				{
+					if(batch != POISON)
+						stopped(batch);
+				});
+			}
+		}
+		catch(InterruptedException e)
+		{
+			log.error("Interrupted while waiting for ingest pipeline to finish", e);
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package brightspark.modanalytics.ingest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of files waiting to be parsed, which decides the order that they're ingested in
+ * Adding a file blocks while the queue is full, so whoever is submitting files (e.g. the directory watcher) stops
+ * until the pipeline catches up, rather than holding on to an unbounded number of files
+ */
+public class IngestQueue
+{
+	private static final Logger log = LogManager.getLogger(IngestQueue.class);
+	public static final int DEFAULT_CAPACITY = 64;
+	//Enough to read the header and first row of an analytics CSV
+	private static final int PROJECT_KEY_READ_SIZE = 4096;
+
+	public enum Scheduling
+	{
+		/** In the order that the files were submitted */
+		FIFO,
+		/** The smallest file first, so that small files aren't stuck behind large ones */
+		SMALLEST_FIRST,
+		/** Takes turns between projects, taking each project's files in the order they were submitted */
+		ROUND_ROBIN
+	}
+
+	private final int capacity;
+	private final Scheduling scheduling;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	//Only one of these is used, depending on the scheduling
+	private final Queue<Entry> entries;
+	private final LinkedHashMap<String, Queue<Entry>> projectEntries = new LinkedHashMap<>();
+	private int size = 0;
+	private long nextSequence = 0;
+	private boolean closed = false;
+
+	public IngestQueue(int capacity, Scheduling scheduling)
+	{
+		if(capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive");
+		this.capacity = capacity;
+		this.scheduling = scheduling;
+		entries = scheduling == Scheduling.SMALLEST_FIRST ?
+			new PriorityQueue<>(Comparator.comparingLong((Entry entry) -> entry.fileSize).thenComparingLong(entry -> entry.sequence)) :
+			new ArrayDeque<>();
+	}
+
+	/**
+	 * Adds the batch to the queue, waiting while the queue is full
+	 * @throws RejectedExecutionException If the queue is closed
+	 */
+	void put(FileBatch batch) throws InterruptedException
+	{
+		File file = batch.getFile();
+		String projectKey = scheduling == Scheduling.ROUND_ROBIN ? getProjectKey(file) : null;
+		Entry entry = new Entry(batch, file.length());
+		lock.lockInterruptibly();
+		try
+		{
+			if(size >= capacity && !closed)
+			{
+				log.debug("Ingest queue is full - waiting to add CSV {}", file.getName());
+				while(size >= capacity && !closed)
+					notFull.await();
+			}
+			if(closed)
+				throw new RejectedExecutionException("Ingest queue is closed");
+			entry.sequence = nextSequence++;
+			entry.queuedAt = System.nanoTime();
+			if(projectKey == null)
+				entries.add(entry);
+			else
+				projectEntries.computeIfAbsent(projectKey, key -> new ArrayDeque<>()).add(entry);
+			size++;
+			notEmpty.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next batch to be ingested, waiting while the queue is empty
+	 * @return The batch, or null if the queue has been closed and is empty
+	 */
+	Entry take() throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try
+		{
+			while(size == 0)
+			{
+				if(closed)
+					return null;
+				notEmpty.await();
+			}
+			Entry entry;
+			if(entries.isEmpty())
+			{
+				//Take from the project at the front, then move it to the back if it has more files
+				Iterator<Map.Entry<String, Queue<Entry>>> iterator = projectEntries.entrySet().iterator();
+				Map.Entry<String, Queue<Entry>> project = iterator.next();
+				entry = project.getValue().remove();
+				iterator.remove();
+				if(!project.getValue().isEmpty())
+					projectEntries.put(project.getKey(), project.getValue());
+			}
+			else
+				entry = entries.remove();
+			size--;
+			notFull.signal();
+			return entry;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops accepting batches, waking anything waiting to add one
+	 * Batches already in the queue can still be taken
+	 */
+	void close()
+	{
+		lock.lock();
+		try
+		{
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes all of the batches waiting in the queue
+	 */
+	List<FileBatch> drain()
+	{
+		lock.lock();
+		try
+		{
+			List<FileBatch> batches = new ArrayList<>(size);
+			entries.forEach(entry -> batches.add(entry.getBatch()));
+			projectEntries.values().forEach(queue -> queue.forEach(entry -> batches.add(entry.getBatch())));
+			entries.clear();
+			projectEntries.clear();
+			size = 0;
+			notFull.signalAll();
+			return batches;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of batches waiting in the queue
+	 */
+	public int size()
+	{
+		lock.lock();
+		try
+		{
+			return size;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	public Scheduling getScheduling()
+	{
+		return scheduling;
+	}
+
+	/**
+	 * Gets the project ID from the first row of the CSV without parsing the whole file
+	 * Falls back to the file name if the project ID can't be read (e.g. the file is compressed), so that file just gets
+	 * its own turn
+	 */
+	static String getProjectKey(File file)
+	{
+		if(AnalyticsReader.isCompressed(file))
+			return file.getName();
+		byte[] bytes = new byte[PROJECT_KEY_READ_SIZE];
+		int length = 0;
+		try(InputStream input = new FileInputStream(file))
+		{
+			int read;
+			while(length < bytes.length && (read = input.read(bytes, length, bytes.length - length)) > 0)
+				length += read;
+		}
+		catch(IOException e)
+		{
+			log.debug("Couldn't read the project of CSV {}", file.getName());
+			return file.getName();
+		}
+		//Project ID is the 2nd column of the 2nd line
+		String[] lines = new String(bytes, 0, length, Charset.defaultCharset()).split("\r?\n", 3);
+		if(lines.length >= 2)
+		{
+			String[] columns = lines[1].split(",", 3);
+			if(columns.length >= 2 && !columns[1].trim().isEmpty())
+				return columns[1].trim();
+		}
+		return file.getName();
+	}
+
+	/**
+	 * A batch in the queue
+	 */
+	static class Entry
+	{
+		private final FileBatch batch;
+		private final long fileSize;
+		private long sequence;
+		private long queuedAt;
+
+		private Entry(FileBatch batch, long fileSize)
+		{
+			this.batch = batch;
+			this.fileSize = fileSize;
+		}
+
+		FileBatch getBatch()
+		{
+			return batch;
+		}
+
+		/**
+		 * Gets the time the batch was added to the queue, from {@link System#nanoTime()}
+		 */
+		long getQueuedAt()
+		{
+			return queuedAt;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package brightspark.modanalytics.ingest;
+
+import brightspark.modanalytics.dao.Project;
+import brightspark.modanalytics.db.DbConnection;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps all of the projects in the DB in memory, so that checking if a project exists doesn't need a DB query
+ * The projects are loaded from the DB when created, and must be kept up to date by calling {@link #put(Project, int)}
+ * after a project's analytics have been written to the DB
+ * The latest date of each project's analytics is kept too, so that only newer exports can change a project's name
+ */
+public class ProjectRegistry
+{
+	private static final Logger log = LogManager.getLogger(ProjectRegistry.class);
+
+	//Uses the primary key index to find the latest date of each project without scanning all of the analytics
+	private static final String QUERY_LOAD = String.format("select p.*, (select max(a.date) from %s a where a.project_id = p.id) as latest_date from %s p",
+		DbConnection.TABLE_ANALYTICS, DbConnection.TABLE_PROJECTS);
+
+	private final Map<Integer, Project> projects = new ConcurrentHashMap<>();
+	//The latest epoch day of each project's analytics in the DB
+	private final Map<Integer, Integer> latestEpochDays = new ConcurrentHashMap<>();
+
+	public ProjectRegistry(DbConnection db)
+	{
+		try
+		{
+			db.forEach(QUERY_LOAD, results ->
+			{
+				Project project = new Project(results);
+				//Null if the project has no analytics
+				int latestEpochDay = results.getInt("latest_date");
+				if(!results.wasNull())
+					latestEpochDays.put(project.getId(), latestEpochDay);
+				return project;
+			}, project -> projects.put(project.getId(), project));
+		}
+		catch(SQLException e)
+		{
+			throw new RuntimeException("Failed to load projects from DB", e);
+		}
+		log.info("Loaded {} projects from DB", projects.size());
+	}
+
+	/**
+	 * Gets the project with the ID
+	 * @return The project, or null if it's not in the DB
+	 */
+	public Project get(int id)
+	{
+		return projects.get(id);
+	}
+
+	/**
+	 * Gets the latest date of the project's analytics in the DB as an epoch day, or {@link Integer#MIN_VALUE} if it has
+	 * none
+	 */
+	public int getLatestEpochDay(int id)
+	{
+		return latestEpochDays.getOrDefault(id, Integer.MIN_VALUE);
+	}
+
+	/**
+	 * Checks if the project needs writing to the DB, either because it doesn't exist yet or because its name has changed
+	 * in a newer export than any already in the DB
+	 * @param latestEpochDay The latest date of the analytics being written with the project
+	 */
+	public boolean needsWrite(Project project, int latestEpochDay)
+	{
+		Project existing = projects.get(project.getId());
+		if(existing == null)
+		{
+			log.info("{} doesn't exist in DB - adding now", project);
+			return true;
+		}
+		if(existing.getName().equals(project.getName()))
+			return false;
+		//An older export has the name from before it was changed, so re-ingesting it shouldn't revert the name
+		if(latestEpochDay <= getLatestEpochDay(project.getId()))
+		{
+			log.debug("{} is from an older export than '{}' - keeping the existing name", project, existing.getName());
+			return false;
+		}
+		log.info("{} has changed name from '{}' - updating now", project, existing.getName());
+		return true;
+	}
+
+	/**
+	 * Records that the project has been written to the DB along with analytics up to the date
+	 */
+	public void put(Project project, int latestEpochDay)
+	{
+		projects.put(project.getId(), project);
+		putLatestEpochDay(project.getId(), latestEpochDay);
+	}
+
+	/**
+	 * Records that analytics up to the date have been written to the DB for the project
+	 */
+	public void putLatestEpochDay(int id, int latestEpochDay)
+	{
+		latestEpochDays.merge(id, latestEpochDay, Math::max);
+	}
+
+	/**
+	 * Gets the number of projects in the DB
+	 */
+	public int size()
+	{
+		return projects.size();
+	}
+}
@@ -0,0 +1,96 @@
+package brightspark.modanalytics.ingest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decides what happens to the invalid rows of a CSV file once it's been read
+ * The rejected rows are written to a sidecar file, and the whole file is failed if too many of its rows are invalid
+ */
+public class RejectPolicy
+{
+	private static final Logger log = LogManager.getLogger(RejectPolicy.class);
+	public static final double DEFAULT_MAX_ERROR_RATE = 0.01;
+	public static final String REJECTS_SUFFIX = ".rejects.csv";
+	/** Fails a file for any invalid row, without writing the rejects anywhere */
+	public static final RejectPolicy STRICT = new RejectPolicy(0, null);
+
+	private final double maxErrorRate;
+	private final File rejectDir;
+
+	/**
+	 * @param maxErrorRate The max fraction of rows in a file which can be invalid before the whole file is failed
+	 * @param rejectDir The directory to write the sidecar files of rejected rows to, or null to not write them
+	 */
+	public RejectPolicy(double maxErrorRate, File rejectDir)
+	{
+		this.maxErrorRate = maxErrorRate;
+		this.rejectDir = rejectDir;
+	}
+
+	public double getMaxErrorRate()
+	{
+		return maxErrorRate;
+	}
+
+	/**
+	 * Gets the sidecar file that the rejected rows of the CSV are written to
+	 */
+	public File getRejectsFile(File csv)
+	{
+		return rejectDir == null ? null : new File(rejectDir, csv.getName() + REJECTS_SUFFIX);
+	}
+
+	/**
+	 * Checks whether more than the max error rate of the rows were rejected
+	 */
+	public boolean isOverMaxErrorRate(int numRejected, int numRows)
+	{
+		return numRejected > maxErrorRate * numRows;
+	}
+
+	/**
+	 * Called before the rows read so far from the CSV are committed at a checkpoint, so that a file which is already
+	 * over the max error rate is failed before any of it is committed
+	 * @param numRejected The number of rows rejected so far
+	 * @param numRows The number of rows read so far, including the rejected ones
+	 * @throws IOException If too many of the rows read so far were rejected
+	 */
+	public void checkSoFar(File csv, int numRejected, int numRows) throws IOException
+	{
+		if(isOverMaxErrorRate(numRejected, numRows))
+			throw new IOException(String.format("%s of the first %s rows of CSV %s are invalid, which is over the max error rate of %s",
+				numRejected, numRows, csv.getName(), maxErrorRate));
+	}
+
+	/**
+	 * Called once the CSV has been read, to write its rejected rows and check that there weren't too many
+	 * @param numRows The number of rows read from the CSV, including the rejected ones
+	 * @throws IOException If too many rows were rejected, so the file should be failed
+	 */
+	public void check(File csv, RowRejects rejects, int numRows) throws IOException
+	{
+		int numRejected = rejects.getNumRejected();
+		if(numRejected <= 0)
+			return;
+		log.warn("Rejected {} of {} rows from CSV {}", numRejected, numRows, csv.getName());
+		File rejectsFile = getRejectsFile(csv);
+		if(rejectsFile != null)
+		{
+			try
+			{
+				rejects.write(rejectsFile);
+			}
+			catch(IOException e)
+			{
+				log.error(String.format("Couldn't write rejected rows of CSV %s", csv.getName()), e);
+			}
+		}
+		if(isOverMaxErrorRate(numRejected, numRows))
+			throw new IOException(String.format("%s of %s rows are invalid, which is over the max error rate of %s",
+				numRejected, numRows, maxErrorRate));
+	}
+}
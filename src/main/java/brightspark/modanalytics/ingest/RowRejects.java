@@ -0,0 +1,69 @@
+package brightspark.modanalytics.ingest;
+
+import com.opencsv.CSVWriter;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The invalid rows of a CSV file, which are left out of the ingest rather than failing the whole file
+ * Only the first {@link #MAX_KEPT} rows are kept to be written out, the rest are just counted
+ */
+public class RowRejects
+{
+	public static final int MAX_KEPT = 10_000;
+	private static final String[] HEADER = {"Line", "Reason", "Row"};
+
+	private final List<String[]> rejects = new ArrayList<>();
+	private int numRejected = 0;
+	private String source = null;
+
+	/**
+	 * Sets the name of the file within an archive that rows are currently being read from, which is added to the
+	 * reasons of the rejected rows since their line numbers are within that file
+	 */
+	public void setSource(String source)
+	{
+		this.source = source;
+	}
+
+	/**
+	 * Adds an invalid row
+	 * @param line The line number of the row in the file, starting from 1
+	 * @param cause Why the row is invalid
+	 * @param row The values of the row
+	 */
+	public void reject(long line, Exception cause, String[] row)
+	{
+		numRejected++;
+		if(rejects.size() < MAX_KEPT)
+		{
+			String reason = cause.getMessage() == null ? cause.getClass().getSimpleName() : cause.getMessage();
+			if(source != null)
+				reason = String.format("[%s] %s", source, reason);
+			rejects.add(new String[] {String.valueOf(line), reason, String.join(",", row)});
+		}
+	}
+
+	public int getNumRejected()
+	{
+		return numRejected;
+	}
+
+	/**
+	 * Writes the rejected rows to a CSV file with their line numbers and reasons
+	 */
+	public void write(File file) throws IOException
+	{
+		try(CSVWriter writer = new CSVWriter(new FileWriter(file)))
+		{
+			writer.writeNext(HEADER);
+			writer.writeAll(rejects);
+			if(numRejected > rejects.size())
+				writer.writeNext(new String[] {"", String.format("%s more rows rejected", numRejected - rejects.size()), ""});
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package brightspark.modanalytics.ingest;
+
+/**
+ * The number of analytics rows written by the {@link AnalyticsWriter} for a file
+ * Rows are only counted as inserted or updated separately when skipping unchanged rows, otherwise they're all counted
+ * as inserted
+ */
+public class WriteResult
+{
+	private final boolean countsChanges;
+	private int numInserted = 0;
+	private int numUpdated = 0;
+	private int numUnchanged = 0;
+
+	WriteResult(boolean countsChanges)
+	{
+		this.countsChanges = countsChanges;
+	}
+
+	void addInserted()
+	{
+		numInserted++;
+	}
+
+	void addUpdated()
+	{
+		numUpdated++;
+	}
+
+	void addUnchanged()
+	{
+		numUnchanged++;
+	}
+
+	void addInserted(int amount)
+	{
+		numInserted += amount;
+	}
+
+	public int getNumInserted()
+	{
+		return numInserted;
+	}
+
+	public int getNumUpdated()
+	{
+		return numUpdated;
+	}
+
+	public int getNumUnchanged()
+	{
+		return numUnchanged;
+	}
+
+	/**
+	 * Gets the number of rows that were actually written to the DB
+	 */
+	public int getNumWritten()
+	{
+		return numInserted + numUpdated;
+	}
+
+	@Override
+	public String toString()
+	{
+		return countsChanges ?
+			String.format("inserted %s, updated %s, unchanged %s", numInserted, numUpdated, numUnchanged) :
+			String.format("added/updated %s", numInserted);
+	}
+}
@@ -0,0 +1,97 @@
+package brightspark.modanalytics.ingest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads the analytics from every CSV in a zip file, one after another, as if they were a single file
+ * The entries are decompressed as they're read, so nothing is extracted to disk
+ */
+public class ZipAnalyticsReader implements AnalyticsReader
+{
+	private static final Logger log = LogManager.getLogger(ZipAnalyticsReader.class);
+
+	private final String name;
+	private final ZipInputStream zip;
+	private final InputStream entryInput;
+	private final int chunkSize;
+	private final RowRejects rejects;
+	private AnalyticsCsvReader current = null;
+	//Rows read from the finished entries
+	private int numRows = 0;
+
+	/**
+	 * @param name The name of the zip file, for logging
+	 * @param input The content of the zip file
+	 * @param rejects Where invalid rows are added, or null to throw an exception for them
+	 */
+	public ZipAnalyticsReader(String name, InputStream input, int chunkSize, RowRejects rejects)
+	{
+		this.name = name;
+		this.chunkSize = chunkSize;
+		this.rejects = rejects;
+		zip = new ZipInputStream(new BufferedInputStream(input, AnalyticsCsvReader.BUFFER_SIZE));
+		//The entry readers mustn't close the zip when they finish
+		entryInput = new FilterInputStream(zip)
+		{
+			@Override
+			public void close() {}
+		};
+	}
+
+	@Override
+	public AnalyticsChunk nextChunk() throws IOException
+	{
+		while(true)
+		{
+			if(current == null)
+			{
+				ZipEntry entry = nextCsvEntry();
+				if(entry == null)
+					return null;
+				log.debug("Reading {} from {}", entry.getName(), name);
+				if(rejects != null)
+					rejects.setSource(entry.getName());
+				current = new AnalyticsCsvReader(new InputStreamReader(entryInput), 1, chunkSize, 0, rejects);
+			}
+			AnalyticsChunk chunk = current.nextChunk();
+			if(chunk != null)
+				return chunk;
+			numRows += current.getNumRows();
+			current = null;
+		}
+	}
+
+	/**
+	 * Moves to the next CSV entry in the zip, skipping directories and any other files
+	 */
+	private ZipEntry nextCsvEntry() throws IOException
+	{
+		ZipEntry entry;
+		while((entry = zip.getNextEntry()) != null)
+		{
+			String entryName = entry.getName();
+			if(!entry.isDirectory() && entryName.toLowerCase(Locale.ROOT).endsWith(".csv") && !entryName.startsWith("__MACOSX/"))
+				return entry;
+			log.debug("Skipping {} in {}", entryName, name);
+		}
+		return null;
+	}
+
+	@Override
+	public int getNumRows()
+	{
+		return current == null ? numRows : numRows + current.getNumRows();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		zip.close();
+	}
+}
@@ -0,0 +1,75 @@
+package brightspark.modanalytics.metrics;
+
+import java.io.File;
+
+/**
+ * Metrics of the DB connection
+ * Statement latency covers each execution of a statement, where a batch of inserts counts as one execution
+ */
+public class DbMetrics implements DbMetricsMXBean
+{
+	private final LatencyHistogram statementLatency = new LatencyHistogram();
+	private final LatencyHistogram commitLatency = new LatencyHistogram();
+	private final File file;
+
+	/**
+	 * @param file The DB file, or null for an in-memory DB
+	 */
+	public DbMetrics(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Records the execution of a statement
+	 * @param startNanos The start time from {@link System#nanoTime()}
+	 */
+	public void statementExecuted(long startNanos)
+	{
+		statementLatency.recordSince(startNanos);
+	}
+
+	/**
+	 * Records a commit
+	 * @param startNanos The start time from {@link System#nanoTime()}
+	 */
+	public void committed(long startNanos)
+	{
+		commitLatency.recordSince(startNanos);
+	}
+
+	@Override
+	public long getStatementCount()
+	{
+		return statementLatency.snapshot().getCount();
+	}
+
+	@Override
+	public HistogramSnapshot getStatementLatency()
+	{
+		return statementLatency.snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getCommitLatency()
+	{
+		return commitLatency.snapshot();
+	}
+
+	/**
+	 * Gets the size in bytes of the DB file, including its write-ahead log
+	 */
+	@Override
+	public long getFileSize()
+	{
+		if(file == null)
+			return 0;
+		return file.length() + new File(file.getPath() + "-wal").length();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("statements [%s] | commits [%s] | file %s KiB", getStatementLatency(), getCommitLatency(), getFileSize() / 1024);
+	}
+}
@@ -0,0 +1,15 @@
+package brightspark.modanalytics.metrics;
+
+/**
+ * Metrics of the DB connection, exposed through JMX
+ */
+public interface DbMetricsMXBean
+{
+	long getStatementCount();
+
+	HistogramSnapshot getStatementLatency();
+
+	HistogramSnapshot getCommitLatency();
+
+	long getFileSize();
+}
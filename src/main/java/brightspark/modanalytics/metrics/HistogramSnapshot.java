@@ -0,0 +1,74 @@
+package brightspark.modanalytics.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The values of a {@link LatencyHistogram} at a point in time, with latencies in milliseconds
+ * Percentiles are the upper bound of the histogram bucket they fall in
+ */
+public class HistogramSnapshot
+{
+	private final long count;
+	private final double mean;
+	private final double p50;
+	private final double p95;
+	private final double p99;
+	private final double max;
+
+	HistogramSnapshot(long count, long meanNanos, long p50Nanos, long p95Nanos, long p99Nanos, long maxNanos)
+	{
+		this(count, toMillis(meanNanos), toMillis(p50Nanos), toMillis(p95Nanos), toMillis(p99Nanos), toMillis(maxNanos));
+	}
+
+	@ConstructorProperties({"count", "mean", "p50", "p95", "p99", "max"})
+	public HistogramSnapshot(long count, double mean, double p50, double p95, double p99, double max)
+	{
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p95 = p95;
+		this.p99 = p99;
+		this.max = max;
+	}
+
+	private static double toMillis(long nanos)
+	{
+		return nanos / 1_000_000D;
+	}
+
+	public long getCount()
+	{
+		return count;
+	}
+
+	public double getMean()
+	{
+		return mean;
+	}
+
+	public double getP50()
+	{
+		return p50;
+	}
+
+	public double getP95()
+	{
+		return p95;
+	}
+
+	public double getP99()
+	{
+		return p99;
+	}
+
+	public double getMax()
+	{
+		return max;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("n=%s mean=%.1fms p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms", count, mean, p50, p95, p99, max);
+	}
+}
@@ -0,0 +1,150 @@
+package brightspark.modanalytics.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Metrics of the ingest pipeline
+ * Parse latency is the time to parse each file, and write latency is the time the writer spends on each file, which
+ * includes waiting for it to be parsed and committing it
+ * Queue wait is the time each file spends in the ingest queue before a parser picks it up
+ */
+public class IngestMetrics implements IngestMetricsMXBean
+{
+	private final LongAdder filesProcessed = new LongAdder();
+	private final LongAdder filesFailed = new LongAdder();
+	private final LongAdder filesDuplicate = new LongAdder();
+	private final RateMeter rows = new RateMeter();
+	private final LongAdder rowsRejected = new LongAdder();
+	private final LatencyHistogram parseLatency = new LatencyHistogram();
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+	private final LatencyHistogram queueWait = new LatencyHistogram();
+	private final IntSupplier pendingFiles;
+	private final IntSupplier queuedFiles;
+
+	/**
+	 * @param pendingFiles Supplies the number of files which have been submitted but haven't finished yet
+	 * @param queuedFiles Supplies the number of files waiting in the ingest queue
+	 */
+	public IngestMetrics(IntSupplier pendingFiles, IntSupplier queuedFiles)
+	{
+		this.pendingFiles = pendingFiles;
+		this.queuedFiles = queuedFiles;
+	}
+
+	public void fileProcessed(int numRows)
+	{
+		filesProcessed.increment();
+		rows.add(numRows);
+	}
+
+	public void fileFailed()
+	{
+		filesFailed.increment();
+	}
+
+	/**
+	 * Called when a file is skipped because one with the same content has already been ingested
+	 */
+	public void fileDuplicate()
+	{
+		filesDuplicate.increment();
+	}
+
+	/**
+	 * Called with the number of invalid rows which were left out of a file
+	 */
+	public void rowsRejected(int numRows)
+	{
+		rowsRejected.add(numRows);
+	}
+
+	public LatencyHistogram getParseLatencyHistogram()
+	{
+		return parseLatency;
+	}
+
+	public LatencyHistogram getWriteLatencyHistogram()
+	{
+		return writeLatency;
+	}
+
+	public LatencyHistogram getQueueWaitHistogram()
+	{
+		return queueWait;
+	}
+
+	@Override
+	public long getFilesProcessed()
+	{
+		return filesProcessed.sum();
+	}
+
+	@Override
+	public long getFilesFailed()
+	{
+		return filesFailed.sum();
+	}
+
+	@Override
+	public long getFilesDuplicate()
+	{
+		return filesDuplicate.sum();
+	}
+
+	@Override
+	public long getRowsIngested()
+	{
+		return rows.getTotal();
+	}
+
+	@Override
+	public long getRowsRejected()
+	{
+		return rowsRejected.sum();
+	}
+
+	@Override
+	public double getRowsPerSecond()
+	{
+		return rows.getRate();
+	}
+
+	@Override
+	public int getPendingFiles()
+	{
+		return pendingFiles.getAsInt();
+	}
+
+	@Override
+	public int getQueuedFiles()
+	{
+		return queuedFiles.getAsInt();
+	}
+
+	@Override
+	public HistogramSnapshot getQueueWait()
+	{
+		return queueWait.snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getParseLatency()
+	{
+		return parseLatency.snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getWriteLatency()
+	{
+		return writeLatency.snapshot();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("files processed %s, failed %s, duplicate %s, pending %s, queued %s | rows %s (%.0f/s), rejected %s | queue wait [%s] | parse [%s] | write [%s]",
+			getFilesProcessed(), getFilesFailed(), getFilesDuplicate(), getPendingFiles(), getQueuedFiles(), getRowsIngested(),
+			getRowsPerSecond(), getRowsRejected(), getQueueWait(), getParseLatency(), getWriteLatency());
+	}
+}
@@ -0,0 +1,29 @@
+package brightspark.modanalytics.metrics;
+
+/**
+ * Metrics of the ingest pipeline, exposed through JMX
+ */
+public interface IngestMetricsMXBean
+{
+	long getFilesProcessed();
+
+	long getFilesFailed();
+
+	long getFilesDuplicate();
+
+	long getRowsIngested();
+
+	long getRowsRejected();
+
+	double getRowsPerSecond();
+
+	int getPendingFiles();
+
+	int getQueuedFiles();
+
+	HistogramSnapshot getQueueWait();
+
+	HistogramSnapshot getParseLatency();
+
+	HistogramSnapshot getWriteLatency();
+}
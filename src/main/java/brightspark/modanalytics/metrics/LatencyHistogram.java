@@ -0,0 +1,77 @@
+package brightspark.modanalytics.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies with power of 2 microsecond buckets
+ * Recording never blocks, so it's safe to use on the ingest hot path
+ */
+public class LatencyHistogram
+{
+	//Bucket i holds latencies below 2^i microseconds, so the last bucket holds anything over ~35 minutes
+	private static final int NUM_BUCKETS = 32;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * Records a latency
+	 */
+	public void record(long nanos)
+	{
+		long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+		buckets.incrementAndGet(Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+		count.increment();
+		totalNanos.add(nanos);
+		long max;
+		while(nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos));
+	}
+
+	/**
+	 * Records the time since the start
+	 * @param startNanos The start time from {@link System#nanoTime()}
+	 */
+	public void recordSince(long startNanos)
+	{
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Gets the current values of the histogram
+	 * Recording may happen at the same time, so the values are only approximately consistent with each other
+	 */
+	public HistogramSnapshot snapshot()
+	{
+		long[] counts = new long[NUM_BUCKETS];
+		long total = 0;
+		for(int i = 0; i < NUM_BUCKETS; i++)
+			total += counts[i] = buckets.get(i);
+		long sum = totalNanos.sum();
+		long max = maxNanos.get();
+		return new HistogramSnapshot(total, total == 0 ? 0 : sum / total, percentile(counts, total, 0.5, max),
+			percentile(counts, total, 0.95, max), percentile(counts, total, 0.99, max), max);
+	}
+
+	/**
+	 * Gets the upper bound of the bucket the percentile falls in, capped by the max
+	 */
+	private static long percentile(long[] counts, long total, double percentile, long max)
+	{
+		if(total == 0)
+			return 0;
+		long target = (long) Math.ceil(total * percentile);
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+			if(seen >= target)
+				return Math.min(max, TimeUnit.MICROSECONDS.toNanos(1L << i));
+		}
+		return max;
+	}
+}
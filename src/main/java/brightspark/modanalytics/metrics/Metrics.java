@@ -0,0 +1,56 @@
+package brightspark.modanalytics.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registers metrics with the platform MBean server, so they can be read through JMX
+ */
+public class Metrics
+{
+	private static final Logger log = LogManager.getLogger(Metrics.class);
+	private static final String DOMAIN = "brightspark.modanalytics";
+
+	/**
+	 * Registers the MBean with the type as its name, replacing any existing MBean of the same type
+	 */
+	public static void register(String type, Object mbean)
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			ObjectName name = new ObjectName(DOMAIN, "type", type);
+			if(server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(mbean, name);
+			log.debug("Registered MBean {}", name);
+		}
+		catch(JMException e)
+		{
+			log.error(String.format("Couldn't register %s MBean", type), e);
+		}
+	}
+
+	/**
+	 * Unregisters the MBean of the type if it's registered
+	 */
+	public static void unregister(String type)
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			ObjectName name = new ObjectName(DOMAIN, "type", type);
+			if(server.isRegistered(name))
+				server.unregisterMBean(name);
+		}
+		catch(JMException e)
+		{
+			log.error(String.format("Couldn't unregister %s MBean", type), e);
+		}
+	}
+}
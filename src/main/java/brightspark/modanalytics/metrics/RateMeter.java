@@ -0,0 +1,85 @@
+package brightspark.modanalytics.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counts events and measures their rate over roughly the last minute
+ * Samples of the total are taken when events are counted once a second has passed since the last one, and when the
+ * rate is read, so the samples cover the last minute however rarely the rate is read. Counting only takes a lock when
+ * a sample is due.
+ */
+public class RateMeter
+{
+	private static final long SAMPLE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+	private static final int NUM_SAMPLES = 60;
+
+	private final LongSupplier clock;
+	private final LongAdder total = new LongAdder();
+	//Ring of (time, total) samples, at least a second apart
+	private final long[] sampleTimes = new long[NUM_SAMPLES];
+	private final long[] sampleTotals = new long[NUM_SAMPLES];
+	private int newest = 0;
+	private int numSamples = 0;
+	private volatile long lastSampleTime;
+
+	RateMeter(LongSupplier clock)
+	{
+		this.clock = clock;
+		lastSampleTime = sampleTimes[0] = clock.getAsLong();
+		numSamples = 1;
+	}
+
+	public RateMeter()
+	{
+		this(System::nanoTime);
+	}
+
+	public void add(long amount)
+	{
+		//Sampled before the amount is added, so the events since the previous sample are all before this sample
+		long now = clock.getAsLong();
+		if(now - lastSampleTime >= SAMPLE_INTERVAL_NANOS)
+			sample(now);
+		total.add(amount);
+	}
+
+	public long getTotal()
+	{
+		return total.sum();
+	}
+
+	private synchronized void sample(long now)
+	{
+		if(now - sampleTimes[newest] < SAMPLE_INTERVAL_NANOS)
+			return;
+		newest = (newest + 1) % NUM_SAMPLES;
+		sampleTimes[newest] = now;
+		sampleTotals[newest] = total.sum();
+		numSamples = Math.min(NUM_SAMPLES, numSamples + 1);
+		lastSampleTime = now;
+	}
+
+	/**
+	 * Gets the rate per second since the oldest sample within the last minute
+	 * If nothing has been counted for a while then the samples are sparse, so this can cover less than a minute
+	 */
+	public synchronized double getRate()
+	{
+		long now = clock.getAsLong();
+		sample(now);
+		long currentTotal = total.sum();
+		int oldest = newest;
+		for(int i = 1; i < numSamples; i++)
+		{
+			int index = (newest - i + NUM_SAMPLES) % NUM_SAMPLES;
+			if(now - sampleTimes[index] > WINDOW_NANOS)
+				break;
+			oldest = index;
+		}
+		long elapsed = now - sampleTimes[oldest];
+		return elapsed <= 0 ? 0 : (currentTotal - sampleTotals[oldest]) * 1e9 / elapsed;
+	}
+}
@@ -1,15 +1,23 @@
 package brightspark.modanalytics;
 
 import brightspark.modanalytics.dao.Project;
+import brightspark.modanalytics.db.DbBatch;
 import brightspark.modanalytics.db.DbConnection;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
@@ -28,16 +36,27 @@ class MainTest
 	}
 
 	@Test
-	void testProcessCSV()
+	void testProcessCSV() throws SQLException
 	{
 		Main.db = mock(DbConnection.class);
+		DbBatch batch = mock(DbBatch.class);
+		doReturn(batch).when(Main.db).beginBatch(anyInt());
+		PreparedStatement statement = mock(PreparedStatement.class);
+		doReturn(statement).when(batch).prepare(anyString());
+		doReturn(mock(ResultSet.class)).when(statement).executeQuery();
 
 		final int[] added = {0};
-		doAnswer(invocationOnMock -> added[0]++).when(Main.db).insert(any());
-		doReturn(new Project(238858,"Glowing Glass")).when(Main.db).executeSingleResult(anyString(), any());
+		doAnswer(invocationOnMock -> added[0] += invocationOnMock.<Collection<?>>getArgument(0).size()).when(batch).addAll(anyCollection());
+		doAnswer(invocationOnMock ->
+		{
+			invocationOnMock.<Consumer<Project>>getArgument(2).accept(new Project(238858,"Glowing Glass"));
+			return 1;
+		}).when(Main.db).forEach(anyString(), any(), any());
 
 		assertTrue(main.processCSV(exampleAnalyticsFile));
 		assertEquals(91, added[0]);
+		verify(batch, never()).add(any(Project.class));
+		verify(batch).commit();
 	}
 
 	@Test
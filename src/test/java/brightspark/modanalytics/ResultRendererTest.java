@@ -0,0 +1,61 @@
+package brightspark.modanalytics;
+
+import brightspark.modanalytics.db.DbConnection;
+import brightspark.modanalytics.db.ResultCursor;
+import org.junit.jupiter.api.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResultRendererTest
+{
+	private DbConnection createDb()
+	{
+		DbConnection db = new DbConnection(null);
+		for(int i = 1; i <= 10; i++)
+			db.execute(String.format("insert into projects (id, name) values (%s, 'test%s')", i, i));
+		return db;
+	}
+
+	private int render(DbConnection db, ResultRenderer renderer, StringWriter writer) throws SQLException
+	{
+		//Rendering may stop before all rows are read, so only the first parsed result is used
+		try(ResultCursor<Integer> cursor = db.query("select * from projects order by id", results -> renderer.render(results, new PrintWriter(writer))))
+		{
+			return cursor.next();
+		}
+	}
+
+	@Test
+	void testStopsWhenPromptDeclines() throws SQLException
+	{
+		DbConnection db = createDb();
+		AtomicInteger numPrompts = new AtomicInteger();
+		StringWriter writer = new StringWriter();
+		ResultRenderer renderer = new ResultRenderer(3, 100, () -> numPrompts.incrementAndGet() < 2);
+
+		int numRows = render(db, renderer, writer);
+		assertEquals(6, numRows);
+		assertEquals(2, numPrompts.get());
+		assertTrue(writer.toString().endsWith("\n  6 | test6 "));
+		db.close();
+	}
+
+	@Test
+	void testStopsAtMaxRows() throws SQLException
+	{
+		DbConnection db = createDb();
+		StringWriter writer = new StringWriter();
+		ResultRenderer renderer = new ResultRenderer(2, 5, () -> true);
+
+		int numRows = render(db, renderer, writer);
+		assertEquals(5, numRows);
+		assertTrue(writer.toString().contains("limit of 5 rows"));
+		db.close();
+	}
+}
@@ -0,0 +1,67 @@
+package brightspark.modanalytics.archive;
+
+import brightspark.modanalytics.db.DbConnection;
+import brightspark.modanalytics.db.RollupTables;
+import brightspark.modanalytics.loadtest.CsvGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ArchiveReplayTest
+{
+	@TempDir
+	Path tempDir;
+
+	private File writeFile(File dir, String name, int projectId, int historicalDownload, long modified) throws IOException
+	{
+		List<String> rows = new ArrayList<>();
+		for(int day = 1; day <= 10; day++)
+			rows.add(CsvGenerator.row(LocalDate.of(2019, 1, day), projectId, "Project " + projectId, historicalDownload, 1));
+		rows.add("2019-01-11,not,a,valid,row");
+		File file = CsvGenerator.writeCsv(new File(dir, name), rows);
+		assertTrue(file.setLastModified(modified));
+		return file;
+	}
+
+	@Test
+	void testReplay() throws IOException, SQLException
+	{
+		File processedDir = tempDir.resolve("processed").toFile();
+		processedDir.mkdir();
+		long now = System.currentTimeMillis();
+		//The later export of the same days replaces the earlier one, even once the earlier one is archived
+		writeFile(processedDir, "first.csv", 1, 100, now - TimeUnit.DAYS.toMillis(20));
+		File second = writeFile(processedDir, "second.csv", 2, 5, now - TimeUnit.DAYS.toMillis(15));
+		File duplicate = new File(processedDir, "second-copy.csv");
+		Files.copy(second.toPath(), duplicate.toPath());
+		assertTrue(duplicate.setLastModified(now));
+		ProcessedArchive archive = new ProcessedArchive(processedDir, null);
+		assertEquals(2, archive.compact(TimeUnit.DAYS.toMillis(7)));
+		writeFile(processedDir, "first-update.csv", 1, 200, now - TimeUnit.DAYS.toMillis(1));
+
+		DbConnection db = new DbConnection(null);
+		ArchiveReplay.Result result = new ArchiveReplay(db, 2, true, 15).replay(processedDir, archive);
+		assertEquals(3, result.getNumFiles());
+		assertEquals(1, result.getNumDuplicate());
+		assertEquals(0, result.getNumFailed());
+		assertEquals(30, result.getNumRows());
+		assertEquals(3, result.getNumRejected());
+
+		assertEquals(20, (int) db.executeSingleResult("select count(*) from analytics", results -> results.getInt(1)));
+		assertEquals(200, (int) db.executeSingleResult("select max(historical_download) from analytics where project_id = 1", results -> results.getInt(1)));
+		assertEquals(2, (int) db.executeSingleResult("select count(*) from projects", results -> results.getInt(1)));
+		assertEquals(3, (int) db.executeSingleResult("select count(*) from ingest_ledger", results -> results.getInt(1)));
+		assertEquals(20, (int) db.executeSingleResult("select sum(days) from " + RollupTables.TABLE_MONTHLY, results -> results.getInt(1)));
+	}
+}
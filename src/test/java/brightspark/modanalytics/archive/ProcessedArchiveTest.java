@@ -0,0 +1,99 @@
+package brightspark.modanalytics.archive;
+
+import brightspark.modanalytics.dao.LedgerEntry;
+import brightspark.modanalytics.db.DbConnection;
+import brightspark.modanalytics.ingest.IngestLedger;
+import brightspark.modanalytics.loadtest.CsvGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProcessedArchiveTest
+{
+	@TempDir
+	Path tempDir;
+
+	private File writeFile(File dir, String name, int numRows, long modified) throws IOException
+	{
+		List<String> rows = new ArrayList<>();
+		for(int i = 1; i <= numRows; i++)
+			rows.add(CsvGenerator.row(LocalDate.of(2019, 1, i % 28 + 1), 1, name, i, 0));
+		File file = CsvGenerator.writeCsv(new File(dir, name), rows);
+		assertTrue(file.setLastModified(modified));
+		return file;
+	}
+
+	@Test
+	void testCompactAndRestore() throws IOException
+	{
+		File processedDir = tempDir.resolve("processed").toFile();
+		processedDir.mkdir();
+		long old = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(10);
+		File first = writeFile(processedDir, "first.csv", 100, old);
+		File second = writeFile(processedDir, "second.csv", 200, old);
+		File third = writeFile(processedDir, "third.csv", 50, old);
+		File recent = writeFile(processedDir, "recent.csv", 10, System.currentTimeMillis());
+		byte[] secondContent = Files.readAllBytes(second.toPath());
+
+		DbConnection db = new DbConnection(null);
+		IngestLedger ledger = new IngestLedger(db);
+		ledger.record(new LedgerEntry(IngestLedger.hash(second), "second.csv", second.length(), 200, 200, old, 0));
+
+		//Small enough that each segment only holds one or two files
+		ProcessedArchive archive = new ProcessedArchive(processedDir, ledger, 1024);
+		assertEquals(3, archive.compact(TimeUnit.DAYS.toMillis(7)));
+		assertFalse(first.exists());
+		assertFalse(second.exists());
+		assertFalse(third.exists());
+		assertTrue(recent.exists());
+		assertTrue(archive.getNumSegments() > 1);
+
+		//A new instance loads the same files from the indexes
+		archive = new ProcessedArchive(processedDir, ledger, 1024);
+		assertEquals(0, archive.compact(TimeUnit.DAYS.toMillis(7)));
+		assertEquals(3, archive.getNumFiles());
+		ArchivedFile archived = archive.find("second.csv");
+		assertEquals(200, archived.getRows());
+		assertEquals(secondContent.length, archived.getSize());
+		assertEquals(-1, archive.find("first.csv").getRows());
+		assertNull(archive.find("recent.csv"));
+
+		File restored = archive.restore("second.csv", tempDir.resolve("restored").toFile());
+		assertArrayEquals(secondContent, Files.readAllBytes(restored.toPath()));
+		assertEquals(old / 1000, restored.lastModified() / 1000);
+		assertEquals(IngestLedger.hash(restored), archived.getHash());
+		assertNull(archive.restore("missing.csv", tempDir.resolve("restored").toFile()));
+	}
+
+	@Test
+	void testReadOnlyLeavesIncompleteSegments() throws IOException
+	{
+		File processedDir = tempDir.resolve("processed").toFile();
+		processedDir.mkdir();
+		writeFile(processedDir, "first.csv", 10, System.currentTimeMillis() - TimeUnit.DAYS.toMillis(10));
+		assertEquals(1, new ProcessedArchive(processedDir, null).compact(TimeUnit.DAYS.toMillis(7)));
+
+		//Another process is part way through compacting, and has moved its segment into place but not its index yet
+		File segmentDir = new File(processedDir, ProcessedArchive.SEGMENT_DIR);
+		File segment = new File(segmentDir, "segment-99999999-000000-000-000001.seg");
+		File tempIndex = new File(segmentDir, "segment-99999999-000000-000-000001.idx.tmp");
+		assertTrue(segment.createNewFile());
+		assertTrue(tempIndex.createNewFile());
+
+		ProcessedArchive archive = ProcessedArchive.openReadOnly(processedDir);
+		assertEquals(1, archive.getFiles().size());
+		assertTrue(segment.exists());
+		assertTrue(tempIndex.exists());
+		assertThrows(IllegalStateException.class, () -> archive.compact(0));
+	}
+}
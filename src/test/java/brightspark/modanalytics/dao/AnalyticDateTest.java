@@ -0,0 +1,37 @@
+package brightspark.modanalytics.dao;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AnalyticDateTest
+{
+	@Test
+	void testParse()
+	{
+		AnalyticDate date = new AnalyticDate("2018-11-29");
+		assertEquals(LocalDate.of(2018, 11, 29).toEpochDay(), date.getEpochDay());
+		assertEquals(2018, date.getYear());
+		assertEquals(11, date.getMonth());
+		assertEquals(29, date.getDay());
+		assertEquals("2018-11-29", date.getDate());
+		assertEquals(date, new AnalyticDate("29-11-2018"));
+		assertThrows(IllegalArgumentException.class, () -> new AnalyticDate("2018-13-01"));
+		assertThrows(IllegalArgumentException.class, () -> new AnalyticDate("2019-02-30"));
+		assertThrows(IllegalArgumentException.class, () -> new AnalyticDate("2019-02-29"));
+		assertThrows(IllegalArgumentException.class, () -> new AnalyticDate("1900-02-29"));
+		assertThrows(IllegalArgumentException.class, () -> new AnalyticDate("31-04-2019"));
+		assertEquals(LocalDate.of(2020, 2, 29).toEpochDay(), new AnalyticDate("2020-02-29").getEpochDay());
+		assertEquals(LocalDate.of(2000, 2, 29).toEpochDay(), new AnalyticDate("2000-02-29").getEpochDay());
+	}
+
+	@Test
+	void testToEpochDay()
+	{
+		for(LocalDate date = LocalDate.of(1899, 1, 1); date.getYear() < 2101; date = date.plusDays(1))
+			assertEquals(date.toEpochDay(), AnalyticDate.toEpochDay(date.getYear(), date.getMonthValue(), date.getDayOfMonth()));
+	}
+}
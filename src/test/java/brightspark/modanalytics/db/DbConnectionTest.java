@@ -1,11 +1,29 @@
 package brightspark.modanalytics.db;
 
+import brightspark.modanalytics.dao.AnalyticDate;
 import brightspark.modanalytics.dao.Analytics;
 import brightspark.modanalytics.dao.Project;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class DbConnectionTest
 {
@@ -31,7 +49,6 @@ class DbConnectionTest
 
 	private void assertAnalyticsEqual(Analytics a1, Analytics a2)
 	{
-		assertEquals(a1.getId(), a2.getId());
 		assertEquals(a1.getProjectId(), a2.getProjectId());
 		assertEquals(a1.getDate(), a2.getDate());
 		assertEquals(a1.getPoints(), a2.getPoints());
@@ -45,10 +62,10 @@ class DbConnectionTest
 	@Test
 	void testInsertAnalytic()
 	{
-		Analytics analytics = new Analytics("238858_2018-12-01", 238858, "2018-12-01", 0, 10130, 10, 10, 7, 3);
+		Analytics analytics = new Analytics(238858, "2018-12-01", 0, 10130, 10, 10, 7, 3);
 		db.insert(analytics);
 
-		Analytics analytics1 = db.executeSingleResult("select * from analytics where id = '238858_2018-12-01'", Analytics::new);
+		Analytics analytics1 = db.executeSingleResult("select * from analytics where project_id = 238858 and date = " + new AnalyticDate("2018-12-01").getEpochDay(), Analytics::new);
 		assertAnalyticsEqual(analytics, analytics1);
 	}
 
@@ -56,14 +73,178 @@ class DbConnectionTest
 	void testUpdatingRows()
 	{
 		db.insert(new Project(238858, "Glowing Glass"));
-		Analytics analytics1 = new Analytics("238858_2018-12-01", 238858, "2018-12-01", 0, 10130, 10, 10, 7, 3);
+		Analytics analytics1 = new Analytics(238858, "2018-12-01", 0, 10130, 10, 10, 7, 3);
 		db.insert(analytics1);
-		Analytics analytics2 = new Analytics("238858_2018-12-01", 238858, "2018-12-01", 0, 0, 0, 0, 0, 0);
+		Analytics analytics2 = new Analytics(238858, "2018-12-01", 0, 0, 0, 0, 0, 0);
 		db.insert(analytics2);
 
 		int count = db.executeSingleResult("select count(*) from analytics;", results -> results.getInt(1));
 		assertEquals(1, count);
-		Analytics analytics3 = db.executeSingleResult("select * from analytics where id = '238858_2018-12-01'", Analytics::new);
+		Analytics analytics3 = db.executeSingleResult("select * from analytics where project_id = 238858 and date = " + new AnalyticDate("2018-12-01").getEpochDay(), Analytics::new);
 		assertAnalyticsEqual(analytics2, analytics3);
 	}
-}
\ No newline at end of file
+
+	@Test
+	void testInsertAll()
+	{
+		List<Analytics> analytics = Arrays.asList(
+			new Analytics(238858, "2018-12-01", 0, 10130, 10, 10, 7, 3),
+			new Analytics(238858, "2018-12-02", 0, 10135, 5, 5, 4, 1));
+		assertTrue(db.insertAll(analytics));
+
+		int count = db.executeSingleResult("select count(*) from analytics;", results -> results.getInt(1));
+		assertEquals(2, count);
+		Analytics analytics1 = db.executeSingleResult("select * from analytics where project_id = 238858 and date = " + new AnalyticDate("2018-12-02").getEpochDay(), Analytics::new);
+		assertAnalyticsEqual(analytics.get(1), analytics1);
+	}
+
+	@Test
+	void testBatchRollback() throws SQLException
+	{
+		try(DbBatch batch = db.beginBatch(1))
+		{
+			batch.add(new Project(238858, "Glowing Glass"));
+			batch.add(new Analytics(238858, "2018-12-01", 0, 10130, 10, 10, 7, 3));
+			//Closed without committing
+		}
+
+		int count = db.executeSingleResult("select count(*) from analytics;", results -> results.getInt(1));
+		assertEquals(0, count);
+		count = db.executeSingleResult("select count(*) from projects;", results -> results.getInt(1));
+		assertEquals(0, count);
+	}
+
+	@Test
+	void testBatchBlocksOtherWriters() throws Exception
+	{
+		CompletableFuture<Void> otherBatch;
+		try(DbBatch batch = db.beginBatch(1))
+		{
+			batch.add(new Project(238858, "Glowing Glass"));
+			otherBatch = CompletableFuture.runAsync(() ->
+			{
+				try(DbBatch batch2 = db.beginBatch(1))
+				{
+					batch2.add(new Project(1, "Other"));
+					batch2.commit();
+				}
+				catch(SQLException e)
+				{
+					throw new RuntimeException(e);
+				}
+			});
+			//The other thread can't commit this batch's changes while it's open
+			Thread.sleep(200);
+			assertFalse(otherBatch.isDone());
+			//Closed without committing
+		}
+		otherBatch.get(10, TimeUnit.SECONDS);
+
+		List<String> names = db.execute("select name from projects;", results -> results.getString(1));
+		assertEquals(Arrays.asList("Other"), names);
+	}
+
+	@Test
+	void testReadsWaitForBatch() throws Exception
+	{
+		CompletableFuture<Integer> count;
+		try(DbBatch batch = db.beginBatch(1))
+		{
+			batch.add(new Project(238858, "Glowing Glass"));
+			batch.flush();
+			//The in-memory DB only has the writer connection, so the read has to wait rather than see the open batch
+			count = CompletableFuture.supplyAsync(() -> db.executeSingleResultReadOnly("select count(*) from projects;", results -> results.getInt(1)));
+			Thread.sleep(200);
+			assertFalse(count.isDone());
+			batch.commit();
+		}
+		assertEquals(1, (int) count.get(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void testQueryCursor() throws SQLException
+	{
+		db.insert(new Project(1, "test1"));
+		db.insert(new Project(2, "test2"));
+		db.insert(new Project(3, "test3"));
+
+		try(ResultCursor<Project> cursor = db.query("select * from projects order by id", Project::new))
+		{
+			assertTrue(cursor.hasNext());
+			assertEquals(1, cursor.next().getId());
+			//Closing early shouldn't read the remaining rows
+		}
+		try(Stream<String> names = db.query("select * from projects order by id", Project::new).stream().map(Project::getName))
+		{
+			assertEquals(Arrays.asList("test1", "test2", "test3"), names.collect(Collectors.toList()));
+		}
+		assertThrows(RuntimeException.class, () -> db.executeSingleResult("select * from projects", Project::new));
+		assertEquals(3, db.forEach("select * from projects", Project::new, project -> {}));
+	}
+
+	@Test
+	void testReadOnlyQueriesDuringWrite(@TempDir Path tempDir) throws SQLException
+	{
+		db = new DbConnection(tempDir.resolve("db").toFile(), 1);
+		assertEquals("wal", db.executeSingleResult("pragma journal_mode", results -> results.getString(1)));
+		db.insert(new Project(1, "test1"));
+
+		try(DbBatch batch = db.beginBatch(1))
+		{
+			batch.add(new Project(2, "test2"));
+			//The uncommitted project shouldn't be seen, and the query shouldn't be blocked by the open transaction
+			int count = db.executeSingleResultReadOnly("select count(*) from projects", results -> results.getInt(1));
+			assertEquals(1, count);
+			batch.commit();
+		}
+		int count = db.executeSingleResultReadOnly("select count(*) from projects", results -> results.getInt(1));
+		assertEquals(2, count);
+		assertThrows(RuntimeException.class, () -> db.executeSingleResultReadOnly("delete from projects", results -> results.getInt(1)));
+		db.close();
+	}
+
+	@Test
+	void testMigrateToEpochDays(@TempDir Path tempDir) throws SQLException
+	{
+		//Create a DB with the original schema
+		File file = tempDir.resolve("db").toFile();
+		try(Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+		    Statement statement = connection.createStatement())
+		{
+			statement.execute("create table analytics (id text not null primary key, project_id integer not null, date text not null, points real not null, historical_download integer not null, daily_download integer not null, daily_unique_download integer not null, daily_twitch_app_download integer not null, daily_curseforge_download integer not null)");
+			statement.execute("insert into analytics values ('238858_2018-12-01', 238858, '2018-12-01', 0, 10130, 10, 10, 7, 3)");
+			statement.execute("insert into analytics values ('238858_2018-12-02', 238858, '2018-12-02', 0, 10135, 5, 5, 4, 1)");
+		}
+
+		db = new DbConnection(file);
+		int version = db.executeSingleResult("pragma user_version", results -> results.getInt(1));
+		assertEquals(DbConnection.SCHEMA_VERSION, version);
+		int count = db.executeSingleResult("select count(*) from analytics;", results -> results.getInt(1));
+		assertEquals(2, count);
+		Analytics analytics = db.executeSingleResult("select * from analytics where project_id = 238858 and date = " + new AnalyticDate("2018-12-02").getEpochDay(), Analytics::new);
+		assertAnalyticsEqual(new Analytics(238858, "2018-12-02", 0, 10135, 5, 5, 4, 1), analytics);
+		db.close();
+	}
+
+	@Test
+	void testRollupsRebuiltAfterFailedMigration(@TempDir Path tempDir) throws SQLException
+	{
+		//A DB from before the rollups, with a table in the way of one of them so that building it fails
+		File file = tempDir.resolve("db").toFile();
+		try(Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+		    Statement statement = connection.createStatement())
+		{
+			statement.execute("create table " + RollupTables.TABLE_MONTHLY + " (unrelated text)");
+			statement.execute("pragma user_version = 1");
+		}
+
+		db = new DbConnection(file);
+		assertEquals(1, (int) db.executeSingleResult("pragma user_version", results -> results.getInt(1)));
+		db.execute("drop table " + RollupTables.TABLE_MONTHLY);
+		db.close();
+
+		db = new DbConnection(file);
+		assertEquals(DbConnection.SCHEMA_VERSION, (int) db.executeSingleResult("pragma user_version", results -> results.getInt(1)));
+		db.close();
+	}
+}
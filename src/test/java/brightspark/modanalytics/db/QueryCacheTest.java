@@ -0,0 +1,91 @@
+package brightspark.modanalytics.db;
+
+import brightspark.modanalytics.dao.Analytics;
+import brightspark.modanalytics.dao.Project;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QueryCacheTest
+{
+	private static CachedResult createResult(String... values)
+	{
+		CachedResult.Builder builder = new CachedResult.Builder(new String[] {"value"}, Long.MAX_VALUE);
+		for(String value : values)
+			builder.add(new String[] {value});
+		return builder.build();
+	}
+
+	@Test
+	void testNormalise()
+	{
+		assertEquals("select * from projects where name = 'Test  Name'",
+			QueryCache.normalise("  SELECT *\n\tfrom   Projects WHERE name = 'Test  Name';  "));
+		assertTrue(QueryCache.isCacheable(QueryCache.normalise("Select count(*) from analytics")));
+		assertFalse(QueryCache.isCacheable(QueryCache.normalise("delete from analytics")));
+		assertFalse(QueryCache.isCacheable(QueryCache.normalise("select random()")));
+		assertFalse(QueryCache.isCacheable(QueryCache.normalise("select * from analytics where date < current_timestamp")));
+		assertFalse(QueryCache.isCacheable(QueryCache.normalise("select current_date")));
+		assertFalse(QueryCache.isCacheable(QueryCache.normalise("select CURRENT_TIME")));
+		assertFalse(QueryCache.isCacheable(QueryCache.normalise("select changes ()")));
+		assertFalse(QueryCache.isCacheable(QueryCache.normalise("select date('NOW')")));
+		assertTrue(QueryCache.isCacheable(QueryCache.normalise("select exchanges from current_times")));
+	}
+
+	@Test
+	void testEvictsLeastRecentlyUsed()
+	{
+		CachedResult result = createResult("a");
+		QueryCache cache = new QueryCache(result.getSize() * 2);
+		cache.put("select 1", result, cache.getVersion());
+		cache.put("select 2", createResult("b"), cache.getVersion());
+		assertNotNull(cache.get("select 1"));
+		cache.put("select 3", createResult("c"), cache.getVersion());
+
+		assertNotNull(cache.get("select 1"));
+		assertNull(cache.get("select 2"));
+		assertEquals(1, cache.getEvictions());
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	void testInvalidatedByWrites() throws SQLException
+	{
+		DbConnection db = new DbConnection(null);
+		QueryCache cache = db.getQueryCache();
+		cache.put("select * from projects", createResult("a"), cache.getVersion());
+		cache.put("select * from analytics", createResult("b"), cache.getVersion());
+
+		db.insert(new Project(1, "test"));
+		assertNull(cache.get("select * from projects"));
+		assertNotNull(cache.get("select * from analytics"));
+
+		try(DbBatch batch = db.beginBatch())
+		{
+			batch.add(new Analytics(1, "2019-01-01", 1F, 1, 1, 1, 1, 1));
+			//Not invalidated until the batch is committed
+			assertNotNull(cache.get("select * from analytics"));
+			batch.commit();
+		}
+		assertNull(cache.get("select * from analytics"));
+		assertEquals(2, cache.getInvalidations());
+		db.close();
+	}
+
+	@Test
+	void testIgnoresResultsFromBeforeInvalidation()
+	{
+		QueryCache cache = new QueryCache();
+		long version = cache.getVersion();
+		cache.invalidate("projects");
+		cache.put("select * from projects", createResult("a"), version);
+		assertNull(cache.get("select * from projects"));
+	}
+}
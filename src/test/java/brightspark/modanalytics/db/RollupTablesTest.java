@@ -0,0 +1,84 @@
+package brightspark.modanalytics.db;
+
+import brightspark.modanalytics.dao.Analytics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RollupTablesTest
+{
+	private static final String QUERY_ROLLUPS = "select * from %s order by project_id, start";
+
+	private DbConnection db;
+
+	@BeforeEach
+	void setUp()
+	{
+		db = new DbConnection(null);
+	}
+
+	@Test
+	void testPeriods()
+	{
+		for(LocalDate date = LocalDate.of(2018, 1, 1); date.getYear() < 2020; date = date.plusDays(1))
+		{
+			int epochDay = (int) date.toEpochDay();
+			int weekStart = RollupTables.Period.WEEK.getStart(epochDay);
+			assertEquals(DayOfWeek.MONDAY, LocalDate.ofEpochDay(weekStart).getDayOfWeek());
+			assertEquals(weekStart + 6, RollupTables.Period.WEEK.getEnd(weekStart));
+			int monthStart = RollupTables.Period.MONTH.getStart(epochDay);
+			assertEquals(date.withDayOfMonth(1).toEpochDay(), monthStart);
+			assertEquals(date.withDayOfMonth(date.lengthOfMonth()).toEpochDay(), RollupTables.Period.MONTH.getEnd(monthStart));
+		}
+	}
+
+	@Test
+	void testUpdateMatchesRebuild() throws SQLException
+	{
+		//Write analytics for two projects across several weeks and months, updating the rollups as we go
+		LocalDate start = LocalDate.of(2018, 11, 20);
+		for(int day = 0; day < 30; day++)
+		{
+			try(DbBatch batch = db.beginBatch())
+			{
+				RollupTables.Changes changes = new RollupTables.Changes();
+				for(int projectId = 1; projectId <= 2; projectId++)
+				{
+					Analytics analytics = new Analytics(projectId, start.plusDays(day).toString(), 1, 100 + day, day, day, projectId, day - projectId);
+					batch.add(analytics);
+					changes.add(projectId, analytics.getDate().getEpochDay());
+				}
+				RollupTables.update(batch, changes);
+				batch.commit();
+			}
+		}
+
+		List<String> weekly = db.execute(String.format(QUERY_ROLLUPS, RollupTables.TABLE_WEEKLY), RollupTablesTest::rowToString);
+		List<String> monthly = db.execute(String.format(QUERY_ROLLUPS, RollupTables.TABLE_MONTHLY), RollupTablesTest::rowToString);
+		assertEquals(2, monthly.size() / 2);
+		assertEquals("1," + LocalDate.of(2018, 11, 1).toEpochDay() + ",11,11.0,110,55,55,11,44", monthly.get(0));
+
+		RollupTables.rebuild(db);
+		assertEquals(weekly, db.execute(String.format(QUERY_ROLLUPS, RollupTables.TABLE_WEEKLY), RollupTablesTest::rowToString));
+		assertEquals(monthly, db.execute(String.format(QUERY_ROLLUPS, RollupTables.TABLE_MONTHLY), RollupTablesTest::rowToString));
+	}
+
+	private static String rowToString(ResultSet results) throws SQLException
+	{
+		StringBuilder sb = new StringBuilder();
+		for(int i = 1; i <= results.getMetaData().getColumnCount(); i++)
+		{
+			if(i > 1)
+				sb.append(",");
+			sb.append(results.getString(i));
+		}
+		return sb.toString();
+	}
+}
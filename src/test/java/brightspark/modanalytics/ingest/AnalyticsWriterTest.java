@@ -0,0 +1,135 @@
+package brightspark.modanalytics.ingest;
+
+import brightspark.modanalytics.dao.AnalyticDate;
+import brightspark.modanalytics.dao.Analytics;
+import brightspark.modanalytics.dao.FileCheckpoint;
+import brightspark.modanalytics.dao.Project;
+import brightspark.modanalytics.db.DbConnection;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AnalyticsWriterTest
+{
+	private DbConnection db;
+	private File exampleAnalyticsFile;
+
+	@BeforeEach
+	void setUp()
+	{
+		db = new DbConnection(null);
+		exampleAnalyticsFile = new File(Thread.currentThread().getContextClassLoader().getResource("ExampleAnalytics.csv").getPath());
+	}
+
+	private WriteResult write(AnalyticsWriter writer) throws IOException, SQLException
+	{
+		try(AnalyticsCsvReader reader = new AnalyticsCsvReader(exampleAnalyticsFile))
+		{
+			return writer.write(reader);
+		}
+	}
+
+	@Test
+	void testSkipUnchanged() throws IOException, SQLException
+	{
+		AnalyticsWriter writer = new AnalyticsWriter(db, new ProjectRegistry(db), true);
+		WriteResult result = write(writer);
+		assertEquals(91, result.getNumInserted());
+		assertEquals(0, result.getNumUnchanged());
+
+		result = write(writer);
+		assertEquals(0, result.getNumWritten());
+		assertEquals(91, result.getNumUnchanged());
+
+		//A changed row should be written, and the digests loaded from the DB by a new writer should match
+		Analytics changed = new Analytics(238858, "2018-12-01", 0, 10130, 11, 10, 7, 4);
+		result = new AnalyticsWriter(db, new ProjectRegistry(db), true).write(new ListChunkSource(changed));
+		assertEquals(1, result.getNumUpdated());
+		result = write(new AnalyticsWriter(db, new ProjectRegistry(db), true));
+		assertEquals(1, result.getNumUpdated());
+		assertEquals(90, result.getNumUnchanged());
+
+		int count = db.executeSingleResult("select count(*) from analytics;", results -> results.getInt(1));
+		assertEquals(91, count);
+	}
+
+	@Test
+	void testProjectNameChange() throws IOException, SQLException
+	{
+		ProjectRegistry projects = new ProjectRegistry(db);
+		AnalyticsWriter writer = new AnalyticsWriter(db, projects, false);
+		write(writer);
+		assertEquals("Glowing Glass", projects.get(238858).getName());
+
+		//An older export has the name from before it changed, so doesn't revert it
+		writer.write(new ListChunkSource(new Analytics(238858, "2018-12-01", 0, 10130, 11, 10, 7, 4)));
+		assertEquals("Glowing Glass", projects.get(238858).getName());
+
+		writer.write(new ListChunkSource(new Analytics(238858, "2019-03-01", 0, 10580, 8, 8, 4, 4)));
+		assertEquals("Test", projects.get(238858).getName());
+		Project project = db.executeSingleResult("select * from projects where id = 238858", Project::new);
+		assertEquals("Test", project.getName());
+		ProjectRegistry loaded = new ProjectRegistry(db);
+		assertEquals(1, loaded.size());
+		assertEquals(new AnalyticDate("2019-03-01").getEpochDay(), loaded.getLatestEpochDay(238858));
+	}
+
+	@Test
+	void testResumeFromCheckpoint() throws IOException, SQLException
+	{
+		AnalyticsWriter writer = new AnalyticsWriter(db, new ProjectRegistry(db), false, 20);
+
+		//Fail part way through the file, after the first two checkpoints have been committed
+		try(AnalyticsCsvReader reader = new AnalyticsCsvReader(exampleAnalyticsFile, 10))
+		{
+			int[] numChunks = {0};
+			assertThrows(IOException.class, () -> writer.write(() ->
+			{
+				if(++numChunks[0] > 5)
+					throw new IOException("Interrupted");
+				return reader.nextChunk();
+			}, exampleAnalyticsFile));
+		}
+		assertEquals(40, (int) db.executeSingleResult("select count(*) from analytics", results -> results.getInt(1)));
+		assertEquals(40, FileCheckpoint.load(db, exampleAnalyticsFile).getRows());
+
+		//Only the rows after the checkpoint should be written, and the checkpoint removed once the file is done
+		WriteResult result;
+		try(AnalyticsCsvReader reader = new AnalyticsCsvReader(exampleAnalyticsFile, 10))
+		{
+			result = writer.write(reader, exampleAnalyticsFile);
+		}
+		assertEquals(51, result.getNumInserted());
+		assertEquals(91, (int) db.executeSingleResult("select count(*) from analytics", results -> results.getInt(1)));
+		assertNull(FileCheckpoint.load(db, exampleAnalyticsFile));
+	}
+
+	/**
+	 * Supplies a single chunk of the given analytics
+	 */
+	private static class ListChunkSource implements ChunkSource
+	{
+		private AnalyticsChunk chunk;
+
+		private ListChunkSource(Analytics... analytics)
+		{
+			chunk = new AnalyticsChunk(new Project(analytics[0].getProjectId(), "Test"), Arrays.asList(analytics));
+		}
+
+		@Override
+		public AnalyticsChunk nextChunk()
+		{
+			AnalyticsChunk next = chunk;
+			chunk = null;
+			return next;
+		}
+	}
+}
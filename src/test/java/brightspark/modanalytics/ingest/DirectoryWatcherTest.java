@@ -0,0 +1,60 @@
+package brightspark.modanalytics.ingest;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectoryWatcherTest
+{
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void testWaitsForFilesToSettle() throws IOException, InterruptedException
+	{
+		File existing = tempDir.resolve("existing.csv").toFile();
+		assertTrue(existing.createNewFile());
+
+		BlockingQueue<List<File>> batches = new LinkedBlockingQueue<>();
+		DirectoryWatcher watcher = new DirectoryWatcher(tempDir.toFile(), batches::add, 300, 50, 1000);
+		watcher.start();
+		try
+		{
+			//Files already in the directory are picked up
+			assertEquals(Arrays.asList(existing), batches.poll(5, TimeUnit.SECONDS));
+
+			//A file that's still being written shouldn't be passed on until it stops changing
+			File first = tempDir.resolve("a.csv").toFile();
+			File second = tempDir.resolve("b.csv").toFile();
+			try(FileWriter writer = new FileWriter(first))
+			{
+				for(int i = 0; i < 5; i++)
+				{
+					writer.write("line " + i + "\n");
+					writer.flush();
+					assertNull(batches.poll(100, TimeUnit.MILLISECONDS));
+				}
+				assertTrue(second.createNewFile());
+			}
+
+			//Both files settle together, so are passed on as one batch
+			assertEquals(Arrays.asList(first, second), batches.poll(5, TimeUnit.SECONDS));
+			assertNull(batches.poll(500, TimeUnit.MILLISECONDS));
+		}
+		finally
+		{
+			watcher.stop();
+		}
+	}
+}
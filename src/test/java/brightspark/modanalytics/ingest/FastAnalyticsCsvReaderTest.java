@@ -0,0 +1,158 @@
+package brightspark.modanalytics.ingest;
+
+import brightspark.modanalytics.dao.Analytics;
+import brightspark.modanalytics.loadtest.CsvGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FastAnalyticsCsvReaderTest
+{
+	@TempDir
+	Path tempDir;
+
+	private static List<Analytics> readAll(AnalyticsReader reader) throws IOException
+	{
+		List<Analytics> analytics = new ArrayList<>();
+		AnalyticsChunk chunk;
+		while((chunk = reader.nextChunk()) != null)
+			analytics.addAll(chunk.getAnalytics());
+		reader.close();
+		return analytics;
+	}
+
+	private static void assertSameAnalytics(File file) throws IOException
+	{
+		List<Analytics> expected = readAll(new AnalyticsCsvReader(file, 7));
+		List<Analytics> actual = readAll(new FastAnalyticsCsvReader(file, 7));
+		assertEquals(expected.size(), actual.size());
+		for(int i = 0; i < expected.size(); i++)
+		{
+			Analytics a1 = expected.get(i);
+			Analytics a2 = actual.get(i);
+			assertEquals(a1.getProjectId(), a2.getProjectId());
+			assertEquals(a1.getDate(), a2.getDate());
+			assertEquals(a1.getPoints(), a2.getPoints());
+			assertEquals(a1.getHistoricalDownload(), a2.getHistoricalDownload());
+			assertEquals(a1.getDailyDownload(), a2.getDailyDownload());
+			assertEquals(a1.getDailyUniqueDownload(), a2.getDailyUniqueDownload());
+			assertEquals(a1.getDailyTwitchAppDownload(), a2.getDailyTwitchAppDownload());
+			assertEquals(a1.getDailyCurseForgeDownload(), a2.getDailyCurseForgeDownload());
+		}
+	}
+
+	private File writeFile(String... rows) throws IOException
+	{
+		return CsvGenerator.writeCsv(tempDir.resolve("test.csv").toFile(), rows);
+	}
+
+	@Test
+	void testExampleFile() throws IOException
+	{
+		File file = new File(Thread.currentThread().getContextClassLoader().getResource("ExampleAnalytics.csv").getPath());
+		assertSameAnalytics(file);
+
+		try(FastAnalyticsCsvReader reader = new FastAnalyticsCsvReader(file))
+		{
+			AnalyticsChunk chunk = reader.nextChunk();
+			assertEquals(238858, chunk.getProject().getId());
+			assertEquals("Glowing Glass", chunk.getProject().getName());
+		}
+	}
+
+	@Test
+	void testDecimalPoints() throws IOException
+	{
+		assertSameAnalytics(writeFile("2018-11-29,238858,Glowing Glass,12.5,10116,2,2,2,0",
+			"2018-11-30,238858,Glowing Glass,0.125,10120,4,4,4,0"));
+	}
+
+	@Test
+	void testWindowsLineEndings() throws IOException
+	{
+		File file = tempDir.resolve("windows.csv").toFile();
+		Files.write(file.toPath(), (CsvGenerator.CSV_HEADER + "\r\n" +
+			"2018-11-29,238858,Glowing Glass,12.5,10116,2,2,2,0\r\n2018-11-30,238858,Glowing Glass,0,10120,4,4,4,0\r\n").getBytes());
+		assertSameAnalytics(file);
+	}
+
+	@Test
+	void testPointsMatchParseFloat() throws IOException
+	{
+		//Enough digits that the value has to be rounded, which mustn't differ from Float.parseFloat
+		Random random = new Random(0);
+		String[] rows = new String[1000];
+		for(int i = 1; i < rows.length; i++)
+			rows[i] = String.format("2018-11-29,238858,Glowing Glass,%s.%s,10116,2,2,2,0", random.nextInt(100_000), random.nextInt(1_000_000));
+		//Just above halfway between two floats, so rounding to a double first would round it down to the even float
+		rows[0] = "2018-11-28,238858,Glowing Glass,16777217.000000001,10116,2,2,2,0";
+		assertSameAnalytics(writeFile(rows));
+	}
+
+	@Test
+	void testLinesAcrossBuffers() throws IOException
+	{
+		//Many times the size of the reader's buffer, with a line that's longer than the buffer part way through
+		String[] rows = new String[20_000];
+		for(int i = 0; i < rows.length; i++)
+			rows[i] = CsvGenerator.row(LocalDate.of(2000, 1, 1).plusDays(i + 1), 238858, "Glowing Glass", i + 1, 2);
+		char[] longName = new char[100_000];
+		Arrays.fill(longName, 'a');
+		rows[14_999] = rows[14_999].replace("Glowing Glass", new String(longName));
+		assertSameAnalytics(writeFile(rows));
+	}
+
+	@Test
+	void testFallbackForQuotedValues() throws IOException
+	{
+		assertSameAnalytics(writeFile("2018-11-29,238858,Glowing Glass,0,10116,2,2,2,0",
+			"2018-11-30,238858,\"Glowing, Glass\",0,10120,4,4,4,0",
+			"2018-12-01,238858,Glowing Glass,0,10130,10,10,7,3"));
+		File quoted = tempDir.resolve("quoted.csv").toFile();
+		Files.write(quoted.toPath(), Arrays.asList("\"" + CsvGenerator.CSV_HEADER.replace(",", "\",\"") + "\"",
+			"\"2018-11-29\",\"238858\",\"Glowing Glass\",\"0\",\"10116\",\"2\",\"2\",\"2\",\"0\""));
+		assertSameAnalytics(quoted);
+	}
+
+	@Test
+	void testInvalidRow() throws IOException
+	{
+		File file = writeFile("2018-11-29,238858,Glowing Glass,0,10116,2,2,2,0",
+			"2018-11-30,238858,Glowing Glass,0,10120,4");
+		assertThrows(RuntimeException.class, () -> readAll(new FastAnalyticsCsvReader(file)));
+	}
+
+	@Test
+	void testRejectInvalidRows() throws IOException
+	{
+		File file = writeFile("2018-11-29,238858,Glowing Glass,0,10116,2,2,2,0",
+			"2018-11-30,238858,Glowing Glass,0,10120,4",
+			"2018-12-01,238858,Glowing Glass,0,10130,10,10,7,3",
+			"2018-12-02,238858,Glowing Glass,0,abc,10,10,7,3",
+			"2019-02-30,238858,Glowing Glass,0,10140,10,10,7,3");
+		RowRejects rejects = new RowRejects();
+		assertEquals(2, readAll(new FastAnalyticsCsvReader(file, 7, rejects)).size());
+		assertEquals(3, rejects.getNumRejected());
+
+		File rejectsFile = tempDir.resolve("rejects.csv").toFile();
+		rejects.write(rejectsFile);
+		List<String> lines = Files.readAllLines(rejectsFile.toPath());
+		assertEquals(4, lines.size());
+		assertTrue(lines.get(1).startsWith("\"3\",\"Invalid CSV data!"));
+		assertTrue(lines.get(2).startsWith("\"5\","));
+		assertTrue(lines.get(3).startsWith("\"6\","));
+	}
+}
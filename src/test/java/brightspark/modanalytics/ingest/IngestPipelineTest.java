@@ -0,0 +1,246 @@
+package brightspark.modanalytics.ingest;
+
+import brightspark.modanalytics.dao.LedgerEntry;
+import brightspark.modanalytics.db.DbConnection;
+import brightspark.modanalytics.loadtest.CsvGenerator;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IngestPipelineTest
+{
+	private DbConnection db;
+	private File exampleAnalyticsFile;
+
+	@TempDir
+	Path tempDir;
+
+	@BeforeEach
+	void setUp()
+	{
+		db = new DbConnection(null);
+		exampleAnalyticsFile = new File(Thread.currentThread().getContextClassLoader().getResource("ExampleAnalytics.csv").getPath());
+	}
+
+	@Test
+	void testIngestMultipleFiles() throws IOException
+	{
+		IngestPipeline pipeline = new IngestPipeline(db, new ProjectRegistry(db), 3, false, false, 0);
+
+		File invalidFile = CsvGenerator.writeCsv(tempDir.resolve("invalid.csv").toFile(), "not,a,valid,row");
+
+		List<CompletableFuture<Boolean>> results = new ArrayList<>();
+		List<String> lines = Files.readAllLines(exampleAnalyticsFile.toPath());
+		for(int i = 0; i < 3; i++)
+		{
+			//Each copy is for a different project, so that none of them are skipped as duplicates
+			File file = tempDir.resolve("example" + i + ".csv").toFile();
+			int projectId = 238858 + i;
+			Files.write(file.toPath(), lines.stream().map(line -> line.replace(",238858,", "," + projectId + ",")).collect(Collectors.toList()));
+			results.add(pipeline.submit(file));
+		}
+		results.add(pipeline.submit(invalidFile));
+		pipeline.shutdown();
+
+		for(int i = 0; i < 3; i++)
+			assertTrue(results.get(i).join());
+		assertFalse(results.get(3).join());
+
+		assertEquals(3, pipeline.getMetrics().getFilesProcessed());
+		assertEquals(0, pipeline.getMetrics().getFilesDuplicate());
+		int count = db.executeSingleResult("select count(*) from analytics;", results1 -> results1.getInt(1));
+		assertEquals(273, count);
+		count = db.executeSingleResult("select count(*) from projects;", results1 -> results1.getInt(1));
+		assertEquals(3, count);
+	}
+
+	@Test
+	void testSkipsDuplicateFiles() throws IOException
+	{
+		IngestPipeline pipeline = new IngestPipeline(db, new ProjectRegistry(db), 2, false, false, 0);
+		File first = tempDir.resolve("first.csv").toFile();
+		File second = tempDir.resolve("second.csv").toFile();
+		Files.copy(exampleAnalyticsFile.toPath(), first.toPath());
+		Files.copy(exampleAnalyticsFile.toPath(), second.toPath());
+
+		assertTrue(pipeline.submit(first).join());
+		assertTrue(pipeline.submit(second).join());
+		pipeline.shutdown();
+
+		assertEquals(1, pipeline.getMetrics().getFilesProcessed());
+		assertEquals(1, pipeline.getMetrics().getFilesDuplicate());
+		LedgerEntry entry = new IngestLedger(db).find(IngestLedger.hash(second));
+		assertEquals("first.csv", entry.getFileName());
+		assertEquals(91, entry.getNumRows());
+	}
+
+	@Test
+	void testRejectsInvalidRows() throws IOException
+	{
+		File rejectDir = tempDir.resolve("failed").toFile();
+		rejectDir.mkdir();
+		IngestPipeline pipeline = new IngestPipeline(db, new ProjectRegistry(db), 2, true, false, 0,
+			new RejectPolicy(0.2, rejectDir), new IngestQueue(4, IngestQueue.Scheduling.FIFO), GroupCommitPolicy.DISABLED);
+		List<String> validRows = new ArrayList<>();
+		List<String> invalidRows = new ArrayList<>();
+		for(int i = 1; i <= 10; i++)
+		{
+			LocalDate date = LocalDate.of(2019, 1, i);
+			validRows.add(i == 4 ? date + ",1,Valid,0,0,0" : CsvGenerator.row(date, 1, "Valid", 0, 0));
+			invalidRows.add(i % 2 == 0 ? date + ",2,Invalid,0,0,0" : CsvGenerator.row(date, 2, "Invalid", 0, 0));
+		}
+		File mostlyValid = CsvGenerator.writeCsv(tempDir.resolve("mostlyValid.csv").toFile(), validRows);
+		File mostlyInvalid = CsvGenerator.writeCsv(tempDir.resolve("mostlyInvalid.csv").toFile(), invalidRows);
+
+		assertTrue(pipeline.submit(mostlyValid).join());
+		assertFalse(pipeline.submit(mostlyInvalid).join());
+		pipeline.shutdown();
+
+		int count = db.executeSingleResult("select count(*) from analytics;", results -> results.getInt(1));
+		assertEquals(9, count);
+		assertEquals(6, pipeline.getMetrics().getRowsRejected());
+		List<String> rejects = Files.readAllLines(new File(rejectDir, "mostlyValid.csv" + RejectPolicy.REJECTS_SUFFIX).toPath());
+		assertEquals(2, rejects.size());
+		assertTrue(rejects.get(1).startsWith("\"5\","));
+		assertTrue(new File(rejectDir, "mostlyInvalid.csv" + RejectPolicy.REJECTS_SUFFIX).exists());
+	}
+
+	@Test
+	void testRejectsInvalidRowsBeforeCheckpoint() throws IOException
+	{
+		IngestPipeline pipeline = new IngestPipeline(db, new ProjectRegistry(db), 1, true, false, 500,
+			new RejectPolicy(0.05, null), new IngestQueue(4, IngestQueue.Scheduling.FIFO), GroupCommitPolicy.DISABLED);
+		//One in ten rows are invalid, spread across every checkpoint of the file
+		List<String> rows = new ArrayList<>();
+		for(int i = 0; i < 2000; i++)
+		{
+			LocalDate date = LocalDate.of(2000, 1, 1).plusDays(i);
+			rows.add(i % 10 == 0 ? date + ",1,Project,0,0,0" : CsvGenerator.row(date, 1, "Project", 0, 0));
+		}
+		File file = CsvGenerator.writeCsv(tempDir.resolve("invalid.csv").toFile(), rows);
+
+		assertFalse(pipeline.submit(file).join());
+		pipeline.shutdown();
+
+		//The file is failed before its first checkpoint is committed, so none of it is left in the DB
+		assertEquals(0, (int) db.executeSingleResult("select count(*) from analytics;", results -> results.getInt(1)));
+		assertEquals(0, (int) db.executeSingleResult("select count(*) from ingest_checkpoints;", results -> results.getInt(1)));
+	}
+
+	@Test
+	void testIngestCompressedFiles() throws IOException
+	{
+		IngestPipeline pipeline = new IngestPipeline(db, new ProjectRegistry(db), 2, true, false, 0);
+		File gzip = tempDir.resolve("example.csv.gz").toFile();
+		try(OutputStream output = new GZIPOutputStream(new FileOutputStream(gzip)))
+		{
+			Files.copy(exampleAnalyticsFile.toPath(), output);
+		}
+		File zip = tempDir.resolve("examples.zip").toFile();
+		try(ZipOutputStream output = new ZipOutputStream(new FileOutputStream(zip)))
+		{
+			output.putNextEntry(new ZipEntry("readme.txt"));
+			output.write("Not a CSV".getBytes());
+			output.putNextEntry(new ZipEntry("first.csv"));
+			output.write((CsvGenerator.CSV_HEADER + "\n2019-01-01,1,First,0,0,0,0,0,0\n2019-01-02,1,First,0,0,0,0,0,0\n").getBytes());
+			output.putNextEntry(new ZipEntry("second.csv"));
+			output.write((CsvGenerator.CSV_HEADER + "\n2019-01-01,2,Second,0,0,0,0,0,0\n").getBytes());
+		}
+
+		assertTrue(pipeline.submit(gzip).join());
+		assertTrue(pipeline.submit(zip).join());
+		pipeline.shutdown();
+
+		int count = db.executeSingleResult("select count(*) from analytics;", results -> results.getInt(1));
+		assertEquals(94, count);
+		count = db.executeSingleResult("select count(*) from projects;", results -> results.getInt(1));
+		assertEquals(3, count);
+		assertEquals(3, new IngestLedger(db).find(IngestLedger.hash(zip)).getNumRows());
+	}
+
+	@Test
+	void testGroupCommitSmallFiles() throws IOException
+	{
+		//One parser so that the files are written in the order they're submitted, and a long delay so they're all committed together
+		IngestPipeline pipeline = new IngestPipeline(db, new ProjectRegistry(db), 1, true, false, 0, RejectPolicy.STRICT,
+			new IngestQueue(4, IngestQueue.Scheduling.FIFO), new GroupCommitPolicy(1000, 60_000));
+		List<String> firstRows = new ArrayList<>();
+		List<String> secondRows = new ArrayList<>();
+		for(int day = 1; day <= 5; day++)
+		{
+			firstRows.add(CsvGenerator.row(LocalDate.of(2019, 1, day), 1, "Project", 100, 0));
+			secondRows.add(CsvGenerator.row(LocalDate.of(2019, 1, day + 2), 1, "Project", 200, 0));
+		}
+		File first = CsvGenerator.writeCsv(tempDir.resolve("first.csv").toFile(), firstRows);
+		File invalid = CsvGenerator.writeCsv(tempDir.resolve("invalid.csv").toFile(), "not,a,valid,row");
+		File second = CsvGenerator.writeCsv(tempDir.resolve("second.csv").toFile(), secondRows);
+
+		CompletableFuture<Boolean> firstResult = pipeline.submit(first);
+		CompletableFuture<Boolean> invalidResult = pipeline.submit(invalid);
+		CompletableFuture<Boolean> secondResult = pipeline.submit(second);
+		pipeline.shutdown();
+		assertTrue(firstResult.join());
+		assertFalse(invalidResult.join());
+		assertTrue(secondResult.join());
+
+		//The second file's rows replace the first's for the days in both
+		assertEquals(7, (int) db.executeSingleResult("select count(*) from analytics;", results -> results.getInt(1)));
+		assertEquals(2, (int) db.executeSingleResult("select count(*) from analytics where historical_download = 100;", results -> results.getInt(1)));
+		assertEquals(2, (int) db.executeSingleResult("select count(*) from ingest_ledger;", results -> results.getInt(1)));
+		assertEquals(2, pipeline.getMetrics().getFilesProcessed());
+		assertEquals(5, new IngestLedger(db).find(IngestLedger.hash(second)).getNumRows());
+
+		//Compressed files can expand to far more than their size, so are never grouped
+		GroupCommitPolicy policy = new GroupCommitPolicy(1000, 60_000);
+		assertTrue(policy.accepts(first));
+		assertFalse(policy.accepts(tempDir.resolve("first.csv.gz").toFile()));
+		assertFalse(policy.accepts(tempDir.resolve("first.zip").toFile()));
+	}
+
+	@Test
+	void testShutdownStopsUnfinishedFiles() throws IOException, InterruptedException
+	{
+		//A file DB so that progress can be checked from the test thread while the writer is writing
+		db = new DbConnection(tempDir.resolve("db").toFile());
+		int numRows = 50_000;
+		List<String> rows = new ArrayList<>(numRows);
+		for(int i = 0; i < numRows; i++)
+			rows.add(CsvGenerator.row(LocalDate.of(2000, 1, 1).plusDays(i % 1000), i / 1000 + 1, "Project", i, 0));
+		File file = CsvGenerator.writeCsv(tempDir.resolve("large.csv").toFile(), rows);
+
+		IngestPipeline pipeline = new IngestPipeline(db, new ProjectRegistry(db), 1, true, false, 1000);
+		CompletableFuture<Boolean> result = pipeline.submit(file);
+		//Wait until part of the file has been committed
+		long deadline = System.currentTimeMillis() + 30_000;
+		while(db.executeSingleResultReadOnly("select count(*) from ingest_checkpoints;", results -> results.getInt(1)) == 0)
+		{
+			assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for a checkpoint");
+			Thread.sleep(5);
+		}
+		pipeline.shutdown(0);
+
+		//The file is left to be ingested again, and resumes from its checkpoint
+		assertTrue(result.isCancelled());
+		assertEquals(1, (int) db.executeSingleResult("select count(*) from ingest_checkpoints;", results -> results.getInt(1)));
+		pipeline = new IngestPipeline(db, new ProjectRegistry(db), 1, true, false, 1000);
+		assertTrue(pipeline.submit(file).join());
+		pipeline.shutdown();
+		assertEquals(numRows, (int) db.executeSingleResult("select count(*) from analytics;", results -> results.getInt(1)));
+		assertEquals(0, (int) db.executeSingleResult("select count(*) from ingest_checkpoints;", results -> results.getInt(1)));
+		db.close();
+	}
+}
@@ -0,0 +1,98 @@
+package brightspark.modanalytics.ingest;
+
+import brightspark.modanalytics.loadtest.CsvGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IngestQueueTest
+{
+	@TempDir
+	Path tempDir;
+
+	private FileBatch createBatch(String name, int projectId, int numRows) throws IOException
+	{
+		List<String> rows = new ArrayList<>();
+		for(int i = 1; i <= numRows; i++)
+			rows.add(CsvGenerator.row(LocalDate.of(2019, 1, i), projectId, "Test", 0, 0));
+		File file = CsvGenerator.writeCsv(tempDir.resolve(name).toFile(), rows);
+		return new FileBatch(file, 1, RejectPolicy.STRICT);
+	}
+
+	private List<String> takeAll(IngestQueue queue) throws InterruptedException
+	{
+		queue.close();
+		List<String> names = new ArrayList<>();
+		IngestQueue.Entry entry;
+		while((entry = queue.take()) != null)
+			names.add(entry.getBatch().getFile().getName());
+		return names;
+	}
+
+	@Test
+	void testRoundRobin() throws Exception
+	{
+		IngestQueue queue = new IngestQueue(10, IngestQueue.Scheduling.ROUND_ROBIN);
+		queue.put(createBatch("a1.csv", 1, 20));
+		queue.put(createBatch("a2.csv", 1, 20));
+		queue.put(createBatch("a3.csv", 1, 20));
+		queue.put(createBatch("b1.csv", 2, 1));
+		queue.put(createBatch("c1.csv", 3, 1));
+		queue.put(createBatch("b2.csv", 2, 1));
+		assertEquals(6, queue.size());
+		assertEquals(Arrays.asList("a1.csv", "b1.csv", "c1.csv", "a2.csv", "b2.csv", "a3.csv"), takeAll(queue));
+	}
+
+	@Test
+	void testSmallestFirst() throws Exception
+	{
+		IngestQueue queue = new IngestQueue(10, IngestQueue.Scheduling.SMALLEST_FIRST);
+		queue.put(createBatch("large.csv", 1, 20));
+		queue.put(createBatch("small.csv", 2, 1));
+		queue.put(createBatch("medium.csv", 3, 5));
+		queue.put(createBatch("small2.csv", 4, 1));
+		assertEquals(Arrays.asList("small.csv", "small2.csv", "medium.csv", "large.csv"), takeAll(queue));
+	}
+
+	@Test
+	void testBlocksWhenFull() throws Exception
+	{
+		IngestQueue queue = new IngestQueue(1, IngestQueue.Scheduling.FIFO);
+		queue.put(createBatch("first.csv", 1, 1));
+		FileBatch second = createBatch("second.csv", 1, 1);
+		CompletableFuture<Void> put = CompletableFuture.runAsync(() ->
+		{
+			try
+			{
+				queue.put(second);
+			}
+			catch(InterruptedException e)
+			{
+				throw new RuntimeException(e);
+			}
+		});
+		assertThrows(TimeoutException.class, () -> put.get(200, TimeUnit.MILLISECONDS));
+
+		assertEquals("first.csv", queue.take().getBatch().getFile().getName());
+		put.get(5, TimeUnit.SECONDS);
+		assertEquals(1, queue.size());
+
+		queue.close();
+		assertThrows(RejectedExecutionException.class, () -> queue.put(createBatch("third.csv", 1, 1)));
+		assertEquals("second.csv", queue.take().getBatch().getFile().getName());
+		assertNull(queue.take());
+	}
+}
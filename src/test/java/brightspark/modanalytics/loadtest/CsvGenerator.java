@@ -0,0 +1,271 @@
+package brightspark.modanalytics.loadtest;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates CSVs in the layout of the Curse analytics export, for load and scaling tests
+ * The output only depends on the parameters, so the same seed always gives the same files
+ *
+ * Each project has a daily history over the date span, which is split across the project's files. Files can overlap
+ * the end of the previous file, like repeated exports do, and the overlapping rows have the same values.
+ * Malformed rows can be mixed in to exercise the failure paths.
+ */
+public class CsvGenerator
+{
+	public static final String CSV_HEADER = "Date,Project ID,Name,Points,Historical Download,Daily Download,Daily Unique Download,Daily Twitch App Download,Daily Curse Forge Download";
+	private static final DateTimeFormatter DAY_FIRST = DateTimeFormatter.ofPattern("dd-MM-yyyy");
+	private static final int FIRST_PROJECT_ID = 200000;
+	//Keeps the historical downloads of long histories within an int
+	private static final double MAX_POPULARITY = 5000;
+	private static final String[] NAME_WORDS = {
+		"Glowing", "Glass", "Iron", "Chests", "Better", "Tools", "Magic", "Storage", "Quark", "Tweaks", "Ender", "Pipes",
+		"Simple", "Ores", "Tech", "Reborn", "Forestry", "Mobs", "Biomes", "Plenty", "Waystones", "Backpacks", "Core", "Lib"
+	};
+
+	@Parameter(names = "-help", description = "Display this help", help = true)
+	boolean help;
+
+	@Parameter(names = "-out", description = "Directory to write the CSVs to")
+	String outDir = "csv/generated";
+
+	@Parameter(names = "-projects", description = "Number of projects")
+	int numProjects = 100;
+
+	@Parameter(names = "-days", description = "Number of days of history for each project")
+	int numDays = 365;
+
+	@Parameter(names = "-startDate", description = "First day of history, as yyyy-MM-dd")
+	String startDate = "2015-01-01";
+
+	@Parameter(names = "-filesPerProject", description = "Number of files the history of each project is split across")
+	int filesPerProject = 1;
+
+	@Parameter(names = "-overlap", description = "Fraction of each file's days which are repeated from the end of the previous file (0-1)")
+	double overlap = 0;
+
+	@Parameter(names = "-malformed", description = "Fraction of rows which are malformed (0-1)")
+	double malformedRate = 0;
+
+	@Parameter(names = "-mixedDateFormats", description = "Write the dates of every other project as dd-MM-yyyy, as both formats turn up in exports")
+	boolean mixedDateFormats;
+
+	@Parameter(names = "-seed", description = "Seed for the random values")
+	long seed = 0;
+
+	@Parameter(names = "-prefix", description = "Prefix for the file names")
+	String prefix = "";
+
+	public static void main(String... args) throws IOException
+	{
+		CsvGenerator generator = new CsvGenerator();
+		JCommander jCommander = JCommander.newBuilder()
+			.addObject(generator)
+			.args(args)
+			.build();
+		jCommander.setProgramName("CsvGenerator");
+		if(generator.help)
+		{
+			jCommander.usage();
+			return;
+		}
+
+		File dir = new File(generator.outDir);
+		long start = System.currentTimeMillis();
+		List<GeneratedFile> files = generator.generate(dir);
+		long numRows = files.stream().mapToLong(file -> file.numRows).sum();
+		System.out.printf("Generated %s files with %s rows in %s in %sms%n", files.size(), numRows, dir.getPath(), System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Writes all of the CSVs into the directory
+	 * @return The files written, in the order they were written
+	 */
+	public List<GeneratedFile> generate(File dir) throws IOException
+	{
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Couldn't create directory " + dir.getPath());
+		List<GeneratedFile> files = new ArrayList<>(numProjects * filesPerProject);
+		for(int project = 0; project < numProjects; project++)
+			generateProject(dir, project, files);
+		return files;
+	}
+
+	/**
+	 * Generates the rows of every project without writing any files, with each day's rows next to each other
+	 * The rows match the ones {@link #generate} writes, without any malformed rows, and are split into their values
+	 */
+	public String[][] generateRows()
+	{
+		String[][] rows = new String[numProjects * numDays][];
+		for(int project = 0; project < numProjects; project++)
+		{
+			String[] history = generateHistory(project, createRandom(project));
+			for(int day = 0; day < numDays; day++)
+				rows[day * numProjects + project] = history[day].split(",");
+		}
+		return rows;
+	}
+
+	/**
+	 * Each project gets its own random, so a project's history doesn't depend on the number of projects
+	 */
+	private Random createRandom(int project)
+	{
+		return new Random(seed * 31 + project);
+	}
+
+	private void generateProject(File dir, int project, List<GeneratedFile> files) throws IOException
+	{
+		Random random = createRandom(project);
+		int projectId = FIRST_PROJECT_ID + project;
+		String[] rows = generateHistory(project, random);
+
+		//Split the history across the files
+		int numFiles = Math.max(1, Math.min(filesPerProject, numDays));
+		int daysPerFile = numDays / numFiles;
+		int overlapDays = (int) (daysPerFile * Math.max(0, Math.min(1, overlap)));
+		for(int i = 0; i < numFiles; i++)
+		{
+			int end = i == numFiles - 1 ? numDays : (i + 1) * daysPerFile;
+			int start = Math.max(0, i * daysPerFile - (i == 0 ? 0 : overlapDays));
+			File file = new File(dir, String.format("%s%s_%s.csv", prefix, projectId, i));
+			files.add(writeFile(file, rows, start, end, new Random(random.nextLong())));
+		}
+	}
+
+	/**
+	 * Generates the daily history of the project up front, so that overlapping files have the same values
+	 */
+	private String[] generateHistory(int project, Random random)
+	{
+		int projectId = FIRST_PROJECT_ID + project;
+		String name = NAME_WORDS[random.nextInt(NAME_WORDS.length)] + " " + NAME_WORDS[random.nextInt(NAME_WORDS.length)];
+
+		//Popularity drifts over time, with more downloads at weekends
+		String[] rows = new String[numDays];
+		LocalDate date = LocalDate.parse(startDate);
+		double popularity = 1 + random.nextInt(200);
+		long historical = random.nextInt(100_000);
+		for(int day = 0; day < numDays; day++)
+		{
+			popularity = Math.max(0, Math.min(MAX_POPULARITY, popularity * (0.98 + random.nextDouble() * 0.045)));
+			LocalDate rowDate = date.plusDays(day);
+			double weekend = rowDate.getDayOfWeek().getValue() >= 6 ? 1.3 : 1;
+			int daily = (int) (popularity * weekend * (0.5 + random.nextDouble()));
+			int unique = daily == 0 ? 0 : daily - random.nextInt(daily / 4 + 1);
+			int twitch = (int) (daily * (0.6 + random.nextDouble() * 0.3));
+			historical += daily;
+			String dateString = mixedDateFormats && project % 2 == 1 ? rowDate.format(DAY_FIRST) : rowDate.toString();
+			rows[day] = String.format("%s,%s,%s,%s,%s,%s,%s,%s,%s",
+				dateString, projectId, name, random.nextInt(200) / 4F, historical, daily, unique, twitch, daily - twitch);
+		}
+		return rows;
+	}
+
+	private GeneratedFile writeFile(File file, String[] rows, int start, int end, Random random) throws IOException
+	{
+		int numMalformed = 0;
+		try(BufferedWriter writer = new BufferedWriter(new FileWriter(file)))
+		{
+			writer.write(CSV_HEADER);
+			writer.write('\n');
+			for(int i = start; i < end; i++)
+			{
+				String row = rows[i];
+				if(malformedRate > 0 && random.nextDouble() < malformedRate)
+				{
+					row = malform(row, random);
+					numMalformed++;
+				}
+				writer.write(row);
+				writer.write('\n');
+			}
+		}
+		return new GeneratedFile(file, end - start, numMalformed);
+	}
+
+	/**
+	 * Writes a CSV with the export's header followed by the given rows
+	 */
+	public static File writeCsv(File file, List<String> rows) throws IOException
+	{
+		try(BufferedWriter writer = new BufferedWriter(new FileWriter(file)))
+		{
+			writer.write(CSV_HEADER);
+			writer.write('\n');
+			for(String row : rows)
+			{
+				writer.write(row);
+				writer.write('\n');
+			}
+		}
+		return file;
+	}
+
+	public static File writeCsv(File file, String... rows) throws IOException
+	{
+		return writeCsv(file, Arrays.asList(rows));
+	}
+
+	/**
+	 * Formats a valid row with no points, where all of the day's downloads are unique and from the Twitch app
+	 */
+	public static String row(LocalDate date, int projectId, String name, long historicalDownload, int dailyDownload)
+	{
+		return String.format("%s,%s,%s,0,%s,%s,%s,%s,0", date, projectId, name, historicalDownload, dailyDownload, dailyDownload, dailyDownload);
+	}
+
+	/**
+	 * Breaks the row in one of the ways seen in real exports
+	 */
+	private static String malform(String row, Random random)
+	{
+		String[] values = row.split(",");
+		switch(random.nextInt(4))
+		{
+			case 0:
+				//Truncated row
+				return String.join(",", Arrays.copyOf(values, 1 + random.nextInt(values.length - 1)));
+			case 1:
+				//Invalid date
+				values[0] = values[0].substring(0, 5) + "13-45";
+				return String.join(",", values);
+			case 2:
+				//Text in a number column
+				values[3 + random.nextInt(values.length - 3)] = "N/A";
+				return String.join(",", values);
+			default:
+				//Extra column
+				return row + ",0";
+		}
+	}
+
+	/**
+	 * A file written by the generator
+	 */
+	public static class GeneratedFile
+	{
+		public final File file;
+		public final int numRows;
+		public final int numMalformed;
+
+		private GeneratedFile(File file, int numRows, int numMalformed)
+		{
+			this.file = file;
+			this.numRows = numRows;
+			this.numMalformed = numMalformed;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package brightspark.modanalytics.loadtest;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CsvGeneratorTest
+{
+	private static CsvGenerator createGenerator()
+	{
+		CsvGenerator generator = new CsvGenerator();
+		generator.numProjects = 3;
+		generator.numDays = 100;
+		generator.filesPerProject = 2;
+		generator.overlap = 0.1;
+		generator.seed = 42;
+		return generator;
+	}
+
+	@Test
+	void testSameSeedGivesSameFiles(@TempDir Path dir) throws IOException
+	{
+		List<CsvGenerator.GeneratedFile> first = createGenerator().generate(dir.resolve("first").toFile());
+		List<CsvGenerator.GeneratedFile> second = createGenerator().generate(dir.resolve("second").toFile());
+		assertEquals(6, first.size());
+		for(int i = 0; i < first.size(); i++)
+			assertEquals(Files.readAllLines(first.get(i).file.toPath()), Files.readAllLines(second.get(i).file.toPath()));
+	}
+
+	@Test
+	void testOverlappingRowsMatch(@TempDir Path dir) throws IOException
+	{
+		List<CsvGenerator.GeneratedFile> files = createGenerator().generate(dir.toFile());
+		//50 days per file, with the second file repeating the last 5 days of the first
+		assertEquals(50, files.get(0).numRows);
+		assertEquals(55, files.get(1).numRows);
+		List<String> firstLines = Files.readAllLines(files.get(0).file.toPath());
+		List<String> secondLines = Files.readAllLines(files.get(1).file.toPath());
+		assertEquals(firstLines.subList(46, 51), secondLines.subList(1, 6));
+	}
+
+	@Test
+	void testMalformedRows(@TempDir Path dir) throws IOException
+	{
+		CsvGenerator generator = createGenerator();
+		generator.malformedRate = 1;
+		for(CsvGenerator.GeneratedFile file : generator.generate(dir.toFile()))
+		{
+			assertEquals(file.numRows, file.numMalformed);
+			File csv = file.file;
+			assertEquals(file.numRows + 1, Files.readAllLines(csv.toPath()).size());
+		}
+	}
+
+	@Test
+	void testGeneratedRowsMatchFiles(@TempDir Path dir) throws IOException
+	{
+		CsvGenerator generator = createGenerator();
+		generator.filesPerProject = 1;
+		generator.mixedDateFormats = true;
+		String[][] rows = generator.generateRows();
+		assertEquals(300, rows.length);
+		List<CsvGenerator.GeneratedFile> files = generator.generate(dir.toFile());
+		for(int project = 0; project < files.size(); project++)
+		{
+			List<String> lines = Files.readAllLines(files.get(project).file.toPath());
+			for(int day = 0; day < 100; day++)
+				assertEquals(lines.get(day + 1), String.join(",", rows[day * 3 + project]));
+		}
+		//Every other project writes its dates day first
+		assertEquals("01-01-2015", rows[1][0]);
+	}
+}
@@ -0,0 +1,147 @@
+package brightspark.modanalytics.loadtest;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load tests a running instance by dropping generated CSVs into its input directory at a controlled rate, then
+ * waiting for each one to be moved to the processed or failed directory
+ * Reports the sustained rows/sec and the latency from each file being dropped to it being moved
+ *
+ * Takes the same parameters as the {@link CsvGenerator} to control the files, e.g.
+ * -dir csv -rate 20 -projects 1000 -days 1825 -filesPerProject 5 -overlap 0.2
+ * The seed is random unless one is given, as the instance skips files with the same content as ones it has already
+ * ingested, which would make a repeated run against the same instance look faster than it is.
+ */
+public class LoadTest
+{
+	private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	@Parameter(names = "-dir", description = "CSV directory of the running instance")
+	private String csvDir = "csv";
+
+	@Parameter(names = "-rate", description = "Number of files to drop per second")
+	private double rate = 10;
+
+	@Parameter(names = "-timeout", description = "Seconds to wait for files to be processed after the last one is dropped")
+	private int timeoutSecs = 300;
+
+	public static void main(String... args) throws IOException, InterruptedException
+	{
+		LoadTest loadTest = new LoadTest();
+		CsvGenerator generator = new CsvGenerator();
+		JCommander jCommander = JCommander.newBuilder()
+			.addObject(loadTest)
+			.addObject(generator)
+			.args(args)
+			.build();
+		jCommander.setProgramName("LoadTest");
+		if(generator.help)
+		{
+			jCommander.usage();
+			return;
+		}
+		if(!Arrays.asList(args).contains("-seed"))
+			generator.seed = new Random().nextLong();
+		System.out.println("Seed: " + generator.seed);
+		loadTest.run(generator);
+	}
+
+	private void run(CsvGenerator generator) throws IOException, InterruptedException
+	{
+		File dir = new File(csvDir);
+		File inputDir = new File(dir, "input");
+		File processedDir = new File(dir, "processed");
+		File failedDir = new File(dir, "failed");
+		if(!inputDir.isDirectory())
+			throw new IOException("Input directory " + inputDir.getPath() + " doesn't exist - is the instance running?");
+
+		//Generate outside of the input directory, then move the files in so that they appear complete
+		//A unique prefix stops the files clashing with ones from previous runs
+		File stagingDir = new File(dir, "loadtest");
+		generator.prefix = "lt" + Long.toString(System.currentTimeMillis(), 36) + "_";
+		System.out.println("Generating files...");
+		List<CsvGenerator.GeneratedFile> files = generator.generate(stagingDir);
+		long totalRows = files.stream().mapToLong(file -> file.numRows).sum();
+		System.out.printf("Generated %s files with %s rows - dropping at %s files/sec%n", files.size(), totalRows, rate);
+
+		long[] dropTimes = new long[files.size()];
+		long[] latencies = new long[files.size()];
+		Set<Integer> pending = new LinkedHashSet<>();
+		int numDropped = 0, numProcessed = 0, numFailed = 0;
+		long processedRows = 0;
+		long start = System.nanoTime();
+		long lastCompletion = start;
+		long nanosPerFile = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		long deadline = Long.MAX_VALUE;
+
+		while((numDropped < files.size() || !pending.isEmpty()) && System.nanoTime() < deadline)
+		{
+			//Drop every file that's due
+			long now = System.nanoTime();
+			while(numDropped < files.size() && now - start >= numDropped * nanosPerFile)
+			{
+				File file = files.get(numDropped).file;
+				Files.move(file.toPath(), new File(inputDir, file.getName()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+				dropTimes[numDropped] = System.nanoTime();
+				pending.add(numDropped++);
+				if(numDropped == files.size())
+					deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSecs);
+			}
+
+			//Check which files have been moved
+			Iterator<Integer> iterator = pending.iterator();
+			while(iterator.hasNext())
+			{
+				int i = iterator.next();
+				String name = files.get(i).file.getName();
+				boolean processed = new File(processedDir, name).exists();
+				if(!processed && !new File(failedDir, name).exists())
+					continue;
+				long time = System.nanoTime();
+				latencies[numProcessed + numFailed] = time - dropTimes[i];
+				lastCompletion = time;
+				iterator.remove();
+				if(processed)
+				{
+					numProcessed++;
+					processedRows += files.get(i).numRows;
+				}
+				else
+					numFailed++;
+			}
+
+			long nextDrop = numDropped < files.size() ? start + numDropped * nanosPerFile - System.nanoTime() : POLL_NANOS;
+			TimeUnit.NANOSECONDS.sleep(Math.max(0, Math.min(POLL_NANOS, nextDrop)));
+		}
+
+		report(files.size(), numProcessed, numFailed, processedRows, lastCompletion - start, Arrays.copyOf(latencies, numProcessed + numFailed));
+		//noinspection ResultOfMethodCallIgnored
+		stagingDir.delete();
+	}
+
+	private static void report(int numFiles, int numProcessed, int numFailed, long processedRows, long elapsedNanos, long[] latencies)
+	{
+		double seconds = elapsedNanos / 1e9;
+		System.out.printf("Files: %s processed, %s failed, %s timed out%n", numProcessed, numFailed, numFiles - numProcessed - numFailed);
+		System.out.printf("Rows: %s in %.1fs - %.0f rows/sec sustained%n", processedRows, seconds, processedRows / seconds);
+		if(latencies.length == 0)
+			return;
+		Arrays.sort(latencies);
+		System.out.printf("Latency (ms): p50 %s, p95 %s, p99 %s, max %s%n",
+			percentile(latencies, 0.5), percentile(latencies, 0.95), percentile(latencies, 0.99), latencies[latencies.length - 1] / 1_000_000);
+	}
+
+	private static long percentile(long[] sortedNanos, double percentile)
+	{
+		int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+		return sortedNanos[Math.max(0, index)] / 1_000_000;
+	}
+}
@@ -0,0 +1,50 @@
+package brightspark.modanalytics.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LatencyHistogramTest
+{
+	@Test
+	void testSnapshot()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 1; i <= 100; i++)
+			histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+		HistogramSnapshot snapshot = histogram.snapshot();
+		assertEquals(100, snapshot.getCount());
+		assertEquals(50.5, snapshot.getMean(), 0.01);
+		assertEquals(100, snapshot.getMax(), 0.01);
+		//Percentiles are rounded up to the bucket bounds, which are powers of 2 microseconds
+		assertEquals(65.536, snapshot.getP50(), 0.01);
+		assertEquals(100, snapshot.getP99(), 0.01);
+	}
+
+	@Test
+	void testRegisteredAsMXBean() throws Exception
+	{
+		IngestMetrics metrics = new IngestMetrics(() -> 3, () -> 2);
+		metrics.fileProcessed(10);
+		metrics.getParseLatencyHistogram().record(TimeUnit.MILLISECONDS.toNanos(5));
+		Metrics.register("Test", metrics);
+		try
+		{
+			ObjectName name = new ObjectName("brightspark.modanalytics:type=Test");
+			assertEquals(3, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "PendingFiles"));
+			assertEquals(2, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "QueuedFiles"));
+			assertEquals(10L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "RowsIngested"));
+			CompositeData latency = (CompositeData) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ParseLatency");
+			assertEquals(1L, latency.get("count"));
+		}
+		finally
+		{
+			Metrics.unregister("Test");
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package brightspark.modanalytics.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RateMeterTest
+{
+	private long now = 0;
+
+	private void advanceSeconds(double seconds)
+	{
+		now += (long) (seconds * TimeUnit.SECONDS.toNanos(1));
+	}
+
+	@Test
+	void testRateOverLastMinute()
+	{
+		RateMeter meter = new RateMeter(() -> now);
+		advanceSeconds(0.5);
+		meter.add(100);
+		advanceSeconds(0.5);
+		assertEquals(100, meter.getRate(), 0.01);
+
+		//Nothing counted for an hour, so the rate over the last minute is 0 rather than the average over the hour
+		advanceSeconds(3600);
+		assertEquals(0, meter.getRate(), 0.01);
+
+		//The rate isn't read while counting resumes, but the samples still only go back a minute
+		advanceSeconds(30);
+		meter.add(60);
+		advanceSeconds(30);
+		assertEquals(1, meter.getRate(), 0.01);
+		assertEquals(160, meter.getTotal());
+	}
+}